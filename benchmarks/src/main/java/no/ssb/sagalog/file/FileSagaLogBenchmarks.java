@@ -0,0 +1,93 @@
+package no.ssb.sagalog.file;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.NoBenchmarksException;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Runs all benchmarks, the write and contention benchmarks once for every thread count, and writes all results to a
+ * single JSON file so that results of different releases can be compared.
+ * <p>
+ * Usage: {@code java -jar target/benchmarks.jar [result-file] [regexp]}, where the result file defaults to
+ * {@code jmh-result.json} and the regexp selects benchmarks by name. Thread counts of the write benchmark are set with
+ * the system property {@code benchmark.threads}, default {@code 1,4,16}, and of the contention benchmark with
+ * {@code benchmark.contention-threads}, default {@code 1,2,4,8,16,32,64}. Use {@code org.openjdk.jmh.Main} as main
+ * class to run single benchmarks with the usual JMH command line.
+ */
+public class FileSagaLogBenchmarks {
+
+    static final String FOLDER = "target/bench";
+
+    public static void main(String[] args) throws RunnerException {
+        String resultFile = args.length > 0 ? args[0] : "jmh-result.json";
+        String include = args.length > 1 ? args[1] : ".*";
+        List<RunResult> results = new ArrayList<>();
+        String writeBenchmark = FileSagaLogWriteBenchmark.class.getName();
+        String contentionBenchmark = FileSagaLogContentionBenchmark.class.getName();
+        try {
+            results.addAll(new Runner(new OptionsBuilder()
+                    .include(include)
+                    .exclude(writeBenchmark)
+                    .exclude(contentionBenchmark)
+                    .build()).run());
+        } catch (NoBenchmarksException e) {
+            // only threaded benchmarks selected
+        }
+        results.addAll(runThreaded(include, writeBenchmark + ".write", System.getProperty("benchmark.threads", "1,4,16")));
+        results.addAll(runThreaded(include, contentionBenchmark + ".append", System.getProperty("benchmark.contention-threads", "1,2,4,8,16,32,64")));
+        ResultFormatFactory.getInstance(ResultFormatType.JSON, resultFile).writeOut(results);
+    }
+
+    /**
+     * Run the benchmark once for every thread count in the comma-separated list, if it is selected by the regexp.
+     */
+    private static List<RunResult> runThreaded(String include, String benchmark, String threadCounts) throws RunnerException {
+        List<RunResult> results = new ArrayList<>();
+        if (Pattern.compile(include).matcher(benchmark).find()) {
+            for (String threads : threadCounts.split(",")) {
+                results.addAll(new Runner(new OptionsBuilder()
+                        .include(Pattern.quote(benchmark))
+                        .threads(Integer.parseInt(threads.trim()))
+                        .build()).run());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Open an empty log with the given name and configuration, deleting any log left behind by an earlier run.
+     */
+    static FileSagaLog newSagaLog(String logName, Map<String, String> configuration) throws IOException {
+        FileSagaLogId logId = new FileSagaLogId(Paths.get(FOLDER), "bench", logName);
+        Files.createDirectories(Paths.get(FOLDER));
+        deleteFolder(logId.getPath());
+        Files.deleteIfExists(FileSagaLogMeta.pathOf(logId.getPath()));
+        return new FileSagaLog(logId, FileSagaLogConfig.from(configuration));
+    }
+
+    static void deleteFolder(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
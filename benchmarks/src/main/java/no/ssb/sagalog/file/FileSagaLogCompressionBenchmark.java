@@ -0,0 +1,108 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trade-off of compressing json data: the latency of writing an entry with json data of the given size, and the time
+ * to recover a log holding 10000 such entries. The json data is shaped like a document of repeated records, as
+ * typically logged by saga nodes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSagaLogCompressionBenchmark {
+
+    static final int RECOVERY_LOG_DEPTH = 10000;
+
+    @Param({"queuefile", "segmented"})
+    String engine;
+
+    @Param({"false", "true"})
+    boolean compression;
+
+    @Param({"1000", "10000"})
+    int jsonDataSize;
+
+    FileSagaLog sagaLog;
+    FileSagaLogId recoveryLogId;
+    FileSagaLogConfig config;
+    String executionId;
+    String jsonData;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Map<String, String> configuration = Map.of(
+                FileSagaLogConfig.ENGINE, engine,
+                FileSagaLogConfig.COMPRESSION_ENABLED, String.valueOf(compression)
+        );
+        config = FileSagaLogConfig.from(configuration);
+        executionId = UUID.randomUUID().toString();
+        jsonData = jsonData(jsonDataSize);
+        try (FileSagaLog recoveryLog = FileSagaLogBenchmarks.newSagaLog("compression-recovery", configuration)) {
+            recoveryLogId = (FileSagaLogId) recoveryLog.id();
+            for (int i = 0; i < RECOVERY_LOG_DEPTH; i++) {
+                recoveryLog.write(recoveryLog.builder().endAction(executionId, "action-" + i, jsonData)).join();
+            }
+        }
+        sagaLog = FileSagaLogBenchmarks.newSagaLog("compression-write", configuration);
+    }
+
+    static String jsonData(int size) {
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder(size + 100).append("{\"items\":[");
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append(i == 0 ? "" : ",")
+                    .append("{\"id\":").append(random.nextInt(1_000_000))
+                    .append(",\"name\":\"item-").append(random.nextInt(1000))
+                    .append("\",\"status\":\"").append(random.nextBoolean() ? "DONE" : "PENDING")
+                    .append("\",\"amount\":").append(random.nextInt(10_000) / 100.0)
+                    .append("}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    @TearDown(Level.Iteration)
+    public void truncate() {
+        sagaLog.truncate().join();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        sagaLog.close();
+    }
+
+    @Benchmark
+    public SagaLogEntry write() {
+        return sagaLog.write(sagaLog.builder().endAction(executionId, "action", jsonData)).join();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long recover() throws IOException {
+        try (FileSagaLog recoveryLog = new FileSagaLog(recoveryLogId, config)) {
+            return recoveryLog.readIncompleteSagas().count();
+        }
+    }
+}
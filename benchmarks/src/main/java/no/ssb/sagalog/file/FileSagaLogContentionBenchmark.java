@@ -0,0 +1,73 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of many threads appending small entries to the same log, comparing the locked append path, where every
+ * write takes the lock of the log, with the sequenced path of group commit, where producers never take it. Run with
+ * 1 to 64 threads through {@link FileSagaLogBenchmarks}. With durability {@code os} no disk sync is done, so the cost
+ * of contention itself is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSagaLogContentionBenchmark {
+
+    @Param({"locked", "sequenced"})
+    String appendPath;
+
+    @Param({"sync", "os"})
+    String durability;
+
+    FileSagaLog sagaLog;
+
+    @State(Scope.Thread)
+    public static class Producer {
+        final String executionId = UUID.randomUUID().toString();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        sagaLog = FileSagaLogBenchmarks.newSagaLog("contention", Map.of(
+                FileSagaLogConfig.ENGINE, "segmented",
+                FileSagaLogConfig.DURABILITY, durability,
+                FileSagaLogConfig.GROUP_COMMIT_ENABLED, String.valueOf("sequenced".equals(appendPath))
+        ));
+    }
+
+    @TearDown(Level.Iteration)
+    public void truncate() {
+        sagaLog.truncate().join();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        sagaLog.close();
+    }
+
+    @Benchmark
+    public SagaLogEntry append(Producer producer) {
+        return sagaLog.write(sagaLog.builder().startAction(producer.executionId, "action")).join();
+    }
+}
@@ -0,0 +1,91 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogEntryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the binary entry codec with the original text codec, and encoding into a new array with encoding into a
+ * reused buffer, as done when writing. Run with the GC profiler to see the allocation rate of each, e.g.
+ * {@code java -cp target/benchmarks.jar org.openjdk.jmh.Main FileSagaLogEntryCodecBenchmark -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileSagaLogEntryCodecBenchmark {
+
+    @Param({"0", "100", "2000"})
+    int jsonDataSize;
+
+    @Param({"false", "true"})
+    boolean compression;
+
+    FileSagaLogEntryCodec codec;
+
+    SagaLogEntry entry;
+    List<SagaLogEntry> entryAsList;
+    byte[] text;
+    byte[] binary;
+    ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        codec = new FileSagaLogEntryCodec(compression ? 1024 : FileSagaLogEntryCodec.NO_COMPRESSION);
+        StringBuilder jsonData = new StringBuilder("{\"data\":\"");
+        for (int i = 0; i < jsonDataSize; i++) {
+            jsonData.append((char) ('a' + i % 26));
+        }
+        jsonData.append("\"}");
+        entry = new SagaLogEntryBuilder()
+                .id(new FileSagaLogEntryId(123456))
+                .endAction(UUID.randomUUID().toString(), "some-action-node", jsonData.toString())
+                .build();
+        entryAsList = List.of(entry);
+        text = codec.encodeText(entry);
+        binary = codec.encode(entryAsList);
+        buffer = codec.encode(entryAsList, null);
+    }
+
+    @Benchmark
+    public byte[] encodeText() {
+        return codec.encodeText(entry);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return codec.encode(entryAsList);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinaryIntoBuffer() {
+        return buffer = codec.encode(entryAsList, buffer);
+    }
+
+    @Benchmark
+    public SagaLogEntry decodeText() {
+        return codec.decodeText(text);
+    }
+
+    @Benchmark
+    public List<SagaLogEntry> decodeBinary() {
+        return codec.decode(binary);
+    }
+}
@@ -0,0 +1,65 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of listing all logs of the cluster in a folder holding the given number of logs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileSagaLogPoolBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int logCount;
+
+    FileSagaLogPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Path folder = Paths.get("target", "bench-pool-" + logCount);
+        FileSagaLogBenchmarks.deleteFolder(folder);
+        Files.createDirectories(folder);
+        for (int i = 0; i < logCount; i++) {
+            Files.createFile(new FileSagaLogId(folder, "instance" + (i % 4), "log" + i).getPath());
+        }
+        pool = new FileSagaLogInitializer().initialize(Map.of(
+                "filesagalog.folder", folder.toString(),
+                "cluster.instance-id", "instance0"
+        ));
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Set<SagaLogId> clusterWideLogIds() {
+        return pool.clusterWideLogIds();
+    }
+}
@@ -0,0 +1,79 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to recover after a restart: opening a log holding the given number of incomplete entries and reading them all
+ * with readIncompleteSagas.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSagaLogRecoveryBenchmark {
+
+    @Param({"queuefile", "segmented"})
+    String engine;
+
+    @Param({"1000", "10000", "100000"})
+    int logDepth;
+
+    @Param({"100"})
+    int averageJsonDataSize;
+
+    FileSagaLogId logId;
+    FileSagaLogConfig config;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Map<String, String> configuration = Map.of(FileSagaLogConfig.ENGINE, engine);
+        config = FileSagaLogConfig.from(configuration);
+        try (FileSagaLog sagaLog = FileSagaLogBenchmarks.newSagaLog("recovery", configuration)) {
+            logId = (FileSagaLogId) sagaLog.id();
+            FileSagaLogWorkload workload = new FileSagaLogWorkload(1, 4, averageJsonDataSize);
+            List<SagaLogEntryBuilder> batch = new ArrayList<>();
+            int written = 0;
+            while (written < logDepth) {
+                for (SagaLogEntryBuilder builder : workload.nextSaga(sagaLog)) {
+                    if (written++ < logDepth) {
+                        batch.add(builder);
+                    }
+                }
+                if (batch.size() >= 100) {
+                    sagaLog.writeBatch(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                sagaLog.writeBatch(batch);
+            }
+        }
+    }
+
+    @Benchmark
+    public long openAndReadIncompleteSagas() throws IOException {
+        try (FileSagaLog sagaLog = new FileSagaLog(logId, config)) {
+            return sagaLog.readIncompleteSagas().count();
+        }
+    }
+}
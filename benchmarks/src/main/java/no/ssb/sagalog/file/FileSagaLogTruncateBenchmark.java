@@ -0,0 +1,73 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogEntryBuilder;
+import no.ssb.sagalog.SagaLogEntryId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of truncating half of a log holding the given number of retained entries. Every measured invocation gets a
+ * freshly written log, entries are written in batches of 100 to keep setup time reasonable.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileSagaLogTruncateBenchmark {
+
+    @Param({"queuefile", "segmented"})
+    String engine;
+
+    @Param({"10000", "100000", "1000000"})
+    int retainedEntries;
+
+    FileSagaLog sagaLog;
+    SagaLogEntryId truncateId;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        sagaLog = FileSagaLogBenchmarks.newSagaLog("truncate", Map.of(FileSagaLogConfig.ENGINE, engine));
+        List<SagaLogEntryBuilder> batch = new ArrayList<>();
+        for (int i = 0; i < retainedEntries; i++) {
+            batch.add(sagaLog.builder().startAction(UUID.randomUUID().toString(), "action-" + i));
+            if (batch.size() == 100) {
+                List<SagaLogEntry> entries = sagaLog.writeBatch(batch);
+                if (i == retainedEntries / 2 - 1) {
+                    truncateId = entries.get(entries.size() - 1).getId();
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void teardown() throws IOException {
+        sagaLog.close();
+    }
+
+    @Benchmark
+    public void truncate() {
+        sagaLog.truncate(truncateId).join();
+    }
+}
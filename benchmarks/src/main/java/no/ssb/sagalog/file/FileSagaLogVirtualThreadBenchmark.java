@@ -0,0 +1,96 @@
+package no.ssb.sagalog.file;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of many concurrent writers on virtual threads, compared with as many platform threads. Every invocation
+ * starts the given number of writers, each appending {@link #ENTRIES_PER_WRITER} entries to the same log through the
+ * locked append path, and waits for all of them, so the score times writers times entries per writer is entries per
+ * second. Virtual threads waiting for the lock of the log unmount from their carrier threads, so their throughput
+ * should keep scaling as writers grow far beyond the number of cores. The virtual-thread executor is looked up
+ * reflectively, as benchmarks compile for Java 11, and setup fails on JDKs without virtual threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSagaLogVirtualThreadBenchmark {
+
+    static final int ENTRIES_PER_WRITER = 10;
+
+    @Param({"platform", "virtual"})
+    String threads;
+
+    @Param({"16", "256", "1024"})
+    int writers;
+
+    @Param({"sync", "os"})
+    String durability;
+
+    FileSagaLog sagaLog;
+    ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ReflectiveOperationException {
+        if ("virtual".equals(threads)) {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } else {
+            executor = Executors.newFixedThreadPool(writers);
+        }
+        sagaLog = FileSagaLogBenchmarks.newSagaLog("virtual-threads", Map.of(
+                FileSagaLogConfig.ENGINE, "segmented",
+                FileSagaLogConfig.DURABILITY, durability
+        ));
+    }
+
+    @TearDown(Level.Iteration)
+    public void truncate() {
+        sagaLog.truncate().join();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        executor.shutdown();
+        sagaLog.close();
+    }
+
+    @Benchmark
+    public void write() throws InterruptedException, ExecutionException {
+        List<Future<?>> writes = new ArrayList<>(writers);
+        for (int i = 0; i < writers; i++) {
+            String executionId = "ex-" + i;
+            writes.add(executor.submit(() -> {
+                for (int j = 0; j < ENTRIES_PER_WRITER; j++) {
+                    sagaLog.write(sagaLog.builder().startAction(executionId, "action" + j)).join();
+                }
+            }));
+        }
+        for (Future<?> write : writes) {
+            write.get();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLog;
+import no.ssb.sagalog.SagaLogEntryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates entries shaped like the executions of a saga coordinator: a saga start with the saga input, a start and
+ * end entry for every action, where the end holds the action output, then a saga end. A small share of executions
+ * abort halfway and compensate the actions already done instead.
+ * <p>
+ * The number of actions per saga and the size of the json data vary around the given averages. Generation is
+ * deterministic for a given seed. Not thread-safe, use one workload per writing thread.
+ */
+class FileSagaLogWorkload {
+
+    static final double ABORT_RATIO = 0.05;
+
+    private final Random random;
+    private final int averageActions;
+    private final int averageJsonDataSize;
+
+    FileSagaLogWorkload(long seed, int averageActions, int averageJsonDataSize) {
+        this.random = new Random(seed);
+        this.averageActions = averageActions;
+        this.averageJsonDataSize = averageJsonDataSize;
+    }
+
+    /**
+     * Builders of all entries of the next saga execution, in the order a coordinator writes them.
+     */
+    List<SagaLogEntryBuilder> nextSaga(SagaLog sagaLog) {
+        String executionId = UUID.randomUUID().toString();
+        int actions = 1 + random.nextInt(2 * averageActions);
+        List<SagaLogEntryBuilder> builders = new ArrayList<>(2 + 4 * actions);
+        builders.add(sagaLog.builder().startSaga(executionId, "Saga-" + random.nextInt(10), jsonData()));
+        int abortAt = random.nextDouble() < ABORT_RATIO ? random.nextInt(actions) : -1;
+        for (int i = 0; i < actions; i++) {
+            String nodeId = "action-" + i;
+            if (i == abortAt) {
+                builders.add(sagaLog.builder().abort(executionId, nodeId));
+                for (int j = i - 1; j >= 0; j--) {
+                    builders.add(sagaLog.builder().compDone(executionId, "action-" + j));
+                }
+                break;
+            }
+            builders.add(sagaLog.builder().startAction(executionId, nodeId));
+            builders.add(sagaLog.builder().endAction(executionId, nodeId, jsonData()));
+        }
+        builders.add(sagaLog.builder().endSaga(executionId));
+        return builders;
+    }
+
+    private String jsonData() {
+        if (averageJsonDataSize == 0) {
+            return "{}";
+        }
+        int size = averageJsonDataSize / 2 + random.nextInt(averageJsonDataSize + 1);
+        StringBuilder sb = new StringBuilder(size + 12);
+        sb.append("{\"data\":\"");
+        for (int i = 0; i < size; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.append("\"}").toString();
+    }
+}
@@ -0,0 +1,91 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogEntryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of writing saga-shaped entries, every thread writing its own saga executions and waiting for each write
+ * to complete. Run with several thread counts, e.g. through {@link FileSagaLogBenchmarks}, to measure contention. The
+ * log is truncated after every iteration to keep its size bounded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSagaLogWriteBenchmark {
+
+    private static final AtomicLong SEEDS = new AtomicLong();
+
+    @Param({"queuefile", "segmented"})
+    String engine;
+
+    @Param({"false", "true"})
+    boolean groupCommit;
+
+    @Param({"0", "100", "2000"})
+    int averageJsonDataSize;
+
+    FileSagaLog sagaLog;
+
+    @State(Scope.Thread)
+    public static class Writer {
+        FileSagaLogWorkload workload;
+        final ArrayDeque<SagaLogEntryBuilder> pending = new ArrayDeque<>();
+
+        @Setup
+        public void setup(FileSagaLogWriteBenchmark benchmark) {
+            workload = new FileSagaLogWorkload(SEEDS.incrementAndGet(), 4, benchmark.averageJsonDataSize);
+        }
+
+        SagaLogEntryBuilder next(FileSagaLog sagaLog) {
+            if (pending.isEmpty()) {
+                pending.addAll(workload.nextSaga(sagaLog));
+            }
+            return pending.pollFirst();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        sagaLog = FileSagaLogBenchmarks.newSagaLog("write", Map.of(
+                FileSagaLogConfig.ENGINE, engine,
+                FileSagaLogConfig.GROUP_COMMIT_ENABLED, String.valueOf(groupCommit)
+        ));
+    }
+
+    @TearDown(Level.Iteration)
+    public void truncate() {
+        sagaLog.truncate().join();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+        sagaLog.close();
+    }
+
+    @Benchmark
+    public SagaLogEntry write(Writer writer) {
+        return sagaLog.write(writer.next(sagaLog)).join();
+    }
+}
@@ -5,5 +5,9 @@ module no.ssb.sagalog.file {
     requires no.ssb.sagalog;
     requires tape;
 
+    exports no.ssb.sagalog.file;
+
+    uses no.ssb.sagalog.file.FileSagaLogMetrics;
+
     provides SagaLogInitializer with FileSagaLogInitializer;
 }
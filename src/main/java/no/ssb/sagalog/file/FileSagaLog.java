@@ -1,38 +1,310 @@
 package no.ssb.sagalog.file;
 
-import com.squareup.tape2.QueueFile;
-import no.ssb.sagalog.SagaLog;
 import no.ssb.sagalog.SagaLogEntry;
 import no.ssb.sagalog.SagaLogEntryBuilder;
 import no.ssb.sagalog.SagaLogEntryId;
-import no.ssb.sagalog.SagaLogEntryType;
 import no.ssb.sagalog.SagaLogId;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class FileSagaLog implements SagaLog, AutoCloseable {
+public class FileSagaLog implements FileSagaLogApi {
+
+    /**
+     * Maximum number of elements a reader copies from the file while holding the lock.
+     */
+    static final int READ_CHUNK_ELEMENTS = 32;
 
     private final FileSagaLogId sagaLogId;
-    private final AtomicLong nextId = new AtomicLong(0);
-    private final QueueFile queueFile;
+    private final FileSagaLogEntryCodec codec;
+    private final FileSagaLogConfig config;
+    // not a monitor, which would pin the carrier of a virtual thread waiting for it or doing file I/O holding it
+    private final ReentrantLock lock = new ReentrantLock();
+    private FileSagaLogStore store; // guarded by lock, replaced by compaction
+    private FileSagaLogMeta meta; // guarded by lock, replaced by compaction
+    private long generation; // guarded by lock, incremented when compaction replaces the store
+    private boolean closed; // guarded by lock
+    private final int idBlockSize;
+    private final AtomicLong nextId;
+    // first ids of writes claimed but not yet appended, tracked only when ids are shared, see lowestUnsettledId()
+    private final ConcurrentSkipListSet<Long> unsettledIds;
+    private volatile long claimingFrom = Long.MAX_VALUE; // lower bound of the id being claimed, if any
+    private final FileSagaLogWriter writer;
+    private final FileSagaLogConfig.Durability durability;
+    private final long maxUnsyncedEntries;
+    private final FileSagaLogSyncer syncer;
+    private volatile long writtenEntries; // written while holding the lock
+    private volatile long writtenBytes; // written while holding the lock
+    // written entries and bytes when the last checkpoint was taken, less those in the log it does not cover
+    private volatile long checkpointedEntries; // written while holding the lock
+    private volatile long checkpointedBytes; // written while holding the lock
+    private long checkpointInvalidations; // guarded by lock
+    private final AtomicLong syncedEntries = new AtomicLong();
+    private volatile IOException failure;
+    private FileSagaLogIndex index = new FileSagaLogIndex(); // guarded by lock, replaced by compaction
+    private ByteBuffer elementBuffer; // guarded by lock, every element is encoded into it, grown as needed up to a limit
+    private final FileSagaLogCompactor compactor;
+    private final FileSagaLogCheckpointer checkpointer;
+    private final FileSagaLogHandles handles;
+    private volatile long lastAccessNanos; // written while holding the lock
+    private final Set<FileSagaLogSubscription> subscriptions = ConcurrentHashMap.newKeySet(); // added holding the lock
+    private final FileSagaLogMetrics metrics;
+    private final boolean measured;
 
     public FileSagaLog(SagaLogId _sagaLogId) {
+        this(_sagaLogId, FileSagaLogConfig.defaults());
+    }
+
+    FileSagaLog(SagaLogId _sagaLogId, FileSagaLogConfig config) {
+        this(_sagaLogId, config, FileSagaLogMetrics.NOOP);
+    }
+
+    FileSagaLog(SagaLogId _sagaLogId, FileSagaLogConfig config, FileSagaLogMetrics metrics) {
+        this(_sagaLogId, config, metrics, null);
+    }
+
+    /**
+     * @param sharedIds source of entry ids shared with other logs, e.g. the other shards of a sharded log, or null if
+     *                  this log has ids of its own. Ids of this log are then increasing, but not consecutive.
+     */
+    FileSagaLog(SagaLogId _sagaLogId, FileSagaLogConfig config, FileSagaLogMetrics metrics, AtomicLong sharedIds) {
+        this(_sagaLogId, config, metrics, sharedIds, null);
+    }
+
+    /**
+     * @param handles cache of open files the log reports its operations to, which closes its files when evicted, or
+     *                null to keep the files open until the log is closed.
+     */
+    FileSagaLog(SagaLogId _sagaLogId, FileSagaLogConfig config, FileSagaLogMetrics metrics, AtomicLong sharedIds, FileSagaLogHandles handles) {
         this.sagaLogId = (FileSagaLogId) _sagaLogId;
+        this.config = config;
+        this.codec = new FileSagaLogEntryCodec(config.compressionEnabled ? config.compressionThreshold : FileSagaLogEntryCodec.NO_COMPRESSION);
+        this.nextId = sharedIds != null ? sharedIds : new AtomicLong();
+        this.unsettledIds = sharedIds != null ? new ConcurrentSkipListSet<>() : null;
+        this.metrics = metrics;
+        this.measured = metrics != FileSagaLogMetrics.NOOP;
         Path path = sagaLogId.getPath();
+        long recoveryStart = measured ? System.nanoTime() : 0;
+        long[] recoveredEntries = {0};
         try {
-            queueFile = new QueueFile.Builder(path.toFile()).build();
+            FileSagaLogCompactor.recover(path);
+            Files.deleteIfExists(FileSagaLogCheckpoint.preparedPathOf(path));
+            store = openStore(path, config);
+            meta = new FileSagaLogMeta(FileSagaLogMeta.pathOf(path));
+            long[] maxId = {-1};
+            LongConsumer recovered = id -> {
+                maxId[0] = Math.max(maxId[0], id);
+                recoveredEntries[0]++;
+            };
+            FileSagaLogStore.Cursor cursor = store.cursor();
+            long element = store.headSequence();
+            FileSagaLogCheckpoint checkpoint = FileSagaLogCheckpoint.read(path);
+            if (checkpoint != null) {
+                element = restore(checkpoint, cursor, recovered);
+            }
+            long restoredEntries = recoveredEntries[0];
+            long scannedBytes = 0;
+            cursor.seek(element);
+            for (; element < store.nextSequence(); element++) {
+                byte[] bytes = readIntact(cursor);
+                if (bytes == null) {
+                    repair(element);
+                    break;
+                }
+                indexElement(element, bytes, recovered);
+                scannedBytes += bytes.length;
+            }
+            checkpointedEntries = restoredEntries - recoveredEntries[0];
+            checkpointedBytes = -scannedBytes;
+            if (meta.headSkip() > 0) {
+                FileSagaLogIndex.Position position = index.positionOf(new FileSagaLogEntryId(meta.headSkipId()));
+                if (position != null && position.element == index.headElement() && position.entry == meta.headSkip() - 1) {
+                    index.truncateBefore(position.element, meta.headSkip());
+                }
+            }
+            // logs written before ids were reserved have no meta file, their ids are only found in the entries
+            nextId.accumulateAndGet(Math.max(meta.reservedIdLimit(), maxId[0] + 1), Math::max);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        idBlockSize = config.idBlockSize;
+        durability = config.durability;
+        maxUnsyncedEntries = config.durabilityMaxUnsyncedEntries;
+        if (config.groupCommitEnabled) {
+            writer = new FileSagaLogWriter(this, config.groupCommitMaxBatchSize, config.groupCommitMaxLingerMs, sharedIds != null);
+            writer.start(nextId.get());
+        } else {
+            writer = null;
+        }
+        if (durability == FileSagaLogConfig.Durability.INTERVAL) {
+            syncer = new FileSagaLogSyncer(this, config.durabilityIntervalMs);
+        } else {
+            syncer = null;
+        }
+        if (config.compactionEnabled) {
+            compactor = new FileSagaLogCompactor(this, config.compactionIntervalMs, config.compactionMinCompletedEntries);
+        } else {
+            compactor = null;
+        }
+        if (config.checkpointEnabled) {
+            checkpointer = new FileSagaLogCheckpointer(this, config.checkpointIntervalMs, config.checkpointMinEntries, config.checkpointMinBytes);
+        } else {
+            checkpointer = null;
+        }
+        this.handles = handles;
+        if (handles != null) {
+            lastAccessNanos = System.nanoTime();
+            handles.accessed(this, true);
+        }
+        if (measured) {
+            metrics.opened(this, System.nanoTime() - recoveryStart, recoveredEntries[0]);
+        }
+    }
+
+    /**
+     * The next element, or null if it is torn or otherwise corrupt.
+     */
+    private byte[] readIntact(FileSagaLogStore.Cursor cursor) throws IOException {
+        byte[] element;
+        try {
+            element = cursor.next();
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return codec.verify(element) ? element : null;
+    }
+
+    private void indexElement(long element, byte[] bytes, LongConsumer indexed) {
+        codec.visitHeaders(bytes, (entry, entryCount, id, completesSaga, executionId) -> {
+            index.add(element, entry, entryCount, new FileSagaLogEntryId(id), completesSaga, executionId);
+            indexed.accept(id);
+        });
+    }
+
+    /**
+     * Rebuild the index of the elements covered by the checkpoint, only reading the first and last of them from the
+     * store, to check that the checkpoint matches the log.
+     *
+     * @return the first element not covered, or the head element if the checkpoint does not match the log.
+     */
+    private long restore(FileSagaLogCheckpoint checkpoint, FileSagaLogStore.Cursor cursor, LongConsumer restored) throws IOException {
+        long head = store.headSequence();
+        if (head == store.nextSequence()) {
+            return head;
+        }
+        cursor.seek(head);
+        byte[] headBytes = readIntact(cursor);
+        if (headBytes == null) {
+            return head;
+        }
+        long[] headIds = idsOf(headBytes);
+        int first = headIds == null ? -1 : checkpoint.elementWithLastId(headIds[headIds.length - 1]);
+        if (first < 0 || !matches(checkpoint, first, headIds, false)) {
+            return head;
+        }
+        int lastInCheckpoint = checkpoint.elements() - 1;
+        long last = head + lastInCheckpoint - first;
+        if (last >= store.nextSequence()) {
+            return head;
+        }
+        byte[] lastBytes = null;
+        if (last > head) {
+            cursor.seek(last);
+            lastBytes = readIntact(cursor);
+            if (lastBytes == null || idsOf(lastBytes) == null || !matches(checkpoint, lastInCheckpoint, idsOf(lastBytes), true)) {
+                return head;
+            }
+        }
+        indexElement(head, headBytes, restored);
+        for (int element = first + 1; element < lastInCheckpoint; element++) {
+            int entryCount = checkpoint.entryCount(element);
+            for (int entry = 0; entry < entryCount; entry++) {
+                long id = checkpoint.id(element, entry);
+                index.add(head + element - first, entry, entryCount, new FileSagaLogEntryId(id),
+                        checkpoint.completesSaga(element, entry), checkpoint.executionId(element, entry));
+                restored.accept(id);
+            }
+        }
+        if (lastBytes != null) {
+            indexElement(last, lastBytes, restored);
+        }
+        return last + 1;
+    }
+
+    private long[] idsOf(byte[] element) {
+        long[][] ids = {null};
+        codec.visitHeaders(element, (entry, entryCount, id, completesSaga, executionId) -> {
+            if (ids[0] == null) {
+                ids[0] = new long[entryCount];
+            }
+            ids[0][entry] = id;
+        });
+        return ids[0];
+    }
+
+    /**
+     * Whether the live entries of the element of the checkpoint are the last, or all, entries with the given ids.
+     */
+    private static boolean matches(FileSagaLogCheckpoint checkpoint, int element, long[] ids, boolean all) {
+        int entryCount = checkpoint.entryCount(element);
+        if (entryCount > ids.length || (all && entryCount != ids.length)) {
+            return false;
+        }
+        for (int entry = 0; entry < entryCount; entry++) {
+            if (checkpoint.id(element, entry) != ids[ids.length - entryCount + entry]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove the corrupt element and all elements after it. A crash can only tear elements written since the last sync,
+     * which are at the tail, and the log must stay a prefix of what was written, so no element after a corrupt one is
+     * kept.
+     */
+    private void repair(long element) throws IOException {
+        long removedElements = store.nextSequence() - element;
+        store.removeTail(element);
+        FileSagaLogCheckpoint.delete(sagaLogId.getPath());
+        metrics.repaired(sagaLogId, removedElements);
+    }
+
+    static FileSagaLogStore openStore(Path path, FileSagaLogConfig config) throws IOException {
+        return openStore(path, config, config.durability == FileSagaLogConfig.Durability.SYNC);
+    }
+
+    private static FileSagaLogStore openStore(Path path, FileSagaLogConfig config, boolean syncOnAppend) throws IOException {
+        switch (config.engine) {
+            case SEGMENTED:
+                return new FileSagaLogSegmentedStore(path, config.segmentSize, syncOnAppend, config.preallocateEnabled);
+            case QUEUEFILE:
+            default:
+                return new FileSagaLogQueueFileStore(path, config.preallocateInitialSize, config.preallocateEnabled, config.shrinkOnTruncateEnabled);
+        }
     }
 
     @Override
@@ -42,67 +314,568 @@ public class FileSagaLog implements SagaLog, AutoCloseable {
 
     @Override
     public CompletableFuture<SagaLogEntry> write(SagaLogEntryBuilder builder) {
-        synchronized (queueFile) {
-            if (builder.id() == null) {
-                builder.id(new FileSagaLogEntryId(nextId.getAndIncrement()));
+        if (writer != null) {
+            return writer.submit(builder);
+        }
+        try {
+            return CompletableFuture.completedFuture(writeBatch(List.of(builder)).get(0));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write several entries at once, e.g. the start of all parallel children of a saga step. The entries get
+     * consecutive ids in the order of the builders, unless a builder has an id of its own, and are appended as a
+     * single element, so they are written atomically, all or none surviving a crash, with at most one disk sync.
+     *
+     * @return a future completed with all entries once they are written according to the durability mode of the log.
+     */
+    @Override
+    public CompletableFuture<List<SagaLogEntry>> write(List<SagaLogEntryBuilder> builders) {
+        if (builders.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        if (writer != null) {
+            return writer.submit(builders);
+        }
+        try {
+            return CompletableFuture.completedFuture(writeBatch(builders));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Assign ids to and build all entries, then append them to the store as a single element so that the whole
+     * batch is made durable with at most one disk sync. Goes through the sequencing writer if there is one.
+     */
+    List<SagaLogEntry> writeBatch(List<SagaLogEntryBuilder> builders) throws IOException {
+        if (writer != null) {
+            return writer.submit(builders).join();
+        }
+        long start = measured ? System.nanoTime() : 0;
+        lock.lock();
+        try {
+            lockAcquired(start);
+            long firstId = claimIds(builders.size());
+            try {
+                List<SagaLogEntry> entries = new ArrayList<>(builders.size());
+                for (int i = 0; i < builders.size(); i++) {
+                    entries.add(build(builders.get(i), firstId + i));
+                }
+                ByteBuffer element = codec.encode(entries, elementBuffer);
+                elementBuffer = FileSagaLogEntryCodec.reusable(element, elementBuffer);
+                appendLocked(entries, element, firstId + builders.size(), start);
+                return entries;
+            } finally {
+                settled(firstId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Claim the given number of consecutive ids, returning the first. Every write claims one per entry, in the order
+     * entries are to be appended, but an id is only given to the entry if the builder has none.
+     */
+    long claimIds(int count) {
+        if (unsettledIds == null) {
+            return nextId.getAndAdd(count);
+        }
+        // claims are serialized, by the lock of the log or by the ticket lock of its writer
+        claimingFrom = nextId.get();
+        long firstId = nextId.getAndAdd(count);
+        unsettledIds.add(firstId);
+        claimingFrom = Long.MAX_VALUE;
+        return firstId;
+    }
+
+    /**
+     * The write of the ids claimed from the given id is appended, or failed. Must be called for every claim.
+     */
+    void settled(long firstId) {
+        if (unsettledIds == null) {
+            return;
+        }
+        unsettledIds.remove(firstId);
+        // a merged tail of shards may be waiting for the ids to be settled
+        for (FileSagaLogSubscription subscription : subscriptions) {
+            subscription.signal();
+        }
+    }
+
+    /**
+     * Lowest id claimed by a write to this log that is not yet settled, or {@link Long#MAX_VALUE} if there is none.
+     * Only tracked when ids are shared. If the shared source of ids is read before calling this method, any id below
+     * both is either appended to its log or failed.
+     */
+    long lowestUnsettledId() {
+        long lowest = claimingFrom;
+        Long unsettled = unsettledIds.ceiling(Long.MIN_VALUE);
+        return unsettled == null ? lowest : Math.min(lowest, unsettled);
+    }
+
+    SagaLogEntry build(SagaLogEntryBuilder builder, long claimedId) {
+        if (builder.id() == null) {
+            builder.id(new FileSagaLogEntryId(claimedId));
+        }
+        return builder.build();
+    }
+
+    FileSagaLogEntryCodec codec() {
+        return codec;
+    }
+
+    /**
+     * Append entries built and encoded by the caller as a single element, see
+     * {@link FileSagaLogEntryCodec#encodeEntries(List, ByteBuffer)}.
+     *
+     * @param idLimit all ids claimed by the entries are below this limit.
+     */
+    void append(List<SagaLogEntry> entries, List<ByteBuffer> encodedEntries, long idLimit) throws IOException {
+        long start = measured ? System.nanoTime() : 0;
+        lock.lock();
+        try {
+            lockAcquired(start);
+            ByteBuffer element = codec.frame(encodedEntries, entries.size(), elementBuffer);
+            elementBuffer = FileSagaLogEntryCodec.reusable(element, elementBuffer);
+            appendLocked(entries, element, idLimit, start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void appendLocked(List<SagaLogEntry> entries, ByteBuffer element, long idLimit, long start) throws IOException {
+        if (failure != null) {
+            throw new IOException("Saga-log is unusable after a failed sync or compaction: " + sagaLogId, failure);
+        }
+        accessFiles();
+        if (idLimit > meta.reservedIdLimit()) {
+            meta.reserveIds(idLimit + idBlockSize);
+        }
+        int elementLength = element.remaining();
+        long elementSequence = store.append(element);
+        index.add(elementSequence, entries);
+        if (durability == FileSagaLogConfig.Durability.SYNC) {
+            syncedEntries.addAndGet(entries.size());
+        }
+        writtenEntries += entries.size();
+        writtenBytes += elementLength;
+        if (durability == FileSagaLogConfig.Durability.INTERVAL && unsyncedEntries() > maxUnsyncedEntries) {
+            runSync(store.unsynced(), writtenEntries);
+        }
+        if (measured) {
+            metrics.write(sagaLogId, entries.size(), elementLength, System.nanoTime() - start);
+        }
+        if (!subscriptions.isEmpty()) {
+            for (FileSagaLogSubscription subscription : subscriptions) {
+                subscription.signal();
+            }
+        }
+    }
+
+    /**
+     * Sync all entries written so far. The disk sync is done without holding the lock, so writers are not blocked.
+     */
+    void sync() {
+        FileSagaLogStore.Sync sync;
+        long entries;
+        long start = measured ? System.nanoTime() : 0;
+        lock.lock();
+        try {
+            lockAcquired(start);
+            sync = store.unsynced();
+            entries = writtenEntries;
+        } finally {
+            lock.unlock();
+        }
+        runSync(sync, entries);
+    }
+
+    /**
+     * Run the sync, after which the given number of entries written since the log was opened are durable.
+     */
+    private void runSync(FileSagaLogStore.Sync sync, long entries) {
+        long start = measured ? System.nanoTime() : 0;
+        try {
+            sync.run();
+        } catch (IOException e) {
+            failure = e;
+            throw new RuntimeException(e);
+        }
+        syncedEntries.accumulateAndGet(entries, Math::max);
+        if (measured) {
+            metrics.sync(sagaLogId, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Report an operation using the files of the store to the cache of open files, if any. Must hold the lock.
+     */
+    private void accessFiles() {
+        if (handles != null) {
+            lastAccessNanos = System.nanoTime();
+            handles.accessed(this, store.released());
+        }
+    }
+
+    long lastAccessNanos() {
+        return lastAccessNanos;
+    }
+
+    /**
+     * Close the files of the store and the meta file, evicted from the cache of open files. They are opened again by
+     * the next operation, the meta file only by the next change to it.
+     *
+     * @return whether the files were open.
+     */
+    boolean releaseFiles() {
+        lock.lock();
+        try {
+            if (closed || store.released()) {
+                return false;
             }
-            SagaLogEntry entry = builder.build();
             try {
-                queueFile.add(serialize(entry));
+                store.release();
+                meta.release();
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                failure = e;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void lockAcquired(long start) {
+        if (measured) {
+            metrics.lockWait(sagaLogId, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Number of bytes the log takes on disk.
+     */
+    public long fileSize() {
+        lock.lock();
+        try {
+            accessFiles();
+            try {
+                return store.fileSize();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            return CompletableFuture.completedFuture(entry);
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Number of bytes on disk in use by live entries, at most {@link #fileSize()}.
+     */
+    public long usedSize() {
+        lock.lock();
+        try {
+            accessFiles();
+            try {
+                return store.usedSize();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of written entries not yet synced to disk, always 0 with sync durability. With OS-buffered durability
+     * these are the entries written since the log was opened, as the log never knows when the operating system has
+     * written them to disk.
+     */
+    public long unsyncedEntries() {
+        return Math.max(0, writtenEntries - syncedEntries.get());
+    }
+
     @Override
     public CompletableFuture<Void> truncate(SagaLogEntryId id) {
-        synchronized (queueFile) {
-            Iterator<byte[]> iterator = queueFile.iterator();
-            int n = 0;
-            while (iterator.hasNext()) {
-                SagaLogEntry entry = deserialize(iterator.next());
-                n++;
-                if (id.equals(entry.getId())) {
-                    try {
-                        queueFile.remove(n);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                    return CompletableFuture.completedFuture(null);
-                }
-            }
+        long start = measured ? System.nanoTime() : 0;
+        lock.lock();
+        try {
+            lockAcquired(start);
+            truncateLocked(index.positionOf(id), start);
+        } finally {
+            lock.unlock();
         }
         return CompletableFuture.completedFuture(null);
     }
 
+    /**
+     * Truncate all entries with ids up to and including the given id, whether or not an entry with that id is in this
+     * log. The cost is proportional to the number of entries truncated.
+     */
+    void truncateThrough(long id) {
+        long start = measured ? System.nanoTime() : 0;
+        lock.lock();
+        try {
+            lockAcquired(start);
+            truncateLocked(index.lastPositionThrough(id), start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether the log holds a live entry with the given id.
+     */
+    boolean contains(SagaLogEntryId id) {
+        lock.lock();
+        try {
+            return index.positionOf(id) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void truncateLocked(FileSagaLogIndex.Position position, long start) {
+        if (position == null) {
+            return;
+        }
+        // the element holding the entry can only be removed when no live entries follow it in that element
+        long newHeadElement = position.lastInElement ? position.element + 1 : position.element;
+        int newHeadEntry = position.lastInElement ? 0 : position.entry + 1;
+        int elementsToRemove = (int) (newHeadElement - index.headElement());
+        accessFiles();
+        try {
+            if (elementsToRemove > 0) {
+                store.remove(elementsToRemove);
+            }
+            if (newHeadEntry > 0 || index.headSkip() > 0) {
+                meta.headSkip(newHeadEntry > 0 ? ((FileSagaLogEntryId) position.id).id : 0, newHeadEntry);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        index.truncateBefore(newHeadElement, newHeadEntry);
+        if (measured) {
+            metrics.truncate(sagaLogId, System.nanoTime() - start);
+        }
+    }
+
     @Override
     public CompletableFuture<Void> truncate() {
-        synchronized (queueFile) {
+        long start = measured ? System.nanoTime() : 0;
+        lock.lock();
+        try {
+            lockAcquired(start);
+            accessFiles();
             try {
-                queueFile.clear();
+                invalidateCheckpoint();
+                store.clear();
+                if (index.headSkip() > 0) {
+                    meta.headSkip(0, 0);
+                }
+                index.clear();
+                checkpointedEntries = writtenEntries;
+                checkpointedBytes = writtenBytes;
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
+        } finally {
+            lock.unlock();
+        }
+        if (measured) {
+            metrics.truncate(sagaLogId, System.nanoTime() - start);
         }
         return CompletableFuture.completedFuture(null);
     }
 
+    /**
+     * Lazily decoded stream of all live entries of the log as of when this method is called. Elements are copied from
+     * the file in small chunks, holding the lock only while copying, and decoded as the stream is consumed. Entries
+     * written after this method is called are not part of the stream, entries truncated while the stream is consumed
+     * might or might not be.
+     */
     @Override
     public Stream<SagaLogEntry> readIncompleteSagas() {
-        List<byte[]> list = new ArrayList<>();
-        synchronized (queueFile) {
-            for (byte[] bytes : queueFile) {
-                list.add(bytes);
+        lock.lock();
+        try {
+            return StreamSupport.stream(new SnapshotSpliterator(new Snapshot<>(FileSagaLogStore.Cursor::next)), false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read all live entries of the log as of when this method is called, like {@link #readIncompleteSagas()}, without
+     * decoding them into strings. Fields of the segmented engine are views of the mapped files, without any copying.
+     *
+     * @return the number of entries visited.
+     */
+    @Override
+    public long readIncompleteSagas(FileSagaLogEntryVisitor visitor) {
+        ElementVisits visits = visitIncompleteSagas();
+        long entries = 0;
+        for (int visited = visits.visitNext(visitor); visited >= 0; visited = visits.visitNext(visitor)) {
+            entries += visited;
+        }
+        return entries;
+    }
+
+    /**
+     * Visits the live entries of the log as of when this method is called an element at a time, like
+     * {@link #readIncompleteSagas(FileSagaLogEntryVisitor)}, letting a sharded log merge the entries of its shards.
+     */
+    ElementVisits visitIncompleteSagas() {
+        Snapshot<ByteBuffer> snapshot;
+        lock.lock();
+        try {
+            snapshot = new Snapshot<>(FileSagaLogStore.Cursor::nextBuffer);
+        } finally {
+            lock.unlock();
+        }
+        return visitor -> {
+            ByteBuffer element = snapshot.next();
+            if (element == null) {
+                return -1;
             }
+            return codec.visitEntries(element, snapshot.skip, (id, entryType, executionId, nodeId, sagaName, jsonData) -> {
+                if (snapshot.include(id)) {
+                    visitor.visit(id, entryType, executionId, nodeId, sagaName, jsonData);
+                }
+            });
+        };
+    }
+
+    /**
+     * Follow the log, e.g. to replicate it to a standby node, with entries delivered on the common fork-join pool.
+     *
+     * @see #tail(SagaLogEntryId, Executor)
+     */
+    @Override
+    public Flow.Publisher<SagaLogEntry> tail(SagaLogEntryId from) {
+        return tail(from, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Follow the log: every subscriber gets the live entries after the entry with the given id, or all live entries
+     * if the id is null, and then every entry as it is written, in log order. Entries are written once the future of
+     * the write completes, i.e. synced with sync durability. Entries are read from the file a chunk at a time as the
+     * subscriber requests them, continuing from the last element read, never reading the log again from its head.
+     * <p>
+     * Entries truncated before they are read are skipped, also when the whole log is truncated. If the entry with the
+     * given id is no longer in the log, entries are delivered from the head of the log, skipping those with lower ids.
+     * If the log is compacted, reading continues past the last entry delivered, relying on ids increasing in log order.
+     * Subscribers are completed when the log is closed, and may subscribe again from the last entry they got once it
+     * is opened again.
+     *
+     * @param executor runs the tasks delivering entries to each subscriber, one task at a time per subscriber.
+     */
+    @Override
+    public Flow.Publisher<SagaLogEntry> tail(SagaLogEntryId from, Executor executor) {
+        Objects.requireNonNull(executor);
+        return subscriber -> {
+            Objects.requireNonNull(subscriber);
+            FileSagaLogSubscription subscription;
+            boolean closedLog;
+            lock.lock();
+            try {
+                subscription = new FileSagaLogSubscription(tailSpliterator(from), subscriber, executor, subscriptions::remove);
+                closedLog = closed;
+                if (!closedLog) {
+                    subscriptions.add(subscription);
+                }
+            } finally {
+                lock.unlock();
+            }
+            subscriber.onSubscribe(subscription);
+            if (closedLog) {
+                subscription.close();
+            }
+        };
+    }
+
+    /**
+     * The entries of a tail of the log from the given id, see {@link #tail(SagaLogEntryId, Executor)}, for a sharded
+     * log merging the tails of its shards. Skips entries with lower ids if the entry is not in this log.
+     */
+    Spliterator<SagaLogEntry> tailEntries(SagaLogEntryId from) {
+        lock.lock();
+        try {
+            return tailSpliterator(from);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Signal the subscription whenever entries are appended, until it is removed or the log closed.
+     *
+     * @return false if the log is already closed.
+     */
+    boolean subscribe(FileSagaLogSubscription subscription) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            subscriptions.add(subscription);
+            return true;
+        } finally {
+            lock.unlock();
         }
-        return list.stream().map(this::deserialize);
+    }
+
+    void unsubscribe(FileSagaLogSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Must hold the lock.
+     */
+    private SnapshotSpliterator tailSpliterator(SagaLogEntryId from) {
+        FileSagaLogIndex.Position position = from == null ? null : index.positionOf(from);
+        Snapshot<byte[]> snapshot;
+        if (position != null) {
+            snapshot = new Snapshot<>(FileSagaLogStore.Cursor::next, position.lastInElement ? position.element + 1 : position.element,
+                    position.lastInElement ? 0 : position.entry + 1, ((FileSagaLogEntryId) from).id, false);
+        } else {
+            snapshot = new Snapshot<>(FileSagaLogStore.Cursor::next, -1, 0,
+                    from == null ? Long.MIN_VALUE : ((FileSagaLogEntryId) from).id, from != null);
+        }
+        return new SnapshotSpliterator(snapshot);
     }
 
     @Override
     public Stream<SagaLogEntry> readEntries(String executionId) {
-        return readIncompleteSagas().filter(entry -> executionId.equals(entry.getExecutionId()));
+        lock.lock();
+        try {
+            List<FileSagaLogIndex.Position> positions = index.positionsOf(executionId);
+            if (positions.isEmpty()) {
+                return Stream.empty();
+            }
+            List<SagaLogEntry> entries = new ArrayList<>(positions.size());
+            accessFiles();
+            try {
+                FileSagaLogStore.Cursor cursor = store.cursor();
+                cursor.seek(positions.get(0).element);
+                long element = positions.get(0).element;
+                byte[] bytes = cursor.next();
+                for (FileSagaLogIndex.Position position : positions) {
+                    while (element < position.element) {
+                        bytes = cursor.next();
+                        element++;
+                    }
+                    entries.add(codec.decode(bytes, position.entry));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return entries.stream();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -127,72 +900,479 @@ public class FileSagaLog implements SagaLog, AutoCloseable {
         return new FileSagaLogEntryId(ByteBuffer.wrap(idBytes).getLong());
     }
 
-    @Override
-    public void close() throws IOException {
-        queueFile.close();
+    /**
+     * Number of entries of completed sagas still in the log, an estimate of what compaction would drop.
+     */
+    long completedEntries() {
+        lock.lock();
+        try {
+            return index.completedEntries();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    byte[] serialize(SagaLogEntry entry) {
-        String serializedString = toString(entry.getId())
-                + " " + entry.getExecutionId()
-                + " " + entry.getEntryType()
-                + " " + entry.getNodeId()
-                + (entry.getSagaName() == null ? "" : " " + entry.getSagaName())
-                + (entry.getJsonData() == null ? "" : " " + entry.getJsonData());
-        return serializedString.getBytes(StandardCharsets.UTF_8);
+    /**
+     * Rewrite the log into a new file without the entries of sagas completed when compaction starts, then replace the
+     * log with the new file. Live entries are copied a chunk at a time, holding the lock only while reading each chunk,
+     * so writers and readers are only paused while the last chunk is copied and the files are swapped. Truncation
+     * meanwhile is carried over to the new file, as the position of every copied element in the log is kept.
+     *
+     * @return the number of entries dropped.
+     */
+    long compact() throws IOException {
+        long start = System.nanoTime();
+        Path path = sagaLogId.getPath();
+        Path compactingPath = FileSagaLogCompactor.compactingPathOf(path);
+        Set<String> completedExecutions;
+        long element;
+        lock.lock();
+        try {
+            completedExecutions = index.completedExecutions();
+            element = index.headElement();
+        } finally {
+            lock.unlock();
+        }
+        if (completedExecutions.isEmpty()) {
+            return 0;
+        }
+        FileSagaLogCompactor.delete(compactingPath);
+        Compaction compaction = new Compaction(openStore(compactingPath, config, false), completedExecutions);
+        boolean swapped = false;
+        try {
+            List<byte[]> chunk = new ArrayList<>(READ_CHUNK_ELEMENTS);
+            FileSagaLogStore.Cursor cursor = null;
+            while (true) {
+                chunk.clear();
+                int skip;
+                long pauseStart;
+                boolean last;
+                lock.lock();
+                try {
+                    pauseStart = System.nanoTime();
+                    if (element < index.headElement()) {
+                        // truncated meanwhile, later truncation is carried over when swapping
+                        element = index.headElement();
+                    }
+                    skip = element == index.headElement() ? index.headSkip() : 0;
+                    last = index.nextElement() - element <= READ_CHUNK_ELEMENTS;
+                    accessFiles();
+                    if (cursor == null) {
+                        cursor = store.cursor();
+                    }
+                    cursor.seek(element);
+                    for (int i = 0; i < READ_CHUNK_ELEMENTS && element < index.nextElement(); i++) {
+                        chunk.add(cursor.next());
+                        element++;
+                    }
+                    if (last) {
+                        compaction.copy(chunk, element - chunk.size(), skip);
+                        swap(compaction);
+                        swapped = true;
+                        if (measured) {
+                            long now = System.nanoTime();
+                            metrics.compaction(sagaLogId, compaction.dropped, now - pauseStart, now - start);
+                        }
+                        return compaction.dropped;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                compaction.copy(chunk, element - chunk.size(), skip);
+            }
+        } finally {
+            if (!swapped) {
+                compaction.compacted.close();
+                FileSagaLogCompactor.delete(compactingPath);
+            }
+        }
     }
 
-    SagaLogEntry deserialize(byte[] bytes) {
-        String serialized = new String(bytes, StandardCharsets.UTF_8);
-        SagaLogEntryBuilder builder = builder();
+    /**
+     * State of a compaction in progress, only used by the compacting thread.
+     */
+    private class Compaction {
+        final FileSagaLogStore compacted;
+        final FileSagaLogIndex compactedIndex = new FileSagaLogIndex();
+        final Set<String> completedExecutions;
+        long[] sourceElements = new long[64]; // element of this log copied to each element of the compacted store
+        long skippedElement = -1; // element of this log copied without the truncated entries at its start
+        int skippedEntries;
+        long dropped;
+        long copied;
 
-        // mandatory log-fields
+        Compaction(FileSagaLogStore compacted, Set<String> completedExecutions) {
+            this.compacted = compacted;
+            this.completedExecutions = completedExecutions;
+        }
 
-        int idEndIndex = serialized.indexOf(' ');
-        String id = serialized.substring(0, idEndIndex);
-        serialized = serialized.substring(idEndIndex + 1);
+        /**
+         * Append the entries of the elements not belonging to completed executions, and not truncated, to the store.
+         */
+        void copy(List<byte[]> elements, long firstElement, int skip) throws IOException {
+            for (int i = 0; i < elements.size(); i++) {
+                int elementSkip = i == 0 ? skip : 0;
+                if (elementSkip > 0) {
+                    skippedElement = firstElement;
+                    skippedEntries = elementSkip;
+                }
+                List<SagaLogEntry> entries = codec.decode(elements.get(i));
+                List<SagaLogEntry> kept = new ArrayList<>(entries.size());
+                for (int j = elementSkip; j < entries.size(); j++) {
+                    if (!completedExecutions.contains(entries.get(j).getExecutionId())) {
+                        kept.add(entries.get(j));
+                    }
+                }
+                dropped += entries.size() - elementSkip - kept.size();
+                copied += kept.size();
+                if (kept.isEmpty()) {
+                    continue;
+                }
+                long compactedElement = compacted.append(kept.size() == entries.size() ? elements.get(i) : codec.encode(kept));
+                compactedIndex.add(compactedElement, kept);
+                if (compactedElement >= sourceElements.length) {
+                    sourceElements = Arrays.copyOf(sourceElements, sourceElements.length * 2);
+                }
+                sourceElements[(int) compactedElement] = firstElement + i;
+            }
+        }
+    }
 
-        builder.id(fromString(id));
+    /**
+     * Replace the store of this log with the compacted store, carrying over truncation done while compacting.
+     */
+    private void swap(Compaction compaction) throws IOException {
+        // the first compacted element with live entries, and the number of truncated entries at its start
+        int compactedHead = 0;
+        long compactedElements = compaction.compacted.nextSequence();
+        while (compactedHead < compactedElements && compaction.sourceElements[compactedHead] < index.headElement()) {
+            compactedHead++;
+        }
+        int compactedSkip = 0;
+        if (compactedHead < compactedElements && compaction.sourceElements[compactedHead] == index.headElement() && index.headSkip() > 0) {
+            int copiedFrom = compaction.skippedElement == index.headElement() ? compaction.skippedEntries : 0;
+            FileSagaLogStore.Cursor cursor = store.cursor();
+            cursor.seek(index.headElement());
+            int[] truncated = {0};
+            codec.visitHeaders(cursor.next(), (entry, entryCount, id, completesSaga, executionId) -> {
+                if (entry >= copiedFrom && entry < index.headSkip() && !compaction.completedExecutions.contains(executionId)) {
+                    truncated[0]++;
+                }
+            });
+            compactedSkip = truncated[0];
+        }
+        compaction.compacted.unsynced().run();
+        compaction.compacted.close();
+        long written = writtenEntries;
+        Path path = sagaLogId.getPath();
+        try {
+            invalidateCheckpoint();
+            store.close();
+            meta.close();
+            FileSagaLogCompactor.replace(path, FileSagaLogCompactor.compactingPathOf(path));
+            store = openStore(path, config);
+            meta = new FileSagaLogMeta(FileSagaLogMeta.pathOf(path));
+            index = compaction.compactedIndex;
+            generation++;
+            checkpointedEntries = writtenEntries - compaction.copied;
+            checkpointedBytes = writtenBytes - store.usedSize();
+            // all entries written so far were copied to the compacted store and synced
+            syncedEntries.accumulateAndGet(written, Math::max);
+            if (compactedSkip > 0) {
+                truncateLocked(positionAt(compactedHead, compactedSkip - 1), System.nanoTime());
+            } else if (compactedHead > 0) {
+                truncateLocked(positionAt(compactedHead - 1, -1), System.nanoTime());
+            } else if (meta.headSkip() > 0) {
+                meta.headSkip(0, 0);
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e instanceof IOException ? (IOException) e : new IOException(e);
+            throw e;
+        }
+    }
 
-        int executionIdEndIndex = serialized.indexOf(' ');
-        String executionId = serialized.substring(0, executionIdEndIndex);
-        serialized = serialized.substring(executionIdEndIndex + 1);
+    /**
+     * Position of the entry at the given index of the element, or of the last entry if the index is negative.
+     */
+    private FileSagaLogIndex.Position positionAt(long element, int entry) throws IOException {
+        FileSagaLogStore.Cursor cursor = store.cursor();
+        cursor.seek(element);
+        long[] id = {-1};
+        codec.visitHeaders(cursor.next(), (entryIndex, entryCount, entryId, completesSaga, executionId) -> {
+            if (entryIndex == entry || (entry < 0 && entryIndex == entryCount - 1)) {
+                id[0] = entryId;
+            }
+        });
+        return index.positionOf(new FileSagaLogEntryId(id[0]));
+    }
 
-        builder.executionId(executionId);
+    /**
+     * Number of entries in the log not covered by a checkpoint, counting entries since truncated.
+     */
+    long uncheckpointedEntries() {
+        return writtenEntries - checkpointedEntries;
+    }
+
+    /**
+     * Number of bytes of elements in the log not covered by a checkpoint, counting elements since removed.
+     */
+    long uncheckpointedBytes() {
+        return writtenBytes - checkpointedBytes;
+    }
+
+    /**
+     * Write a checkpoint of the index of all elements written so far, after syncing them, so that opening the log only
+     * reads the elements written after it. The index is copied holding the lock, and the checkpoint written without
+     * it. A checkpoint is not kept if the log is compacted or truncated as a whole while it is written.
+     *
+     * @return the number of entries covered by the checkpoint.
+     */
+    long checkpoint() throws IOException {
+        long start = System.nanoTime();
+        Path path = sagaLogId.getPath();
+        FileSagaLogStore.Sync sync;
+        long entries;
+        long bytes;
+        long headElement;
+        List<FileSagaLogIndex.Position> positions;
+        Set<String> completedExecutions;
+        long invalidations;
+        lock.lock();
+        try {
+            sync = store.unsynced();
+            entries = writtenEntries;
+            bytes = writtenBytes;
+            headElement = index.headElement();
+            positions = index.livePositions();
+            completedExecutions = index.completedExecutions();
+            invalidations = checkpointInvalidations;
+        } finally {
+            lock.unlock();
+        }
+        runSync(sync, entries);
+        int size = FileSagaLogCheckpoint.prepare(path, headElement, positions, completedExecutions);
+        lock.lock();
+        try {
+            if (invalidations != checkpointInvalidations) {
+                Files.deleteIfExists(FileSagaLogCheckpoint.preparedPathOf(path));
+                return 0;
+            }
+            FileSagaLogCheckpoint.commit(path);
+            checkpointedEntries = entries;
+            checkpointedBytes = bytes;
+        } finally {
+            lock.unlock();
+        }
+        if (measured) {
+            metrics.checkpoint(sagaLogId, positions.size(), size, System.nanoTime() - start);
+        }
+        return positions.size();
+    }
+
+    /**
+     * Delete the checkpoint before the elements it covers are rewritten. Must hold the lock.
+     */
+    private void invalidateCheckpoint() throws IOException {
+        checkpointInvalidations++;
+        FileSagaLogCheckpoint.delete(sagaLogId.getPath());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+        if (checkpointer != null) {
+            checkpointer.close();
+        }
+        if (syncer != null) {
+            syncer.close();
+        }
+        if (compactor != null) {
+            compactor.close();
+        }
+        if (durability != FileSagaLogConfig.Durability.SYNC && failure == null) {
+            sync();
+        }
+        lock.lock();
+        try {
+            closed = true;
+            store.close();
+            meta.close();
+        } finally {
+            lock.unlock();
+        }
+        if (handles != null) {
+            handles.closed(this);
+        }
+        for (FileSagaLogSubscription subscription : subscriptions) {
+            subscription.close();
+        }
+        if (measured) {
+            metrics.closed(this);
+        }
+    }
 
-        int entryTypeEndIndex = serialized.indexOf(' ');
-        SagaLogEntryType entryType = SagaLogEntryType.valueOf(serialized.substring(0, entryTypeEndIndex));
-        serialized = serialized.substring(entryTypeEndIndex + 1);
+    /**
+     * Reads the elements of the log as of when it was created, a chunk at a time, or of a tail of the log, which also
+     * reads elements appended later. If the log is compacted while reading, reading continues from the head of the
+     * compacted log, past the last entry read, relying on ids increasing in log order. Must be created holding the lock.
+     */
+    private class Snapshot<E> {
+        final ElementReader<E> reader;
+        final boolean tail;
+        final long endId;
+        final ArrayDeque<E> elements = new ArrayDeque<>(READ_CHUNK_ELEMENTS);
+        long endElement;
+        long generation;
+        boolean filtered; // only entries with ids above the last id read are included
+        long lastId = Long.MIN_VALUE;
+        FileSagaLogStore.Cursor cursor;
+        long nextElement = -1;
+        int nextEntry; // number of entries at the start of the next element not to be read
+        int firstElementSkip;
+        /**
+         * Number of entries at the start of the element last returned by {@link #next()} that have been truncated.
+         */
+        int skip;
 
-        builder.entryType(entryType);
+        Snapshot(ElementReader<E> reader) {
+            this.reader = reader;
+            this.tail = false;
+            this.endElement = index.nextElement();
+            this.endId = nextId.get();
+            this.generation = FileSagaLog.this.generation;
+        }
 
-        int nodeIdEndIdex = serialized.indexOf(' ');
-        if (nodeIdEndIdex == -1) {
-            return builder.nodeId(serialized).build();
+        /**
+         * A tail of the log, from the given entry of the given element, or from the head if the element is -1.
+         *
+         * @param lastId    id of the entry before the first entry to read.
+         * @param filtered  whether to only read entries with ids above the last id.
+         */
+        Snapshot(ElementReader<E> reader, long fromElement, int fromEntry, long lastId, boolean filtered) {
+            this.reader = reader;
+            this.tail = true;
+            this.endElement = Long.MAX_VALUE;
+            this.endId = Long.MAX_VALUE;
+            this.generation = FileSagaLog.this.generation;
+            this.nextElement = fromElement;
+            this.nextEntry = fromEntry;
+            this.lastId = lastId;
+            this.filtered = filtered;
         }
 
-        String nodeId = serialized.substring(0, nodeIdEndIdex);
-        serialized = serialized.substring(nodeIdEndIdex + 1);
+        /**
+         * The next element, or null when all elements have been read. A tail returns null when it has read all elements
+         * appended so far, and the elements appended after that on later calls.
+         */
+        E next() {
+            skip = 0;
+            if (elements.isEmpty()) {
+                if (!readChunk()) {
+                    return null;
+                }
+                skip = firstElementSkip;
+            }
+            return elements.pollFirst();
+        }
 
-        builder.nodeId(nodeId);
+        /**
+         * Whether the entry with the given id is to be read, updating the last id read if so.
+         */
+        boolean include(long id) {
+            if (filtered && (id <= lastId || id >= endId)) {
+                return false;
+            }
+            lastId = id;
+            return true;
+        }
 
-        // optional log-fields
-        if ("S".equals(nodeId)) {
-            int jsonDataBeginIndex = serialized.indexOf('{');
-            if (jsonDataBeginIndex == -1) {
-                String sagaName = serialized.substring(0, serialized.length() - 1);
-                return builder.sagaName(sagaName).build();
+        private boolean readChunk() {
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new IllegalStateException("Saga-log is closed: " + sagaLogId);
+                }
+                try {
+                    if (generation != FileSagaLog.this.generation) {
+                        generation = FileSagaLog.this.generation;
+                        filtered = true;
+                        cursor = null;
+                        nextElement = -1;
+                        nextEntry = 0;
+                        endElement = tail ? Long.MAX_VALUE : index.nextElement();
+                    }
+                    long headElement = index.headElement();
+                    if (nextElement < headElement) {
+                        // first chunk, or the elements we were about to read have been truncated
+                        nextElement = headElement;
+                        nextEntry = 0;
+                    }
+                    long chunkEnd = Math.min(endElement, index.nextElement());
+                    if (nextElement >= chunkEnd) {
+                        return false;
+                    }
+                    firstElementSkip = Math.max(nextElement == headElement ? index.headSkip() : 0, nextEntry);
+                    nextEntry = 0;
+                    accessFiles();
+                    if (cursor == null) {
+                        cursor = store.cursor();
+                    }
+                    cursor.seek(nextElement);
+                    for (int i = 0; i < READ_CHUNK_ELEMENTS && nextElement < chunkEnd; i++) {
+                        elements.addLast(reader.read(cursor));
+                        nextElement++;
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } finally {
+                lock.unlock();
             }
-            String sagaName = serialized.substring(0, jsonDataBeginIndex - 1);
-            String jsonData = serialized.substring(jsonDataBeginIndex);
-            return builder.sagaName(sagaName).jsonData(jsonData).build();
+        }
+    }
+
+    private interface ElementReader<E> {
+        E read(FileSagaLogStore.Cursor cursor) throws IOException;
+    }
+
+    interface ElementVisits {
+
+        /**
+         * Visit the entries of the next element.
+         *
+         * @return the number of entries visited, or -1 once all elements have been visited.
+         */
+        int visitNext(FileSagaLogEntryVisitor visitor);
+    }
+
+    private class SnapshotSpliterator extends Spliterators.AbstractSpliterator<SagaLogEntry> {
+        final Snapshot<byte[]> snapshot;
+        final ArrayDeque<SagaLogEntry> entries = new ArrayDeque<>();
+
+        SnapshotSpliterator(Snapshot<byte[]> snapshot) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.snapshot = snapshot;
         }
 
-        int jsonDataBeginIndex = serialized.indexOf('{');
-        if (jsonDataBeginIndex == -1) {
-            return builder.build();
+        @Override
+        public boolean tryAdvance(Consumer<? super SagaLogEntry> action) {
+            while (entries.isEmpty()) {
+                byte[] element = snapshot.next();
+                if (element == null) {
+                    return false;
+                }
+                List<SagaLogEntry> decoded = codec.decode(element);
+                for (SagaLogEntry entry : decoded.subList(Math.min(snapshot.skip, decoded.size()), decoded.size())) {
+                    if (snapshot.include(((FileSagaLogEntryId) entry.getId()).id)) {
+                        entries.addLast(entry);
+                    }
+                }
+            }
+            action.accept(entries.pollFirst());
+            return true;
         }
-        String jsonData = serialized.substring(jsonDataBeginIndex);
-        return builder.jsonData(jsonData).build();
     }
 }
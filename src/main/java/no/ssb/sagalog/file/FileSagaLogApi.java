@@ -0,0 +1,57 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLog;
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogEntryBuilder;
+import no.ssb.sagalog.SagaLogEntryId;
+import no.ssb.sagalog.SagaLogId;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+/**
+ * A file saga-log, single or sharded, as connected by {@link FileSagaLogPool#connect(SagaLogId)}. Adds bulk writes,
+ * reading entries without decoding them, and following the log to what every {@link SagaLog} can do.
+ */
+public interface FileSagaLogApi extends SagaLog {
+
+    /**
+     * Write several entries at once, e.g. the start of all parallel children of a saga step. The entries get
+     * consecutive ids in the order of the builders, unless a builder has an id of its own, and are appended as a
+     * single element, so they are written atomically, all or none surviving a crash, with at most one disk sync. The
+     * entries of a bulk write to a sharded log must belong to the same execution.
+     *
+     * @return a future completed with all entries once they are written according to the durability mode of the log.
+     */
+    CompletableFuture<List<SagaLogEntry>> write(List<SagaLogEntryBuilder> builders);
+
+    /**
+     * Read all live entries of the log as of when this method is called, like {@link #readIncompleteSagas()}, without
+     * decoding them into strings.
+     *
+     * @return the number of entries visited.
+     */
+    long readIncompleteSagas(FileSagaLogEntryVisitor visitor);
+
+    /**
+     * Follow the log, e.g. to replicate it to a standby node, with entries delivered on the common fork-join pool.
+     *
+     * @see #tail(SagaLogEntryId, Executor)
+     */
+    Flow.Publisher<SagaLogEntry> tail(SagaLogEntryId from);
+
+    /**
+     * Follow the log: every subscriber gets the live entries after the entry with the given id, or all live entries
+     * if the id is null, and then every entry as it is written, in id order. Subscribers are completed when the log
+     * is closed, and may subscribe again from the last entry they got once it is opened again.
+     *
+     * @param executor runs the tasks delivering entries to each subscriber, one task at a time per subscriber.
+     */
+    Flow.Publisher<SagaLogEntry> tail(SagaLogEntryId from, Executor executor);
+
+    @Override
+    void close() throws IOException;
+}
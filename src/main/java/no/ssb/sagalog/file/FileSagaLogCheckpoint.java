@@ -0,0 +1,219 @@
+package no.ssb.sagalog.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+/**
+ * Checkpoint of the index of a log, written next to the log so that opening a long-lived log only reads the elements
+ * written after the checkpoint, instead of every element since the log was last truncated.
+ * <p>
+ * The checkpoint holds the live entries of a range of elements: for every element the number of its live entries, and for
+ * every entry its id, execution-id and whether its saga was completed. Only the last entries of the first element
+ * may be live, all entries of the other elements are. Elements are not numbered, as sequence numbers of the store are
+ * counted from when it is opened, but are recognized by the ids of their entries: the head element of the log is
+ * looked up among the elements of the checkpoint by the id of its last entry, which is live as long as the element is
+ * in the log.
+ * <p>
+ * A checkpoint is only written after the elements it covers are synced, and is first written to a file next to it
+ * and then moved in place, so it is either complete or not there. It is deleted before the elements of the log are
+ * rewritten, by compaction or by truncating the whole log, and ignored if it does not match the log.
+ */
+class FileSagaLogCheckpoint {
+
+    static final int MAGIC = 0x534c4350; // "SLCP"
+    static final int VERSION = 1;
+    static final String SUFFIX = ".checkpoint";
+    static final String PREPARED_SUFFIX = ".prepared";
+
+    /**
+     * Path of the checkpoint of the log with the given path, next to the queue-file or directory of the log.
+     */
+    static Path pathOf(Path logPath) {
+        return logPath.resolveSibling(logPath.getFileName() + SUFFIX);
+    }
+
+    static Path preparedPathOf(Path logPath) {
+        return logPath.resolveSibling(logPath.getFileName() + SUFFIX + PREPARED_SUFFIX);
+    }
+
+    /**
+     * Write a checkpoint of the given live positions, in log order, next to the checkpoint of the log. It replaces the
+     * checkpoint only once committed.
+     *
+     * @param headElement the element of the first position.
+     * @return the size in bytes of the checkpoint.
+     */
+    static int prepare(Path logPath, long headElement, List<FileSagaLogIndex.Position> positions, Set<String> completedExecutions) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + positions.size() * 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        Map<String, Integer> executions = new HashMap<>();
+        for (FileSagaLogIndex.Position position : positions) {
+            executions.putIfAbsent(position.executionId, executions.size());
+        }
+        String[] executionIds = new String[executions.size()];
+        executions.forEach((executionId, i) -> executionIds[i] = executionId);
+        out.writeInt(executionIds.length);
+        for (String executionId : executionIds) {
+            byte[] utf8 = executionId.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+            out.writeBoolean(completedExecutions.contains(executionId));
+        }
+        int elements = positions.isEmpty() ? 0 : (int) (positions.get(positions.size() - 1).element - headElement + 1);
+        out.writeInt(elements);
+        int i = 0;
+        for (long element = headElement; element < headElement + elements; element++) {
+            int first = i;
+            while (i < positions.size() && positions.get(i).element == element) {
+                i++;
+            }
+            out.writeInt(i - first);
+            for (int j = first; j < i; j++) {
+                out.writeLong(((FileSagaLogEntryId) positions.get(j).id).id);
+                out.writeInt(executions.get(positions.get(j).executionId));
+            }
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        Path preparedPath = preparedPathOf(logPath);
+        try (FileChannel channel = FileChannel.open(preparedPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        return bytes.size();
+    }
+
+    /**
+     * Replace the checkpoint of the log with the prepared checkpoint.
+     */
+    static void commit(Path logPath) throws IOException {
+        Files.move(preparedPathOf(logPath), pathOf(logPath), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static void delete(Path logPath) throws IOException {
+        Files.deleteIfExists(pathOf(logPath));
+        Files.deleteIfExists(preparedPathOf(logPath));
+    }
+
+    /**
+     * The checkpoint of the log, or null if it has none, or it can not be read.
+     */
+    static FileSagaLogCheckpoint read(Path logPath) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(pathOf(logPath));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (bytes.length < 16) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - 4);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(bytes.length - 4) != (int) crc.getValue()) {
+            return null;
+        }
+        buffer.position(8).limit(bytes.length - 4);
+        try {
+            return new FileSagaLogCheckpoint(buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    private final String[] executionIds;
+    private final boolean[] completed;
+    private final int[] firstEntry; // index of the first entry of each element, and of the end of the last element
+    private final long[] ids;
+    private final int[] executions;
+
+    private FileSagaLogCheckpoint(ByteBuffer buffer) {
+        executionIds = new String[buffer.getInt()];
+        completed = new boolean[executionIds.length];
+        for (int i = 0; i < executionIds.length; i++) {
+            byte[] utf8 = new byte[buffer.getInt()];
+            buffer.get(utf8);
+            executionIds[i] = new String(utf8, StandardCharsets.UTF_8);
+            completed[i] = buffer.get() != 0;
+        }
+        int elements = buffer.getInt();
+        firstEntry = new int[elements + 1];
+        int entries = (buffer.remaining() - elements * 4) / 12;
+        ids = new long[entries];
+        executions = new int[entries];
+        int entry = 0;
+        for (int element = 0; element < elements; element++) {
+            firstEntry[element] = entry;
+            int entryCount = buffer.getInt();
+            for (int i = 0; i < entryCount; i++) {
+                ids[entry] = buffer.getLong();
+                executions[entry] = buffer.getInt();
+                entry++;
+            }
+        }
+        firstEntry[elements] = entry;
+        if (buffer.hasRemaining() || entry != entries) {
+            throw new IllegalArgumentException("Malformed checkpoint");
+        }
+    }
+
+    int elements() {
+        return firstEntry.length - 1;
+    }
+
+    /**
+     * Number of live entries of the element, which are the last entries of the element.
+     */
+    int entryCount(int element) {
+        return firstEntry[element + 1] - firstEntry[element];
+    }
+
+    long id(int element, int entry) {
+        return ids[firstEntry[element] + entry];
+    }
+
+    String executionId(int element, int entry) {
+        return executionIds[executions[firstEntry[element] + entry]];
+    }
+
+    boolean completesSaga(int element, int entry) {
+        return completed[executions[firstEntry[element] + entry]];
+    }
+
+    /**
+     * The element whose last entry has the given id, or -1 if there is none. Searches from the last element, as the
+     * head of the log moves towards the end of the checkpoint as the log is truncated.
+     */
+    int elementWithLastId(long id) {
+        for (int element = elements() - 1; element >= 0; element--) {
+            if (entryCount(element) > 0 && id(element, entryCount(element) - 1) == id) {
+                return element;
+            }
+        }
+        return -1;
+    }
+}
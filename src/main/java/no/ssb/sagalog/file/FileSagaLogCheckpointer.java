@@ -0,0 +1,39 @@
+package no.ssb.sagalog.file;
+
+import java.io.IOException;
+
+/**
+ * Background checkpointer, bounding the number of elements read when a long-lived log is opened. The log is checked
+ * at a fixed interval on the shared {@link FileSagaLogScheduler}, and a checkpoint is written once enough entries, or
+ * bytes of entries, are not covered by the last one. See {@link FileSagaLog#checkpoint()}.
+ */
+class FileSagaLogCheckpointer implements AutoCloseable {
+
+    private final FileSagaLog sagaLog;
+    private final long minEntries;
+    private final long minBytes;
+    private final FileSagaLogScheduler.Task task;
+
+    FileSagaLogCheckpointer(FileSagaLog sagaLog, long intervalMs, long minEntries, long minBytes) {
+        this.sagaLog = sagaLog;
+        this.minEntries = minEntries;
+        this.minBytes = minBytes;
+        this.task = FileSagaLogScheduler.schedule(this::run, intervalMs, false);
+    }
+
+    private void run() {
+        if (sagaLog.uncheckpointedEntries() < minEntries && sagaLog.uncheckpointedBytes() < minBytes) {
+            return;
+        }
+        try {
+            sagaLog.checkpoint();
+        } catch (IOException | RuntimeException e) {
+            // opening the log reads the elements not covered by the last checkpoint, tried again later
+        }
+    }
+
+    @Override
+    public void close() {
+        task.close();
+    }
+}
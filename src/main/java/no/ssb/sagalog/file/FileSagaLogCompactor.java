@@ -0,0 +1,110 @@
+package no.ssb.sagalog.file;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Background compactor, dropping the entries of completed sagas from a log that is otherwise only shrunk by truncating
+ * its head, e.g. when a long-running saga at the head keeps the entries of all sagas completed after it on disk. The
+ * log is checked at a fixed interval on the shared {@link FileSagaLogScheduler}, and compacted once enough entries of
+ * completed sagas have accumulated. See {@link FileSagaLog#compact()}.
+ * <p>
+ * The compacted log is written next to the log and then replaces it. A queue-file is replaced by an atomic move. The
+ * directory of a segmented log is first moved aside and deleted after the compacted directory has been moved in place,
+ * so a crash in between leaves the log to be restored by {@link #recover(Path)} when it is opened.
+ */
+class FileSagaLogCompactor implements AutoCloseable {
+
+    static final String COMPACTING_SUFFIX = ".compacting";
+    static final String REPLACED_SUFFIX = ".replaced";
+
+    private final FileSagaLog sagaLog;
+    private final long minCompletedEntries;
+    private final FileSagaLogScheduler.Task task;
+
+    FileSagaLogCompactor(FileSagaLog sagaLog, long intervalMs, long minCompletedEntries) {
+        this.sagaLog = sagaLog;
+        this.minCompletedEntries = minCompletedEntries;
+        this.task = FileSagaLogScheduler.schedule(this::run, intervalMs, false);
+    }
+
+    private void run() {
+        if (sagaLog.completedEntries() < minCompletedEntries) {
+            return;
+        }
+        try {
+            sagaLog.compact();
+        } catch (IOException | RuntimeException e) {
+            // the log refuses writes if it was left unusable, otherwise compaction is tried again later
+        }
+    }
+
+    static Path compactingPathOf(Path path) {
+        return path.resolveSibling(path.getFileName() + COMPACTING_SUFFIX);
+    }
+
+    static Path replacedPathOf(Path path) {
+        return path.resolveSibling(path.getFileName() + REPLACED_SUFFIX);
+    }
+
+    /**
+     * Replace the log with the compacted log. The meta file of a segmented log is copied into the compacted directory.
+     * The folder of the log is synced after the moves, so the compacted log is durable before its entries are used.
+     */
+    static void replace(Path path, Path compactingPath) throws IOException {
+        Path folder = path.toAbsolutePath().getParent();
+        if (!Files.isDirectory(path)) {
+            Files.move(compactingPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            FileSagaLogStore.syncDirectory(folder);
+            return;
+        }
+        Path metaPath = FileSagaLogMeta.pathOf(path);
+        if (Files.exists(metaPath)) {
+            Path copiedMetaPath = compactingPath.resolve(FileSagaLogMeta.SEGMENTED_FILENAME);
+            Files.copy(metaPath, copiedMetaPath, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel channel = FileChannel.open(copiedMetaPath, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            FileSagaLogStore.syncDirectory(compactingPath);
+        }
+        Path replacedPath = replacedPathOf(path);
+        Files.move(path, replacedPath, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(compactingPath, path, StandardCopyOption.ATOMIC_MOVE);
+        FileSagaLogStore.syncDirectory(folder);
+        delete(replacedPath);
+    }
+
+    /**
+     * Clean up after a compaction interrupted by a crash, restoring the log if it had been moved aside. Also deletes a
+     * copy left by a queue-file interrupted while shrinking, see {@link FileSagaLogQueueFileStore#shrinkingPathOf(Path)}.
+     */
+    static void recover(Path path) throws IOException {
+        Path replacedPath = replacedPathOf(path);
+        if (Files.exists(replacedPath)) {
+            if (Files.exists(path)) {
+                delete(replacedPath);
+            } else {
+                Files.move(replacedPath, path, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        delete(compactingPathOf(path));
+        Files.deleteIfExists(FileSagaLogQueueFileStore.shrinkingPathOf(path));
+    }
+
+    static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            FileSagaLogSegmentedStore.deleteDirectory(path);
+        } else {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Override
+    public void close() {
+        task.close();
+    }
+}
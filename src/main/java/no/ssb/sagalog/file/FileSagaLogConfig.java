@@ -0,0 +1,232 @@
+package no.ssb.sagalog.file;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+class FileSagaLogConfig {
+
+    static final String GROUP_COMMIT_ENABLED = "filesagalog.group-commit.enabled";
+    static final String GROUP_COMMIT_MAX_BATCH_SIZE = "filesagalog.group-commit.max-batch-size";
+    static final String GROUP_COMMIT_MAX_LINGER_MS = "filesagalog.group-commit.max-linger-ms";
+    static final String ENGINE = "filesagalog.engine";
+    static final String SEGMENT_SIZE = "filesagalog.segmented.segment-size";
+    static final String ID_BLOCK_SIZE = "filesagalog.id-block-size";
+    static final String DURABILITY = "filesagalog.durability";
+    static final String DURABILITY_INTERVAL_MS = "filesagalog.durability.interval-ms";
+    static final String DURABILITY_MAX_UNSYNCED_ENTRIES = "filesagalog.durability.max-unsynced-entries";
+    static final String METRICS_PROVIDER = "filesagalog.metrics.provider";
+    static final String SHARDS = "filesagalog.shards";
+    static final String FOLDERS = "filesagalog.folders";
+    static final String COMPACTION_ENABLED = "filesagalog.compaction.enabled";
+    static final String COMPACTION_INTERVAL_MS = "filesagalog.compaction.interval-ms";
+    static final String COMPACTION_MIN_COMPLETED_ENTRIES = "filesagalog.compaction.min-completed-entries";
+    static final String RECOVERY_PARALLELISM = "filesagalog.recovery.parallelism";
+    static final String LOG_IDS_CACHE_ENABLED = "filesagalog.log-ids.cache-enabled";
+    static final String LOG_IDS_RELIST_INTERVAL_MS = "filesagalog.log-ids.relist-interval-ms";
+    static final String COMPRESSION_ENABLED = "filesagalog.compression.enabled";
+    static final String COMPRESSION_THRESHOLD = "filesagalog.compression.threshold";
+    static final String CHECKPOINT_ENABLED = "filesagalog.checkpoint.enabled";
+    static final String CHECKPOINT_INTERVAL_MS = "filesagalog.checkpoint.interval-ms";
+    static final String CHECKPOINT_MIN_ENTRIES = "filesagalog.checkpoint.min-entries";
+    static final String CHECKPOINT_MIN_BYTES = "filesagalog.checkpoint.min-bytes";
+    static final String PREALLOCATE_ENABLED = "filesagalog.preallocate.enabled";
+    static final String PREALLOCATE_INITIAL_SIZE = "filesagalog.preallocate.initial-size";
+    static final String SHRINK_ON_TRUNCATE_ENABLED = "filesagalog.shrink-on-truncate.enabled";
+    static final String HANDLES_MAX_OPEN = "filesagalog.handles.max-open";
+    static final String HANDLES_IDLE_TIMEOUT_MS = "filesagalog.handles.idle-timeout-ms";
+
+    static final Map<String, String> DEFAULTS = Map.ofEntries(
+            Map.entry(GROUP_COMMIT_ENABLED, "false"),
+            Map.entry(GROUP_COMMIT_MAX_BATCH_SIZE, "256"),
+            Map.entry(GROUP_COMMIT_MAX_LINGER_MS, "0"),
+            Map.entry(ENGINE, "queuefile"),
+            Map.entry(SEGMENT_SIZE, String.valueOf(16 * 1024 * 1024)),
+            Map.entry(ID_BLOCK_SIZE, "1000"),
+            Map.entry(DURABILITY, "sync"),
+            Map.entry(DURABILITY_INTERVAL_MS, "100"),
+            Map.entry(DURABILITY_MAX_UNSYNCED_ENTRIES, "10000"),
+            Map.entry(METRICS_PROVIDER, ""),
+            Map.entry(SHARDS, "1"),
+            Map.entry(FOLDERS, ""),
+            Map.entry(COMPACTION_ENABLED, "false"),
+            Map.entry(COMPACTION_INTERVAL_MS, "10000"),
+            Map.entry(COMPACTION_MIN_COMPLETED_ENTRIES, "10000"),
+            Map.entry(RECOVERY_PARALLELISM, "4"),
+            Map.entry(LOG_IDS_CACHE_ENABLED, "false"),
+            Map.entry(LOG_IDS_RELIST_INTERVAL_MS, "30000"),
+            Map.entry(COMPRESSION_ENABLED, "false"),
+            Map.entry(COMPRESSION_THRESHOLD, "1024"),
+            Map.entry(CHECKPOINT_ENABLED, "false"),
+            Map.entry(CHECKPOINT_INTERVAL_MS, "10000"),
+            Map.entry(CHECKPOINT_MIN_ENTRIES, "100000"),
+            Map.entry(CHECKPOINT_MIN_BYTES, String.valueOf(64 * 1024 * 1024)),
+            Map.entry(PREALLOCATE_ENABLED, "true"),
+            Map.entry(PREALLOCATE_INITIAL_SIZE, String.valueOf(1024 * 1024)),
+            Map.entry(SHRINK_ON_TRUNCATE_ENABLED, "false"),
+            Map.entry(HANDLES_MAX_OPEN, "0"),
+            Map.entry(HANDLES_IDLE_TIMEOUT_MS, "0")
+    );
+
+    enum Engine {
+        /**
+         * A single tape2 queue-file per log.
+         */
+        QUEUEFILE,
+        /**
+         * A directory of memory-mapped segment files per log.
+         */
+        SEGMENTED
+    }
+
+    enum Durability {
+        /**
+         * Every write is synced to disk before its future completes.
+         */
+        SYNC,
+        /**
+         * Writes complete once handed to the operating system, and are synced in the background at a fixed
+         * interval, or by the writer once too many entries are unsynced.
+         */
+        INTERVAL,
+        /**
+         * Writes complete once handed to the operating system, which decides when to write them to disk.
+         */
+        OS
+    }
+
+    static FileSagaLogConfig defaults() {
+        return from(Map.of());
+    }
+
+    static FileSagaLogConfig from(Map<String, String> configuration) {
+        return new FileSagaLogConfig(configuration);
+    }
+
+    final boolean groupCommitEnabled;
+    final int groupCommitMaxBatchSize;
+    final long groupCommitMaxLingerMs;
+    final Engine engine;
+    final int segmentSize;
+    final int idBlockSize;
+    final Durability durability;
+    final long durabilityIntervalMs;
+    final long durabilityMaxUnsyncedEntries;
+    final String metricsProvider;
+    final int shards;
+    final List<Path> folders;
+    final boolean compactionEnabled;
+    final long compactionIntervalMs;
+    final long compactionMinCompletedEntries;
+    final int recoveryParallelism;
+    final boolean logIdsCacheEnabled;
+    final long logIdsRelistIntervalMs;
+    final boolean compressionEnabled;
+    final int compressionThreshold;
+    final boolean checkpointEnabled;
+    final long checkpointIntervalMs;
+    final long checkpointMinEntries;
+    final long checkpointMinBytes;
+    final boolean preallocateEnabled;
+    final long preallocateInitialSize;
+    final boolean shrinkOnTruncateEnabled;
+    final int handlesMaxOpen;
+    final long handlesIdleTimeoutMs;
+
+    private FileSagaLogConfig(Map<String, String> configuration) {
+        this.groupCommitEnabled = booleanValue(configuration, GROUP_COMMIT_ENABLED);
+        this.groupCommitMaxBatchSize = intValue(configuration, GROUP_COMMIT_MAX_BATCH_SIZE, 1);
+        this.groupCommitMaxLingerMs = longValue(configuration, GROUP_COMMIT_MAX_LINGER_MS, 0);
+        this.engine = enumValue(Engine.class, configuration, ENGINE);
+        this.segmentSize = intValue(configuration, SEGMENT_SIZE, 4096);
+        this.idBlockSize = intValue(configuration, ID_BLOCK_SIZE, 1);
+        this.durability = enumValue(Durability.class, configuration, DURABILITY);
+        this.durabilityIntervalMs = longValue(configuration, DURABILITY_INTERVAL_MS, 1);
+        this.durabilityMaxUnsyncedEntries = longValue(configuration, DURABILITY_MAX_UNSYNCED_ENTRIES, 1);
+        this.metricsProvider = value(configuration, METRICS_PROVIDER);
+        this.shards = intValue(configuration, SHARDS, 1);
+        this.folders = Arrays.stream(value(configuration, FOLDERS).split(","))
+                .map(String::trim)
+                .filter(folder -> !folder.isEmpty())
+                .map(Paths::get)
+                .collect(Collectors.toUnmodifiableList());
+        this.compactionEnabled = booleanValue(configuration, COMPACTION_ENABLED);
+        this.compactionIntervalMs = longValue(configuration, COMPACTION_INTERVAL_MS, 1);
+        this.compactionMinCompletedEntries = longValue(configuration, COMPACTION_MIN_COMPLETED_ENTRIES, 1);
+        this.recoveryParallelism = intValue(configuration, RECOVERY_PARALLELISM, 1);
+        this.logIdsCacheEnabled = booleanValue(configuration, LOG_IDS_CACHE_ENABLED);
+        this.logIdsRelistIntervalMs = longValue(configuration, LOG_IDS_RELIST_INTERVAL_MS, 1);
+        this.compressionEnabled = booleanValue(configuration, COMPRESSION_ENABLED);
+        this.compressionThreshold = intValue(configuration, COMPRESSION_THRESHOLD, 0);
+        this.checkpointEnabled = booleanValue(configuration, CHECKPOINT_ENABLED);
+        this.checkpointIntervalMs = longValue(configuration, CHECKPOINT_INTERVAL_MS, 1);
+        this.checkpointMinEntries = longValue(configuration, CHECKPOINT_MIN_ENTRIES, 1);
+        this.checkpointMinBytes = longValue(configuration, CHECKPOINT_MIN_BYTES, 1);
+        this.preallocateEnabled = booleanValue(configuration, PREALLOCATE_ENABLED);
+        this.preallocateInitialSize = longValue(configuration, PREALLOCATE_INITIAL_SIZE, 4096);
+        this.shrinkOnTruncateEnabled = booleanValue(configuration, SHRINK_ON_TRUNCATE_ENABLED);
+        this.handlesMaxOpen = intValue(configuration, HANDLES_MAX_OPEN, 0);
+        this.handlesIdleTimeoutMs = longValue(configuration, HANDLES_IDLE_TIMEOUT_MS, 0);
+        if (engine == Engine.QUEUEFILE && durability != Durability.SYNC) {
+            throw new IllegalArgumentException(String.format("Invalid configuration parameter: %s=%s, the queuefile engine always syncs every write, use %s=segmented",
+                    DURABILITY, value(configuration, DURABILITY), ENGINE));
+        }
+    }
+
+    static String value(Map<String, String> configuration, String key) {
+        String value = configuration.get(key);
+        if (value == null || value.trim().isEmpty()) {
+            return DEFAULTS.get(key);
+        }
+        return value.trim();
+    }
+
+    static boolean booleanValue(Map<String, String> configuration, String key) {
+        String value = value(configuration, key);
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new IllegalArgumentException(String.format("Invalid configuration parameter: %s=%s, must be true or false", key, value));
+    }
+
+    static <E extends Enum<E>> E enumValue(Class<E> type, Map<String, String> configuration, String key) {
+        String value = value(configuration, key);
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            String allowed = Arrays.stream(type.getEnumConstants())
+                    .map(constant -> constant.name().toLowerCase(Locale.ROOT))
+                    .collect(Collectors.joining(", "));
+            throw new IllegalArgumentException(String.format("Invalid configuration parameter: %s=%s, must be one of %s", key, value, allowed));
+        }
+    }
+
+    static int intValue(Map<String, String> configuration, String key, int min) {
+        long value = longValue(configuration, key, min);
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Invalid configuration parameter: %s=%s, must be at most %d", key, value, Integer.MAX_VALUE));
+        }
+        return (int) value;
+    }
+
+    static long longValue(Map<String, String> configuration, String key, long min) {
+        String value = value(configuration, key);
+        long parsed;
+        try {
+            parsed = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid configuration parameter: %s=%s, not a number", key, value));
+        }
+        if (parsed < min) {
+            throw new IllegalArgumentException(String.format("Invalid configuration parameter: %s=%s, must be at least %d", key, value, min));
+        }
+        return parsed;
+    }
+}
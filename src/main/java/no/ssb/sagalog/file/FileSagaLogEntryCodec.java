@@ -0,0 +1,688 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogEntryBuilder;
+import no.ssb.sagalog.SagaLogEntryType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes the elements stored in a saga-log file. An element holds one or more entries written together.
+ * <p>
+ * Four element formats are readable:
+ * <ul>
+ * <li>Legacy text: a single entry as space separated UTF-8 text, always starting with the digits or sign of the id.</li>
+ * <li>Text frame: {@code 0x00 0x01 <int count> (<int length> <legacy text entry>)*}</li>
+ * <li>Binary frame: {@code 0x00 0x02 <varint count> (<varint length> <binary entry>)*}</li>
+ * <li>Checksummed binary frame: {@code 0x00 0x03 <int crc32c> <varint count> (<varint length> <binary entry>)*},
+ * where the CRC32C is of all bytes following it.</li>
+ * </ul>
+ * Only checksummed binary frames are written. A binary entry is
+ * {@code <varint id> <flags> <type ordinal> <varint length> <execution id> <varint length> <node id>
+ * [<varint length> <saga name>] [<json data>]}, where the saga name and json data are present only when the
+ * corresponding flag bit is set, and the json data runs to the end of the entry. Strings are UTF-8.
+ * <p>
+ * Json data of at least the compression threshold is written as {@code <varint length> <deflated json data>} with the
+ * compressed flag bit set, unless deflating does not make it smaller. Entries of both kinds are read regardless of the
+ * threshold.
+ */
+class FileSagaLogEntryCodec {
+
+    static final byte FRAME_MAGIC = 0;
+    static final byte TEXT_FRAME_VERSION = 1;
+    static final byte BINARY_FRAME_VERSION = 2;
+    static final byte CHECKSUMMED_FRAME_VERSION = 3;
+    static final int CHECKSUMMED_FRAME_HEADER_LENGTH = 6;
+
+    static final int FLAG_SAGA_NAME = 1;
+    static final int FLAG_JSON_DATA = 1 << 1;
+    static final int FLAG_COMPRESSED = 1 << 2;
+
+    /**
+     * Threshold of a codec that never compresses.
+     */
+    static final int NO_COMPRESSION = Integer.MAX_VALUE;
+
+    /**
+     * Capacity of the largest buffer kept for reuse. A larger buffer is allocated on the heap for the one element or
+     * entry needing it, so that a single large entry does not pin that much memory for the life of a log or thread.
+     */
+    static final int MAX_REUSED_CAPACITY = 1024 * 1024;
+
+    // zlib state is large and costly to set up, so it is kept per thread
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Reusable state of the encoding thread, so that encoding does not allocate once buffers have grown large enough.
+     */
+    private static class Scratch {
+        final CRC32C crc = new CRC32C();
+        ByteBuffer json; // json data to deflate
+        ByteBuffer deflated;
+    }
+
+    private static final SagaLogEntryType[] ENTRY_TYPES = SagaLogEntryType.values();
+
+    private final int compressionThreshold;
+
+    FileSagaLogEntryCodec() {
+        this(NO_COMPRESSION);
+    }
+
+    /**
+     * @param compressionThreshold size in bytes from which json data is compressed.
+     */
+    FileSagaLogEntryCodec(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    byte[] encode(List<SagaLogEntry> entries) {
+        return toArray(encode(entries, null));
+    }
+
+    /**
+     * Encode the entries as a checksummed binary frame into the buffer, from its start, and flip it. Nothing is
+     * allocated, unless the buffer is too small, in which case a larger direct buffer is returned in its place, or a
+     * heap buffer not to be reused if the frame is larger than {@link #MAX_REUSED_CAPACITY}, see
+     * {@link #reusable(ByteBuffer, ByteBuffer)}.
+     *
+     * @param buffer buffer to reuse, or null.
+     */
+    ByteBuffer encode(List<SagaLogEntry> entries, ByteBuffer buffer) {
+        long maxLength = CHECKSUMMED_FRAME_HEADER_LENGTH + varintSize(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            maxLength += maxEncodedLength(entries.get(i));
+        }
+        buffer = ensureCapacity(buffer, maxLength, true);
+        buffer.put(FRAME_MAGIC).put(CHECKSUMMED_FRAME_VERSION).putInt(0);
+        putVarint(buffer, entries.size());
+        Scratch scratch = SCRATCH.get();
+        for (int i = 0; i < entries.size(); i++) {
+            putEntry(entries.get(i), buffer, scratch);
+        }
+        return checksummed(buffer, scratch);
+    }
+
+    /**
+     * Encode the entries of one write into the heap buffer, from its start, each preceded by its length, and flip it,
+     * to be framed together with the entries of other writes by {@link #frame(List, int, ByteBuffer)}. Allocates like
+     * {@link #encode(List, ByteBuffer)}.
+     *
+     * @param buffer buffer to reuse, or null.
+     */
+    ByteBuffer encodeEntries(List<SagaLogEntry> entries, ByteBuffer buffer) {
+        long maxLength = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            maxLength += maxEncodedLength(entries.get(i));
+        }
+        buffer = ensureCapacity(buffer, maxLength, false);
+        Scratch scratch = SCRATCH.get();
+        for (int i = 0; i < entries.size(); i++) {
+            putEntry(entries.get(i), buffer, scratch);
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Checksummed binary frame holding the given number of entries, encoded by {@link #encodeEntries(List, ByteBuffer)}
+     * into the given buffers, whose remaining bytes are consumed. Into the buffer, from its start, as
+     * {@link #encode(List, ByteBuffer)} does.
+     */
+    ByteBuffer frame(List<ByteBuffer> encodedEntries, int entryCount, ByteBuffer buffer) {
+        long length = CHECKSUMMED_FRAME_HEADER_LENGTH + varintSize(entryCount);
+        for (int i = 0; i < encodedEntries.size(); i++) {
+            length += encodedEntries.get(i).remaining();
+        }
+        buffer = ensureCapacity(buffer, length, true);
+        buffer.put(FRAME_MAGIC).put(CHECKSUMMED_FRAME_VERSION).putInt(0);
+        putVarint(buffer, entryCount);
+        for (int i = 0; i < encodedEntries.size(); i++) {
+            buffer.put(encodedEntries.get(i));
+        }
+        return checksummed(buffer, SCRATCH.get());
+    }
+
+    /**
+     * Flip the buffer holding a frame, and write the checksum of its body into its header.
+     */
+    private static ByteBuffer checksummed(ByteBuffer buffer, Scratch scratch) {
+        buffer.flip();
+        buffer.position(CHECKSUMMED_FRAME_HEADER_LENGTH);
+        CRC32C crc = scratch.crc;
+        crc.reset();
+        crc.update(buffer);
+        buffer.position(0);
+        buffer.putInt(2, (int) crc.getValue());
+        return buffer;
+    }
+
+    private static int checksum(byte[] element) {
+        CRC32C crc = SCRATCH.get().crc;
+        crc.reset();
+        crc.update(element, CHECKSUMMED_FRAME_HEADER_LENGTH, element.length - CHECKSUMMED_FRAME_HEADER_LENGTH);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * The buffer, cleared, if it holds the required number of bytes, otherwise a new buffer that does, at least twice
+     * as large up to {@link #MAX_REUSED_CAPACITY}. Beyond that a heap buffer of exactly the required size.
+     */
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, long required, boolean direct) {
+        if (required > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Saga-log element of " + required + " bytes is too large");
+        }
+        if (buffer != null && buffer.capacity() >= required) {
+            return buffer.clear();
+        }
+        if (required > MAX_REUSED_CAPACITY) {
+            return ByteBuffer.allocate((int) required);
+        }
+        int capacity = (int) Math.min(MAX_REUSED_CAPACITY, Math.max(required, buffer == null ? 0 : 2L * buffer.capacity()));
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * The buffer returned by an encoding method if it is to be reused, otherwise the buffer passed to it.
+     */
+    static ByteBuffer reusable(ByteBuffer returned, ByteBuffer passed) {
+        return returned.capacity() <= MAX_REUSED_CAPACITY ? returned : passed;
+    }
+
+    /**
+     * Upper bound of the length of the entry encoded by {@link #putEntry(SagaLogEntry, ByteBuffer, Scratch)}, as no
+     * char takes more than 3 bytes in UTF-8.
+     */
+    private static long maxEncodedLength(SagaLogEntry entry) {
+        long chars = entry.getExecutionId().length() + entry.getNodeId().length()
+                + (entry.getSagaName() == null ? 0 : entry.getSagaName().length())
+                + (entry.getJsonData() == null ? 0 : entry.getJsonData().length());
+        // varints of the entry length, id, and four string lengths, the flags and the type
+        return 5 + 10 + 4 * 5 + 2 + 3 * chars;
+    }
+
+    /**
+     * Write the length of the entry followed by the entry, encoding its strings directly into the buffer.
+     */
+    private void putEntry(SagaLogEntry entry, ByteBuffer buffer, Scratch scratch) {
+        String executionId = entry.getExecutionId();
+        String nodeId = entry.getNodeId();
+        String sagaName = entry.getSagaName();
+        String jsonData = entry.getJsonData();
+        int executionIdLength = utf8Length(executionId);
+        int nodeIdLength = utf8Length(nodeId);
+        int sagaNameLength = sagaName == null ? 0 : utf8Length(sagaName);
+        int jsonDataLength = jsonData == null ? 0 : utf8Length(jsonData);
+        ByteBuffer deflated = null;
+        if (jsonData != null && jsonDataLength >= compressionThreshold) {
+            deflated = deflate(jsonData, jsonDataLength, scratch);
+        }
+        long id = ((FileSagaLogEntryId) entry.getId()).id;
+        int length = varintSize(id) + 2
+                + varintSize(executionIdLength) + executionIdLength
+                + varintSize(nodeIdLength) + nodeIdLength
+                + (sagaName == null ? 0 : varintSize(sagaNameLength) + sagaNameLength)
+                + (deflated == null ? jsonDataLength : varintSize(jsonDataLength) + deflated.remaining());
+        putVarint(buffer, length);
+        putVarint(buffer, id);
+        buffer.put((byte) ((sagaName == null ? 0 : FLAG_SAGA_NAME) | (jsonData == null ? 0 : FLAG_JSON_DATA) | (deflated == null ? 0 : FLAG_COMPRESSED)));
+        buffer.put((byte) entry.getEntryType().ordinal());
+        putVarint(buffer, executionIdLength);
+        putUtf8(buffer, executionId);
+        putVarint(buffer, nodeIdLength);
+        putUtf8(buffer, nodeId);
+        if (sagaName != null) {
+            putVarint(buffer, sagaNameLength);
+            putUtf8(buffer, sagaName);
+        }
+        if (deflated != null) {
+            putVarint(buffer, jsonDataLength);
+            buffer.put(deflated);
+        } else if (jsonData != null) {
+            putUtf8(buffer, jsonData);
+        }
+    }
+
+    /**
+     * The deflated UTF-8 bytes of the json data in a scratch buffer, or null if deflating does not make them smaller.
+     */
+    private static ByteBuffer deflate(String jsonData, int utf8Length, Scratch scratch) {
+        ByteBuffer input = ensureCapacity(scratch.json, utf8Length, false);
+        scratch.json = reusable(input, scratch.json);
+        putUtf8(input, jsonData);
+        input.flip();
+        ByteBuffer deflated = ensureCapacity(scratch.deflated, utf8Length, false);
+        scratch.deflated = reusable(deflated, scratch.deflated);
+        Deflater deflater = DEFLATERS.get();
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            int length = deflater.deflate(deflated);
+            if (!deflater.finished() || length >= utf8Length - varintSize(utf8Length)) {
+                return null;
+            }
+            return deflated.flip();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Number of bytes of the string in UTF-8, as encoded by {@link #putUtf8(ByteBuffer, String)}.
+     */
+    static int utf8Length(String value) {
+        int length = value.length();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    length++;
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    length += 2; // 4 bytes for the pair
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    length += 2;
+                }
+                // an unpaired surrogate is replaced by '?', as String.getBytes does
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encode the string as UTF-8 into the buffer without allocating, giving the same bytes as String.getBytes.
+     */
+    static void putUtf8(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Whether the element is intact, e.g. not torn by a crash while it was written. Checksummed frames are verified by
+     * their checksum, elements of the earlier formats by decoding them.
+     */
+    boolean verify(byte[] element) {
+        if (element.length >= CHECKSUMMED_FRAME_HEADER_LENGTH && element[0] == FRAME_MAGIC && element[1] == CHECKSUMMED_FRAME_VERSION) {
+            return checksum(element) == ByteBuffer.wrap(element).getInt(2);
+        }
+        try {
+            decode(element);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Offset of the entry count of a binary frame of the given version, or -1 if it is not a binary frame.
+     */
+    private static int binaryFrameBody(byte version) {
+        if (version == CHECKSUMMED_FRAME_VERSION) {
+            return CHECKSUMMED_FRAME_HEADER_LENGTH;
+        }
+        return version == BINARY_FRAME_VERSION ? 2 : -1;
+    }
+
+    private static byte[] inflate(ByteBuffer buffer, int end) {
+        byte[] inflated = new byte[(int) getVarint(buffer)];
+        Inflater inflater = INFLATERS.get();
+        try {
+            ByteBuffer input = buffer.duplicate();
+            input.limit(end);
+            inflater.setInput(input);
+            if (inflater.inflate(inflated) != inflated.length || !inflater.finished()) {
+                throw new IllegalStateException("Malformed compressed json data in saga-log entry");
+            }
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Malformed compressed json data in saga-log entry", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Whether the entry completes its saga, either as the end of the end node, or as the compensation of the start node
+     * after an abort.
+     */
+    static boolean completesSaga(SagaLogEntry entry) {
+        return (entry.getEntryType() == SagaLogEntryType.End && "E".equals(entry.getNodeId()))
+                || (entry.getEntryType() == SagaLogEntryType.Comp && "S".equals(entry.getNodeId()));
+    }
+
+    List<SagaLogEntry> decode(byte[] element) {
+        if (element.length == 0 || element[0] != FRAME_MAGIC) {
+            return Collections.singletonList(decodeText(element));
+        }
+        byte version = element[1];
+        if (binaryFrameBody(version) != -1) {
+            return decodeBinaryFrame(element);
+        }
+        if (version == TEXT_FRAME_VERSION) {
+            return decodeTextFrame(element);
+        }
+        throw new IllegalStateException("Unsupported saga-log frame version: " + version);
+    }
+
+    /**
+     * Decode only the entry at the given index of the element, skipping over the other entries without decoding them.
+     */
+    SagaLogEntry decode(byte[] element, int entryIndex) {
+        if (element.length == 0 || element[0] != FRAME_MAGIC) {
+            if (entryIndex != 0) {
+                throw new IndexOutOfBoundsException("Entry " + entryIndex + " of single entry element");
+            }
+            return decodeText(element);
+        }
+        byte version = element[1];
+        int body = binaryFrameBody(version);
+        if (body != -1) {
+            ByteBuffer buffer = ByteBuffer.wrap(element, body, element.length - body);
+            int count = (int) getVarint(buffer);
+            if (entryIndex >= count) {
+                throw new IndexOutOfBoundsException("Entry " + entryIndex + " of element with " + count + " entries");
+            }
+            for (int i = 0; i < entryIndex; i++) {
+                int length = (int) getVarint(buffer);
+                buffer.position(buffer.position() + length);
+            }
+            int length = (int) getVarint(buffer);
+            return decodeEntry(element, buffer.position(), length);
+        }
+        if (version == TEXT_FRAME_VERSION) {
+            return decodeTextFrame(element).get(entryIndex);
+        }
+        throw new IllegalStateException("Unsupported saga-log frame version: " + version);
+    }
+
+    /**
+     * Visit the id and execution-id of every entry in the element, and whether it completes its saga. Binary entries
+     * are only decoded up to and including the execution-id, the rest of the entry is skipped.
+     */
+    void visitHeaders(byte[] element, HeaderVisitor visitor) {
+        int body = element.length < 2 || element[0] != FRAME_MAGIC ? -1 : binaryFrameBody(element[1]);
+        if (body == -1) {
+            List<SagaLogEntry> entries = decode(element);
+            for (int i = 0; i < entries.size(); i++) {
+                SagaLogEntry entry = entries.get(i);
+                visitor.visit(i, entries.size(), ((FileSagaLogEntryId) entry.getId()).id, completesSaga(entry), entry.getExecutionId());
+            }
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(element, body, element.length - body);
+        int count = (int) getVarint(buffer);
+        for (int i = 0; i < count; i++) {
+            int length = (int) getVarint(buffer);
+            int next = buffer.position() + length;
+            long id = getVarint(buffer);
+            buffer.get(); // flags
+            SagaLogEntryType entryType = ENTRY_TYPES[buffer.get()];
+            String executionId = getString(buffer);
+            boolean completesSaga = false;
+            if (entryType == SagaLogEntryType.End || entryType == SagaLogEntryType.Comp) {
+                // compare the node-id without decoding it
+                int nodeIdLength = (int) getVarint(buffer);
+                completesSaga = nodeIdLength == 1 && element[buffer.position()] == (entryType == SagaLogEntryType.End ? 'E' : 'S');
+            }
+            visitor.visit(i, count, id, completesSaga, executionId);
+            buffer.position(next);
+        }
+    }
+
+    interface HeaderVisitor {
+        void visit(int entryIndex, int entryCount, long id, boolean completesSaga, String executionId);
+    }
+
+    /**
+     * Visit the entries of the element from the given entry index without decoding their strings. The fields of binary
+     * entries are views of the element, except compressed json data, which is inflated. Entries of the text formats
+     * are decoded and their fields encoded again.
+     *
+     * @return the number of entries visited.
+     */
+    int visitEntries(ByteBuffer element, int fromEntry, FileSagaLogEntryVisitor visitor) {
+        int body = element.remaining() < 2 || element.get(element.position()) != FRAME_MAGIC ? -1 : binaryFrameBody(element.get(element.position() + 1));
+        if (body == -1) {
+            byte[] bytes = new byte[element.remaining()];
+            element.duplicate().get(bytes);
+            List<SagaLogEntry> entries = decode(bytes);
+            for (SagaLogEntry entry : entries.subList(Math.min(fromEntry, entries.size()), entries.size())) {
+                visitor.visit(((FileSagaLogEntryId) entry.getId()).id, entry.getEntryType(), utf8(entry.getExecutionId()),
+                        utf8(entry.getNodeId()), utf8(entry.getSagaName()), utf8(entry.getJsonData()));
+            }
+            return Math.max(0, entries.size() - fromEntry);
+        }
+        ByteBuffer buffer = element.duplicate();
+        buffer.position(buffer.position() + body);
+        ByteBuffer executionId = element.duplicate();
+        ByteBuffer nodeId = element.duplicate();
+        ByteBuffer sagaName = element.duplicate();
+        ByteBuffer jsonData = element.duplicate();
+        int count = (int) getVarint(buffer);
+        for (int i = 0; i < count; i++) {
+            int length = (int) getVarint(buffer);
+            int end = buffer.position() + length;
+            if (i < fromEntry) {
+                buffer.position(end);
+                continue;
+            }
+            long id = getVarint(buffer);
+            int flags = buffer.get();
+            SagaLogEntryType entryType = ENTRY_TYPES[buffer.get()];
+            view(buffer, executionId, (int) getVarint(buffer));
+            view(buffer, nodeId, (int) getVarint(buffer));
+            boolean hasSagaName = (flags & FLAG_SAGA_NAME) != 0;
+            if (hasSagaName) {
+                view(buffer, sagaName, (int) getVarint(buffer));
+            }
+            boolean hasJsonData = (flags & FLAG_JSON_DATA) != 0;
+            ByteBuffer json = null;
+            if (hasJsonData && (flags & FLAG_COMPRESSED) != 0) {
+                json = ByteBuffer.wrap(inflate(buffer, end)).asReadOnlyBuffer();
+            } else if (hasJsonData) {
+                view(buffer, jsonData, end - buffer.position());
+                json = jsonData;
+            }
+            visitor.visit(id, entryType, executionId, nodeId, hasSagaName ? sagaName : null, json);
+            buffer.position(end);
+        }
+        return Math.max(0, count - fromEntry);
+    }
+
+    /**
+     * Point the view at the given number of bytes at the position of the buffer, and advance the buffer past them.
+     */
+    private static void view(ByteBuffer buffer, ByteBuffer view, int length) {
+        view.clear();
+        view.limit(buffer.position() + length);
+        view.position(buffer.position());
+        buffer.position(buffer.position() + length);
+    }
+
+    private static ByteBuffer utf8(String value) {
+        return value == null ? null : ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    private List<SagaLogEntry> decodeBinaryFrame(byte[] element) {
+        int body = binaryFrameBody(element[1]);
+        ByteBuffer buffer = ByteBuffer.wrap(element, body, element.length - body);
+        int count = (int) getVarint(buffer);
+        List<SagaLogEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = (int) getVarint(buffer);
+            entries.add(decodeEntry(element, buffer.position(), length));
+            buffer.position(buffer.position() + length);
+        }
+        return entries;
+    }
+
+    SagaLogEntry decodeEntry(byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        int end = offset + length;
+        SagaLogEntryBuilder builder = new SagaLogEntryBuilder();
+        builder.id(new FileSagaLogEntryId(getVarint(buffer)));
+        int flags = buffer.get();
+        builder.entryType(ENTRY_TYPES[buffer.get()]);
+        builder.executionId(getString(buffer));
+        builder.nodeId(getString(buffer));
+        if ((flags & FLAG_SAGA_NAME) != 0) {
+            builder.sagaName(getString(buffer));
+        }
+        if ((flags & FLAG_JSON_DATA) != 0 && (flags & FLAG_COMPRESSED) != 0) {
+            builder.jsonData(new String(inflate(buffer, end), StandardCharsets.UTF_8));
+        } else if ((flags & FLAG_JSON_DATA) != 0) {
+            builder.jsonData(new String(bytes, buffer.position(), end - buffer.position(), StandardCharsets.UTF_8));
+        }
+        return builder.build();
+    }
+
+    private List<SagaLogEntry> decodeTextFrame(byte[] element) {
+        ByteBuffer buffer = ByteBuffer.wrap(element, 2, element.length - 2);
+        int count = buffer.getInt();
+        List<SagaLogEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] textEntry = new byte[buffer.getInt()];
+            buffer.get(textEntry);
+            entries.add(decodeText(textEntry));
+        }
+        return entries;
+    }
+
+    /**
+     * The original space separated entry format. Kept for reading logs written by earlier versions and for comparing
+     * the two codecs.
+     */
+    byte[] encodeText(SagaLogEntry entry) {
+        String serializedString = ((FileSagaLogEntryId) entry.getId()).id
+                + " " + entry.getExecutionId()
+                + " " + entry.getEntryType()
+                + " " + entry.getNodeId()
+                + (entry.getSagaName() == null ? "" : " " + entry.getSagaName())
+                + (entry.getJsonData() == null ? "" : " " + entry.getJsonData());
+        return serializedString.getBytes(StandardCharsets.UTF_8);
+    }
+
+    SagaLogEntry decodeText(byte[] bytes) {
+        String serialized = new String(bytes, StandardCharsets.UTF_8);
+        SagaLogEntryBuilder builder = new SagaLogEntryBuilder();
+
+        // mandatory log-fields
+
+        int idEndIndex = serialized.indexOf(' ');
+        String id = serialized.substring(0, idEndIndex);
+        serialized = serialized.substring(idEndIndex + 1);
+
+        builder.id(new FileSagaLogEntryId(Long.parseLong(id)));
+
+        int executionIdEndIndex = serialized.indexOf(' ');
+        String executionId = serialized.substring(0, executionIdEndIndex);
+        serialized = serialized.substring(executionIdEndIndex + 1);
+
+        builder.executionId(executionId);
+
+        int entryTypeEndIndex = serialized.indexOf(' ');
+        SagaLogEntryType entryType = SagaLogEntryType.valueOf(serialized.substring(0, entryTypeEndIndex));
+        serialized = serialized.substring(entryTypeEndIndex + 1);
+
+        builder.entryType(entryType);
+
+        int nodeIdEndIdex = serialized.indexOf(' ');
+        if (nodeIdEndIdex == -1) {
+            return builder.nodeId(serialized).build();
+        }
+
+        String nodeId = serialized.substring(0, nodeIdEndIdex);
+        serialized = serialized.substring(nodeIdEndIdex + 1);
+
+        builder.nodeId(nodeId);
+
+        // optional log-fields
+        if ("S".equals(nodeId)) {
+            int jsonDataBeginIndex = serialized.indexOf('{');
+            if (jsonDataBeginIndex == -1) {
+                String sagaName = serialized.substring(0, serialized.length() - 1);
+                return builder.sagaName(sagaName).build();
+            }
+            String sagaName = serialized.substring(0, jsonDataBeginIndex - 1);
+            String jsonData = serialized.substring(jsonDataBeginIndex);
+            return builder.sagaName(sagaName).jsonData(jsonData).build();
+        }
+
+        int jsonDataBeginIndex = serialized.indexOf('{');
+        if (jsonDataBeginIndex == -1) {
+            return builder.build();
+        }
+        String jsonData = serialized.substring(jsonDataBeginIndex);
+        return builder.jsonData(jsonData).build();
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = (int) getVarint(buffer);
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint in saga-log entry");
+    }
+}
@@ -0,0 +1,20 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntryType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives entries read without decoding them into strings, e.g. for replicating entries or parsing the json data
+ * directly. String fields are UTF-8 between the position and limit of read-only buffers, which are views of the file
+ * where the storage engine allows it. The buffers are only valid during the call, and must be copied to be kept.
+ */
+@FunctionalInterface
+public interface FileSagaLogEntryVisitor {
+
+    /**
+     * @param sagaName null if the entry has no saga name.
+     * @param jsonData null if the entry has no json data.
+     */
+    void visit(long id, SagaLogEntryType entryType, ByteBuffer executionId, ByteBuffer nodeId, ByteBuffer sagaName, ByteBuffer jsonData);
+}
@@ -0,0 +1,130 @@
+package no.ssb.sagalog.file;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cache of the open files of the logs of a pool, capping the number of file descriptors and mappings held by logs that
+ * are connected but mostly idle. Logs are opened by the first operation on them, see {@link FileSagaLogLazy}. They
+ * keep their index in memory and only close the files of their store when evicted, which are opened again by the next
+ * operation on the log, see {@link FileSagaLogStore#release()}.
+ * <p>
+ * Logs report every operation to the cache. A single dedicated thread evicts the least recently used logs once more
+ * than the maximum number of logs have open files, and logs idle for longer than the idle timeout, so the maximum may
+ * briefly be exceeded.
+ */
+class FileSagaLogHandles implements AutoCloseable {
+
+    private final int maxOpen;
+    private final long idleTimeoutNanos;
+    private final FileSagaLogMetrics metrics;
+    private final Set<FileSagaLog> open = ConcurrentHashMap.newKeySet();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * @param maxOpen       maximum number of logs with open files, or 0 for no maximum.
+     * @param idleTimeoutMs time after which the files of a log not used are closed, or 0 to keep them open.
+     */
+    FileSagaLogHandles(int maxOpen, long idleTimeoutMs, FileSagaLogMetrics metrics) {
+        this.maxOpen = maxOpen;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        this.metrics = metrics;
+        this.thread = new Thread(this::run, "filesagalog-handles");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * The log was used, opening its files if it was just opened or its files were evicted. Called holding the lock of
+     * the log, or by its constructor.
+     */
+    void accessed(FileSagaLog sagaLog, boolean reopened) {
+        metrics.handleAccess(sagaLog.id(), !reopened);
+        if (reopened) {
+            opened(sagaLog);
+        }
+    }
+
+    private void opened(FileSagaLog sagaLog) {
+        open.add(sagaLog);
+        if (maxOpen > 0 && open.size() > maxOpen) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    void closed(FileSagaLog sagaLog) {
+        open.remove(sagaLog);
+    }
+
+    /**
+     * Number of logs with open files.
+     */
+    int openLogs() {
+        return open.size();
+    }
+
+    private void run() {
+        while (!closed) {
+            long now = System.nanoTime();
+            long nextIdle = idleTimeoutNanos > 0 ? evictIdle(now) : Long.MAX_VALUE;
+            if (maxOpen > 0 && open.size() > maxOpen) {
+                evictLeastRecentlyUsed();
+            }
+            if (nextIdle == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, nextIdle);
+            }
+        }
+    }
+
+    /**
+     * Evict the logs idle longer than the timeout.
+     *
+     * @return the time until the next log becomes idle for too long, if it is not used meanwhile.
+     */
+    private long evictIdle(long now) {
+        long next = idleTimeoutNanos;
+        for (FileSagaLog sagaLog : open) {
+            long idle = now - sagaLog.lastAccessNanos();
+            if (idle >= idleTimeoutNanos) {
+                evict(sagaLog);
+            } else {
+                next = Math.min(next, idleTimeoutNanos - idle);
+            }
+        }
+        return next;
+    }
+
+    private void evictLeastRecentlyUsed() {
+        List<FileSagaLog> logs = new ArrayList<>(open);
+        logs.sort(Comparator.comparingLong(FileSagaLog::lastAccessNanos));
+        for (int i = 0; i < logs.size() - maxOpen; i++) {
+            evict(logs.get(i));
+        }
+    }
+
+    private void evict(FileSagaLog sagaLog) {
+        open.remove(sagaLog);
+        if (sagaLog.releaseFiles()) {
+            metrics.handleEvicted(sagaLog.id());
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
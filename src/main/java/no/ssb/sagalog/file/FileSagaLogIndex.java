@@ -0,0 +1,255 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogEntryId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory index of the live entries of a saga-log, by position. The position of an entry is the sequence number of
+ * the element holding it, counted from when the log was opened, and the index of the entry within that element.
+ * Entries are looked up by id or by execution-id.
+ * <p>
+ * Executions with an entry completing the saga are completed. The number of indexed entries of completed executions estimates how much
+ * compaction would reclaim.
+ * <p>
+ * Truncation moves the head position, found by id without decoding any entry, and then reclaims the positions before
+ * it, so a truncated log holds no stale positions even if nothing is added to it afterwards. Every position is
+ * reclaimed once, so reclaiming costs a constant amount per entry added. Positions are kept in log order in a list,
+ * so the live positions are found by binary search.
+ * <p>
+ * Not thread-safe, callers must hold the lock guarding the log file.
+ */
+class FileSagaLogIndex {
+
+    static class Position {
+        final long element;
+        final int entry;
+        final boolean lastInElement;
+        final SagaLogEntryId id;
+        final String executionId;
+
+        Position(long element, int entry, boolean lastInElement, SagaLogEntryId id, String executionId) {
+            this.element = element;
+            this.entry = entry;
+            this.lastInElement = lastInElement;
+            this.id = id;
+            this.executionId = executionId;
+        }
+    }
+
+    private final ArrayList<Position> positions = new ArrayList<>();
+    private int firstPosition; // positions before it are reclaimed, and removed from the list once they are half of it
+    private final Map<SagaLogEntryId, Position> positionById = new HashMap<>();
+    private final Map<String, ArrayDeque<Position>> positionsByExecutionId = new HashMap<>();
+    private final Set<String> completedExecutions = new HashSet<>();
+    private long completedEntries;
+    private long headElement;
+    private int headEntry;
+    private long nextElement;
+
+    /**
+     * Sequence number of the first element in the log file.
+     */
+    long headElement() {
+        return headElement;
+    }
+
+    /**
+     * Sequence number the next element appended to the log file will get.
+     */
+    long nextElement() {
+        return nextElement;
+    }
+
+    /**
+     * Index an element appended to the log file holding the given entries, in order.
+     */
+    void add(long element, List<SagaLogEntry> entries) {
+        for (int i = 0; i < entries.size(); i++) {
+            SagaLogEntry entry = entries.get(i);
+            add(element, i, entries.size(), entry.getId(), FileSagaLogEntryCodec.completesSaga(entry), entry.getExecutionId());
+        }
+    }
+
+    /**
+     * Index one entry, used while rebuilding the index from the elements already in the log file. The element must be
+     * either the last element added or the one after it.
+     */
+    void add(long element, int entry, int entryCount, SagaLogEntryId id, boolean completesSaga, String executionId) {
+        ArrayDeque<Position> executionPositions = positionsByExecutionId.computeIfAbsent(executionId, k -> new ArrayDeque<>(8));
+        // share execution-id string among all positions of the same execution
+        String sharedExecutionId = executionPositions.isEmpty() ? executionId : executionPositions.peekFirst().executionId;
+        Position position = new Position(element, entry, entry == entryCount - 1, id, sharedExecutionId);
+        positions.add(position);
+        // ids are unique unless assigned by the client, in which case truncate applies to the first occurrence
+        positionById.putIfAbsent(id, position);
+        executionPositions.addLast(position);
+        if (completesSaga && completedExecutions.add(sharedExecutionId)) {
+            completedEntries += executionPositions.size();
+        } else if (!completedExecutions.isEmpty() && completedExecutions.contains(sharedExecutionId)) {
+            completedEntries++;
+        }
+        nextElement = Math.max(nextElement, element + 1);
+    }
+
+    /**
+     * Number of indexed entries of completed executions.
+     */
+    long completedEntries() {
+        return completedEntries;
+    }
+
+    /**
+     * Execution-ids of all completed executions with indexed entries.
+     */
+    Set<String> completedExecutions() {
+        return Set.copyOf(completedExecutions);
+    }
+
+    /**
+     * Position of the live entry with the given id, or null if there is no such entry.
+     */
+    Position positionOf(SagaLogEntryId id) {
+        Position position = positionById.get(id);
+        if (position == null || !isLive(position)) {
+            return null;
+        }
+        return position;
+    }
+
+    /**
+     * Position of the last live entry with an id up to and including the given id, or null if there is none. Ids must
+     * be increasing in log order. Found by binary search over the live entries.
+     */
+    Position lastPositionThrough(long id) {
+        int live = firstLivePosition();
+        int low = live;
+        int high = positions.size();
+        // the first live position with a greater id
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (((FileSagaLogEntryId) positions.get(middle).id).id > id) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low > live ? positions.get(low - 1) : null;
+    }
+
+    /**
+     * Index in the list of the first live position, or the size of the list if there is none.
+     */
+    private int firstLivePosition() {
+        int low = firstPosition;
+        int high = positions.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (isLive(positions.get(middle))) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Positions of all live entries of the execution, in log order.
+     */
+    List<Position> positionsOf(String executionId) {
+        ArrayDeque<Position> executionPositions = positionsByExecutionId.get(executionId);
+        if (executionPositions == null) {
+            return Collections.emptyList();
+        }
+        List<Position> result = new ArrayList<>(executionPositions.size());
+        for (Position position : executionPositions) {
+            if (isLive(position)) {
+                result.add(position);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Positions of all live entries, in log order.
+     */
+    List<Position> livePositions() {
+        return new ArrayList<>(positions.subList(firstLivePosition(), positions.size()));
+    }
+
+    /**
+     * Number of entries at the start of the head element that are no longer live.
+     */
+    int headSkip() {
+        return headEntry;
+    }
+
+    /**
+     * Drop all entries before the given position. Elements before the element of the position are expected to already
+     * be removed from the log file.
+     */
+    void truncateBefore(long element, int entry) {
+        headElement = element;
+        headEntry = entry;
+        reclaim();
+    }
+
+    private boolean isLive(Position position) {
+        return position.element > headElement || (position.element == headElement && position.entry >= headEntry);
+    }
+
+    /**
+     * Remove the positions before the head from the list and the maps.
+     */
+    private void reclaim() {
+        while (firstPosition < positions.size()) {
+            Position first = positions.get(firstPosition);
+            if (isLive(first)) {
+                break;
+            }
+            positions.set(firstPosition++, null);
+            positionById.remove(first.id, first);
+            ArrayDeque<Position> executionPositions = positionsByExecutionId.get(first.executionId);
+            executionPositions.pollFirst();
+            boolean completed = !completedExecutions.isEmpty() && completedExecutions.contains(first.executionId);
+            if (completed) {
+                completedEntries--;
+            }
+            if (executionPositions.isEmpty()) {
+                positionsByExecutionId.remove(first.executionId);
+                if (completed) {
+                    completedExecutions.remove(first.executionId);
+                }
+            }
+        }
+        if (firstPosition == positions.size()) {
+            // all truncated, release the array of a log that may stay idle
+            positions.clear();
+            positions.trimToSize();
+            firstPosition = 0;
+        } else if (firstPosition > 0 && firstPosition >= positions.size() / 2) {
+            positions.subList(0, firstPosition).clear();
+            firstPosition = 0;
+        }
+    }
+
+    void clear() {
+        positions.clear();
+        firstPosition = 0;
+        positionById.clear();
+        positionsByExecutionId.clear();
+        completedExecutions.clear();
+        completedEntries = 0;
+        headElement = nextElement;
+        headEntry = 0;
+    }
+}
@@ -6,7 +6,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.ServiceLoader;
 
 public class FileSagaLogInitializer implements SagaLogInitializer {
 
@@ -23,16 +25,39 @@ public class FileSagaLogInitializer implements SagaLogInitializer {
         if (clusterInstanceId == null || clusterInstanceId.trim().isEmpty()) {
             throw new IllegalArgumentException("Missing configuration parameter: cluster.instance-id");
         }
+        FileSagaLogConfig config = FileSagaLogConfig.from(configuration);
         try {
             Files.createDirectories(folder);
+            for (Path shardFolder : config.folders) {
+                Files.createDirectories(shardFolder);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return new FileSagaLogPool(folder, clusterInstanceId);
+        return new FileSagaLogPool(folder, clusterInstanceId, config, loadMetrics(config.metricsProvider));
+    }
+
+    /**
+     * The metrics implementation with the given class name, or none if no name is given, so that a provider merely
+     * found on the class path never takes measurements.
+     */
+    static FileSagaLogMetrics loadMetrics(String provider) {
+        if (provider.isEmpty()) {
+            return FileSagaLogMetrics.NOOP;
+        }
+        for (FileSagaLogMetrics metrics : ServiceLoader.load(FileSagaLogMetrics.class)) {
+            if (metrics.getClass().getName().equals(provider)) {
+                return metrics;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Invalid configuration parameter: %s=%s, no such metrics provider found", FileSagaLogConfig.METRICS_PROVIDER, provider));
     }
 
     public Map<String, String> configurationOptionsAndDefaults() {
-        return Map.of("filesagalog.folder", "target/test-sagalog",
-                "cluster.instance-id", "01");
+        Map<String, String> optionsAndDefaults = new LinkedHashMap<>();
+        optionsAndDefaults.put("filesagalog.folder", "target/test-sagalog");
+        optionsAndDefaults.put("cluster.instance-id", "01");
+        optionsAndDefaults.putAll(FileSagaLogConfig.DEFAULTS);
+        return optionsAndDefaults;
     }
 }
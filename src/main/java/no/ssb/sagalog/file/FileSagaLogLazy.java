@@ -0,0 +1,140 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogEntryBuilder;
+import no.ssb.sagalog.SagaLogEntryId;
+import no.ssb.sagalog.SagaLogId;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * A log connected by a pool that caps its open files, opened by the first operation on it instead of when it is
+ * connected, so that connecting many logs that are mostly idle neither opens their files nor reads them into an index.
+ * Once opened, the files of the log are closed and opened again by the cache of open files, see
+ * {@link FileSagaLogHandles}.
+ */
+class FileSagaLogLazy implements FileSagaLogApi {
+
+    private final SagaLogId sagaLogId;
+    private final Function<SagaLogId, FileSagaLogApi> opener;
+    // not a monitor, which would pin the carrier of a virtual thread opening the log holding it
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile FileSagaLogApi sagaLog; // written holding the lock
+    private boolean closed; // guarded by lock
+
+    FileSagaLogLazy(SagaLogId sagaLogId, Function<SagaLogId, FileSagaLogApi> opener) {
+        this.sagaLogId = sagaLogId;
+        this.opener = opener;
+    }
+
+    private FileSagaLogApi sagaLog() {
+        FileSagaLogApi opened = sagaLog;
+        if (opened != null) {
+            return opened;
+        }
+        lock.lock();
+        try {
+            if (sagaLog == null) {
+                if (closed) {
+                    throw new IllegalStateException("Saga-log is closed: " + sagaLogId);
+                }
+                sagaLog = opener.apply(sagaLogId);
+            }
+            return sagaLog;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public SagaLogId id() {
+        return sagaLogId;
+    }
+
+    @Override
+    public CompletableFuture<SagaLogEntry> write(SagaLogEntryBuilder builder) {
+        return sagaLog().write(builder);
+    }
+
+    @Override
+    public CompletableFuture<List<SagaLogEntry>> write(List<SagaLogEntryBuilder> builders) {
+        return sagaLog().write(builders);
+    }
+
+    @Override
+    public CompletableFuture<Void> truncate(SagaLogEntryId id) {
+        return sagaLog().truncate(id);
+    }
+
+    @Override
+    public CompletableFuture<Void> truncate() {
+        return sagaLog().truncate();
+    }
+
+    @Override
+    public Stream<SagaLogEntry> readIncompleteSagas() {
+        return sagaLog().readIncompleteSagas();
+    }
+
+    @Override
+    public long readIncompleteSagas(FileSagaLogEntryVisitor visitor) {
+        return sagaLog().readIncompleteSagas(visitor);
+    }
+
+    @Override
+    public Stream<SagaLogEntry> readEntries(String executionId) {
+        return sagaLog().readEntries(executionId);
+    }
+
+    @Override
+    public Flow.Publisher<SagaLogEntry> tail(SagaLogEntryId from) {
+        return sagaLog().tail(from);
+    }
+
+    @Override
+    public Flow.Publisher<SagaLogEntry> tail(SagaLogEntryId from, Executor executor) {
+        return sagaLog().tail(from, executor);
+    }
+
+    @Override
+    public String toString(SagaLogEntryId id) {
+        return sagaLog().toString(id);
+    }
+
+    @Override
+    public SagaLogEntryId fromString(String idString) {
+        return sagaLog().fromString(idString);
+    }
+
+    @Override
+    public byte[] toBytes(SagaLogEntryId id) {
+        return sagaLog().toBytes(id);
+    }
+
+    @Override
+    public SagaLogEntryId fromBytes(byte[] idBytes) {
+        return sagaLog().fromBytes(idBytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        FileSagaLogApi opened;
+        lock.lock();
+        try {
+            closed = true;
+            opened = sagaLog;
+        } finally {
+            lock.unlock();
+        }
+        if (opened != null) {
+            opened.close();
+        }
+    }
+}
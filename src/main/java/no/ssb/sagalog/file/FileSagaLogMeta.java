@@ -0,0 +1,141 @@
+package no.ssb.sagalog.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Small fixed-size file next to the elements of a log, holding the state of the log that is not found in the elements
+ * themselves: the limit of the block of ids reserved for new entries, and the number of entries already truncated at
+ * the start of the head element. The file is rewritten in place and synced on every change.
+ * <p>
+ * The head-skip is stored together with the id of the last truncated entry, and only applies if that entry is found
+ * at the expected place in the head element when the log is opened. A crash between removing elements and writing
+ * this file thereby never hides live entries, at worst truncated entries of the head element are read again.
+ * <p>
+ * The state is kept in memory, so the file may be closed while the log is idle, and is opened again by the next change.
+ * <p>
+ * Not thread-safe, callers must hold the lock guarding the log.
+ */
+class FileSagaLogMeta implements Closeable {
+
+    static final int MAGIC = 0x534c4d54; // "SLMT"
+    static final int VERSION = 1;
+    static final int LENGTH = 28;
+    static final String SUFFIX = ".meta";
+    static final String SEGMENTED_FILENAME = "meta";
+
+    /**
+     * Path of the meta file of the log with the given path, inside the directory of a segmented log, or next to a
+     * queue-file.
+     */
+    static Path pathOf(Path logPath) {
+        if (Files.isDirectory(logPath)) {
+            return logPath.resolve(SEGMENTED_FILENAME);
+        }
+        return logPath.resolveSibling(logPath.getFileName() + SUFFIX);
+    }
+
+    private final Path path;
+    private final ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+    private FileChannel channel; // null while released
+    private long reservedIdLimit;
+    private long headSkipId;
+    private int headSkip;
+
+    FileSagaLogMeta(Path path) throws IOException {
+        this.path = path;
+        this.channel = open(path);
+        int n = 0;
+        while (buffer.hasRemaining() && n >= 0) {
+            n = channel.read(buffer, buffer.position());
+        }
+        if (buffer.position() == LENGTH) {
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a saga-log meta file: " + path);
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported saga-log meta file version " + buffer.getInt(4) + ": " + path);
+            }
+            reservedIdLimit = buffer.getLong(8);
+            headSkipId = buffer.getLong(16);
+            headSkip = buffer.getInt(24);
+        }
+    }
+
+    /**
+     * All ids below this limit may have been handed out.
+     */
+    long reservedIdLimit() {
+        return reservedIdLimit;
+    }
+
+    /**
+     * Id of the last truncated entry in the head element.
+     */
+    long headSkipId() {
+        return headSkipId;
+    }
+
+    /**
+     * Number of truncated entries at the start of the head element.
+     */
+    int headSkip() {
+        return headSkip;
+    }
+
+    void reserveIds(long limit) throws IOException {
+        reservedIdLimit = limit;
+        write();
+    }
+
+    void headSkip(long id, int skip) throws IOException {
+        headSkipId = id;
+        headSkip = skip;
+        write();
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void acquire() throws IOException {
+        if (channel == null) {
+            channel = open(path);
+        }
+    }
+
+    private void write() throws IOException {
+        acquire();
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(reservedIdLimit);
+        buffer.putLong(headSkipId);
+        buffer.putInt(headSkip);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position());
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Close the file until the next change, every change is already synced.
+     */
+    void release() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+    }
+}
@@ -0,0 +1,102 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogId;
+
+/**
+ * Receives measurements from the hot paths of saga-logs and their pool. Implementations are found with the
+ * {@link java.util.ServiceLoader}, and must be thread-safe and fast, as they are called on the hot paths. Aggregating
+ * measurements into histograms or counters is left to the implementation.
+ * <p>
+ * All methods do nothing by default. When no implementation is provided, measurements are not even taken.
+ * <p>
+ * Sizes of a log, and the number of entries not yet synced, are not pushed, but can be read at any time from the logs
+ * passed to {@link #opened(FileSagaLog, long, long)}, e.g. by gauges.
+ */
+public interface FileSagaLogMetrics {
+
+    FileSagaLogMetrics NOOP = new FileSagaLogMetrics() {
+    };
+
+    /**
+     * A log was opened and its index rebuilt from the entries already in it.
+     *
+     * @param recoveryNanos time spent reading and decoding the existing entries.
+     * @param entries       number of entries read.
+     */
+    default void opened(FileSagaLog sagaLog, long recoveryNanos, long entries) {
+    }
+
+    default void closed(FileSagaLog sagaLog) {
+    }
+
+    /**
+     * Elements torn by a crash, or otherwise corrupt, were removed from the tail of the log when it was opened.
+     *
+     * @param removedElements number of elements removed, each holding one or more entries.
+     */
+    default void repaired(SagaLogId logId, long removedElements) {
+    }
+
+    /**
+     * Entries were written as one element, including the disk sync if every write is synced.
+     *
+     * @param latencyNanos time from the write started until it was done, including lock wait.
+     */
+    default void write(SagaLogId logId, int entries, int bytes, long latencyNanos) {
+    }
+
+    /**
+     * Deferred writes were synced to disk.
+     */
+    default void sync(SagaLogId logId, long latencyNanos) {
+    }
+
+    default void truncate(SagaLogId logId, long latencyNanos) {
+    }
+
+    /**
+     * The log was compacted, dropping entries of completed sagas.
+     *
+     * @param pauseNanos    time writers and readers were paused while the compacted log replaced the log.
+     * @param durationNanos time from the compaction started until it was done.
+     */
+    default void compaction(SagaLogId logId, long droppedEntries, long pauseNanos, long durationNanos) {
+    }
+
+    /**
+     * A checkpoint of the index of the log was written, so that opening the log only reads the entries written after it.
+     *
+     * @param entries       number of live entries covered by the checkpoint.
+     * @param bytes         size of the checkpoint file.
+     * @param durationNanos time spent syncing the log and writing the checkpoint.
+     */
+    default void checkpoint(SagaLogId logId, long entries, int bytes, long durationNanos) {
+    }
+
+    /**
+     * Time spent waiting for the lock guarding the log.
+     */
+    default void lockWait(SagaLogId logId, long nanos) {
+    }
+
+    default void poolConnect(SagaLogId logId) {
+    }
+
+    /**
+     * An operation used the files of a log of a pool with a maximum of open files, or an idle timeout.
+     *
+     * @param hit whether the files were open, otherwise the log was opened by the operation, or its files were evicted
+     *            and opened again.
+     */
+    default void handleAccess(SagaLogId logId, boolean hit) {
+    }
+
+    /**
+     * The files of a log were closed, as it was the least recently used or idle.
+     */
+    default void handleEvicted(SagaLogId logId) {
+    }
+
+    default void poolDelete(SagaLogId logId) {
+    }
+}
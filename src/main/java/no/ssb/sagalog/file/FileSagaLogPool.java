@@ -2,23 +2,57 @@ package no.ssb.sagalog.file;
 
 
 import no.ssb.sagalog.AbstractSagaLogPool;
-import no.ssb.sagalog.SagaLog;
 import no.ssb.sagalog.SagaLogBusyException;
 import no.ssb.sagalog.SagaLogId;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-class FileSagaLogPool extends AbstractSagaLogPool {
+public class FileSagaLogPool extends AbstractSagaLogPool {
 
     private final Path folder;
+    private final FileSagaLogConfig config;
+    private final FileSagaLogMetrics metrics;
+    private final List<Path> shardFolders;
+    private final Set<SagaLogId> connected = ConcurrentHashMap.newKeySet();
+    private final Map<SagaLogId, FileSagaLogApi> recovered = new ConcurrentHashMap<>();
+    private final FileSagaLogRegistry registry;
+    private final FileSagaLogHandles handles;
 
     FileSagaLogPool(Path folder, String clusterInstanceId) {
+        this(folder, clusterInstanceId, FileSagaLogConfig.defaults());
+    }
+
+    FileSagaLogPool(Path folder, String clusterInstanceId, FileSagaLogConfig config) {
+        this(folder, clusterInstanceId, config, FileSagaLogMetrics.NOOP);
+    }
+
+    FileSagaLogPool(Path folder, String clusterInstanceId, FileSagaLogConfig config, FileSagaLogMetrics metrics) {
         super(clusterInstanceId);
         this.folder = folder;
+        this.config = config;
+        this.metrics = metrics;
+        this.shardFolders = config.folders.isEmpty() ? List.of(folder) : config.folders;
+        if (config.logIdsCacheEnabled) {
+            this.registry = new FileSagaLogRegistry(config.shards > 1 ? shardFolders : List.of(folder), this::logIdOf, config.logIdsRelistIntervalMs);
+        } else {
+            this.registry = null;
+        }
+        if (config.handlesMaxOpen > 0 || config.handlesIdleTimeoutMs > 0) {
+            this.handles = new FileSagaLogHandles(config.handlesMaxOpen, config.handlesIdleTimeoutMs, metrics);
+        } else {
+            this.handles = null;
+        }
     }
 
     @Override
@@ -28,9 +62,15 @@ class FileSagaLogPool extends AbstractSagaLogPool {
 
     @Override
     public Set<SagaLogId> clusterWideLogIds() {
-        try {
-            return Files.list(folder)
-                    .filter(p -> p.toFile().getName().endsWith(".sagalog"))
+        if (registry != null) {
+            return registry.logIds();
+        }
+        if (config.shards > 1) {
+            return shardedLogIds();
+        }
+        try (Stream<Path> paths = Files.list(folder)) {
+            return paths
+                    .filter(p -> p.getFileName().toString().endsWith(".sagalog"))
                     .map(Path::toAbsolutePath)
                     .map(path -> new FileSagaLogId(path))
                     .collect(Collectors.toSet());
@@ -39,17 +79,150 @@ class FileSagaLogPool extends AbstractSagaLogPool {
         }
     }
 
+    private Set<SagaLogId> shardedLogIds() {
+        Set<SagaLogId> logIds = new HashSet<>();
+        for (Path shardFolder : new LinkedHashSet<>(shardFolders)) {
+            try (Stream<Path> paths = Files.list(shardFolder)) {
+                paths.filter(p -> p.getFileName().toString().endsWith(".sagalog"))
+                        .map(path -> new FileSagaLogId(path))
+                        .filter(shardId -> FileSagaLogSharded.shardOf(shardId) != -1)
+                        .map(shardId -> FileSagaLogSharded.logicalIdOf(shardId, folder))
+                        .forEach(logIds::add);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return logIds;
+    }
+
+    /**
+     * Id of the log the given file or directory in one of the folders of the pool belongs to, or null if it is not part
+     * of a log.
+     */
+    private SagaLogId logIdOf(Path parentFolder, Path path) {
+        String filename = path.getFileName().toString();
+        if (!filename.endsWith(".sagalog") || !filename.contains(".--.")) {
+            return null;
+        }
+        FileSagaLogId logId = new FileSagaLogId(path);
+        if (config.shards > 1) {
+            return FileSagaLogSharded.shardOf(logId) != -1 ? FileSagaLogSharded.logicalIdOf(logId, folder) : null;
+        }
+        return logId;
+    }
+
+    private Set<Path> pathsOf(SagaLogId logId) {
+        if (config.shards > 1) {
+            return FileSagaLogSharded.shardPathsOf((FileSagaLogId) logId, shardFolders);
+        }
+        return Set.of(((FileSagaLogId) logId).getPath());
+    }
+
+    /**
+     * Recover all logs of the cluster in parallel, leaving them connected. See {@link FileSagaLogRecovery}.
+     */
+    public FileSagaLogRecovery.Result recover(FileSagaLogRecovery.Listener listener) {
+        return recover(clusterWideLogIds(), listener);
+    }
+
+    /**
+     * Recover the given logs in parallel, on at most {@link FileSagaLogConfig#RECOVERY_PARALLELISM} threads, leaving
+     * them connected. Meant to be called at startup, a log connected by another thread while it is being recovered
+     * would be opened twice.
+     */
+    public FileSagaLogRecovery.Result recover(Collection<SagaLogId> logIds, FileSagaLogRecovery.Listener listener) {
+        return new FileSagaLogRecovery(this::connectRecovered, config.recoveryParallelism).recover(logIds, listener);
+    }
+
+    private FileSagaLogApi connectRecovered(SagaLogId logId) {
+        if (!connected.contains(logId)) {
+            // opened before connecting, as connect() opens the log while holding a lock of the map of connected logs
+            recovered.put(logId, open(logId));
+        }
+        return connect(logId);
+    }
+
+    /**
+     * Connect the log, see {@link FileSagaLogApi} for what file saga-logs can do in addition to other saga-logs.
+     */
+    @Override
+    public FileSagaLogApi connect(SagaLogId logId) throws SagaLogBusyException {
+        return (FileSagaLogApi) super.connect(logId);
+    }
+
+    /**
+     * Connect the log, opening it right away if already opened by recovery or if the pool does not cap its open
+     * files, otherwise by the first operation on it.
+     */
     @Override
-    protected SagaLog connectExternal(SagaLogId logId) throws SagaLogBusyException {
-        return new FileSagaLog(logId);
+    protected FileSagaLogApi connectExternal(SagaLogId logId) throws SagaLogBusyException {
+        metrics.poolConnect(logId);
+        FileSagaLogApi sagaLog = recovered.remove(logId);
+        if (sagaLog == null) {
+            sagaLog = handles != null ? new FileSagaLogLazy(logId, this::open) : open(logId);
+        }
+        connected.add(logId);
+        if (registry != null) {
+            registry.added(pathsOf(logId));
+        }
+        return sagaLog;
+    }
+
+    private FileSagaLogApi open(SagaLogId logId) {
+        if (config.shards > 1) {
+            return new FileSagaLogSharded(logId, shardFolders, config, metrics, handles);
+        }
+        return new FileSagaLog(logId, config, metrics, null, handles);
+    }
+
+    @Override
+    public void remove(SagaLogId logId) {
+        super.remove(logId);
+        connected.remove(logId);
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        connected.clear();
+        if (registry != null) {
+            registry.close();
+        }
+        if (handles != null) {
+            handles.close();
+        }
     }
 
     @Override
     protected boolean deleteExternal(SagaLogId logId) {
+        metrics.poolDelete(logId);
+        if (registry != null) {
+            registry.removed(pathsOf(logId));
+        }
         try {
-            return Files.deleteIfExists(((FileSagaLogId) logId).getPath());
+            if (config.shards > 1) {
+                boolean deleted = false;
+                for (Path path : FileSagaLogSharded.shardPathsOf((FileSagaLogId) logId, shardFolders)) {
+                    deleted |= deleteLog(path);
+                }
+                return deleted;
+            }
+            return deleteLog(((FileSagaLogId) logId).getPath());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    private static boolean deleteLog(Path path) throws IOException {
+        FileSagaLogCompactor.delete(FileSagaLogCompactor.compactingPathOf(path));
+        FileSagaLogCompactor.delete(FileSagaLogCompactor.replacedPathOf(path));
+        Files.deleteIfExists(FileSagaLogQueueFileStore.shrinkingPathOf(path));
+        FileSagaLogCheckpoint.delete(path);
+        if (Files.isDirectory(path)) {
+            FileSagaLogSegmentedStore.deleteDirectory(path);
+            return true;
+        }
+        Files.deleteIfExists(FileSagaLogMeta.pathOf(path));
+        return Files.deleteIfExists(path);
+    }
 }
@@ -0,0 +1,146 @@
+package no.ssb.sagalog.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Positional reader of the tape2 queue-file format, reading elements directly by file position through its own channel
+ * rather than through a QueueFile iterator. This allows a reader to resume at a known element after the queue-file has
+ * been appended to, which would make any QueueFile iterator fail.
+ * <p>
+ * The queue-file writes its header to disk on every change, so the header read from disk while holding the lock that
+ * guards the queue-file is always up to date.
+ */
+class FileSagaLogQueueFileReader implements Closeable {
+
+    private static final int VERSIONED_HEADER = 0x80000001;
+    private static final int VERSIONED_HEADER_LENGTH = 32;
+    private static final int LEGACY_HEADER_LENGTH = 16;
+    private static final int ELEMENT_HEADER_LENGTH = 4;
+
+    static class Header {
+        final int headerLength;
+        final long fileLength;
+        final int elementCount;
+        final long firstPosition;
+        final long lastPosition;
+
+        Header(int headerLength, long fileLength, int elementCount, long firstPosition, long lastPosition) {
+            this.headerLength = headerLength;
+            this.fileLength = fileLength;
+            this.elementCount = elementCount;
+            this.firstPosition = firstPosition;
+            this.lastPosition = lastPosition;
+        }
+    }
+
+    /**
+     * Header of an empty queue-file of the given length, as the queue-file writes it.
+     */
+    static ByteBuffer emptyHeader(long fileLength) {
+        ByteBuffer header = ByteBuffer.allocate(VERSIONED_HEADER_LENGTH);
+        header.putInt(0, VERSIONED_HEADER);
+        header.putLong(4, fileLength);
+        return header;
+    }
+
+    private final FileChannel channel;
+
+    FileSagaLogQueueFileReader(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    Header readHeader() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(VERSIONED_HEADER_LENGTH);
+        readFully(buffer, 0);
+        int first = buffer.getInt(0);
+        if (first == VERSIONED_HEADER) {
+            return new Header(VERSIONED_HEADER_LENGTH, buffer.getLong(4), buffer.getInt(12), buffer.getLong(16), buffer.getLong(24));
+        }
+        if ((first & 0x80000000) != 0) {
+            throw new IOException("Unsupported queue-file header version: " + Integer.toHexString(first));
+        }
+        return new Header(LEGACY_HEADER_LENGTH, first, buffer.getInt(4), buffer.getInt(8), buffer.getInt(12));
+    }
+
+    /**
+     * Number of bytes of the file in use by the header and all elements, computed the same way as the queue-file does.
+     */
+    long usedBytes(Header header) throws IOException {
+        if (header.elementCount == 0) {
+            return header.headerLength;
+        }
+        long lastEnd = header.lastPosition + ELEMENT_HEADER_LENGTH + readLength(header, header.lastPosition);
+        if (header.lastPosition >= header.firstPosition) {
+            return lastEnd - header.firstPosition + header.headerLength;
+        }
+        return lastEnd + header.fileLength - header.firstPosition;
+    }
+
+    /**
+     * Length of the element at the given position.
+     */
+    int readLength(Header header, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ELEMENT_HEADER_LENGTH);
+        ringRead(header, position, buffer);
+        return buffer.getInt(0);
+    }
+
+    /**
+     * Data of the element at the given position.
+     */
+    byte[] readElement(Header header, long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        ringRead(header, wrapPosition(header, position + ELEMENT_HEADER_LENGTH), ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Position of the element following the element at the given position with the given length.
+     */
+    long nextPosition(Header header, long position, int length) {
+        return wrapPosition(header, position + ELEMENT_HEADER_LENGTH + length);
+    }
+
+    private long wrapPosition(Header header, long position) {
+        return position < header.fileLength ? position : header.headerLength + position - header.fileLength;
+    }
+
+    private void ringRead(Header header, long position, ByteBuffer buffer) throws IOException {
+        position = wrapPosition(header, position);
+        int count = buffer.remaining();
+        if (position + count <= header.fileLength) {
+            readFully(buffer, position);
+            return;
+        }
+        int beforeEof = (int) (header.fileLength - position);
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + beforeEof);
+        readFully(buffer, position);
+        buffer.limit(limit);
+        readFully(buffer, header.headerLength);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of queue-file at position " + position);
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,337 @@
+package no.ssb.sagalog.file;
+
+import com.squareup.tape2.QueueFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+/**
+ * Store backed by a tape2 queue-file, a circular buffer in a single file that expands by doubling. Every change is
+ * synchronously written to disk, the queue-file offers no way to defer syncing.
+ * <p>
+ * Expanding copies the wrapped part of the buffer, stalling the write that expands it, and the queue-file starts small
+ * and offers no way to change how it grows. Queue-files are therefore created by this store instead, at an initial
+ * size with all blocks allocated by writing zeros, so a log only expands once it outgrows it. The queue-file shrinks
+ * back to its minimum size whenever it is cleared, which this store avoids by clearing the header itself, and instead
+ * shrinks the file when asked to after removing elements.
+ */
+class FileSagaLogQueueFileStore implements FileSagaLogStore {
+
+    static final String SHRINKING_SUFFIX = ".shrinking";
+
+    private final Path path;
+    private final long initialSize;
+    private final boolean preallocate;
+    private final boolean shrink;
+    private QueueFile queueFile;
+    private FileSagaLogQueueFileReader reader;
+    private long headSequence;
+    private long nextSequence;
+
+    /**
+     * Incremented whenever elements may have moved within the file, i.e. when the queue-file expands or is cleared.
+     * Cursors holding a file position must then find their element again.
+     */
+    private long layoutVersion;
+    private long fileLength;
+    private byte[] copyBuffer = new byte[0];
+    private boolean released;
+
+    FileSagaLogQueueFileStore(Path path) throws IOException {
+        this(path, FileSagaLogConfig.defaults().preallocateInitialSize, true, false);
+    }
+
+    /**
+     * @param initialSize size of new queue-files, and the minimum size queue-files are shrunk to.
+     * @param preallocate whether to allocate the blocks of new queue-files by writing zeros, otherwise the file is sparse.
+     * @param shrink      whether to shrink the file once removing elements leaves most of it unused.
+     */
+    FileSagaLogQueueFileStore(Path path, long initialSize, boolean preallocate, boolean shrink) throws IOException {
+        this.path = path;
+        this.initialSize = initialSize;
+        this.preallocate = preallocate;
+        this.shrink = shrink;
+        this.queueFile = openQueueFile(path);
+        this.reader = new FileSagaLogQueueFileReader(path);
+        this.fileLength = reader.size();
+        this.nextSequence = queueFile.size();
+    }
+
+    /**
+     * Path of the copy written when shrinking the queue-file or removing its tail, apart from the copy written by
+     * compaction, which runs outside of the lock of the log.
+     */
+    static Path shrinkingPathOf(Path path) {
+        return path.resolveSibling(path.getFileName() + SHRINKING_SUFFIX);
+    }
+
+    private QueueFile openQueueFile(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            createQueueFile(path, initialSize);
+        }
+        // removed elements are never read again, zeroing them only makes truncate cost proportional to their size
+        return new QueueFile.Builder(path.toFile()).zero(false).build();
+    }
+
+    /**
+     * Create an empty queue-file of the given length, or replace the file with it. Written next to the file and moved
+     * in place, like the queue-file creates its files, so the file is either complete or not there.
+     */
+    private void createQueueFile(Path path, long length) throws IOException {
+        Path createdPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(createdPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = FileSagaLogQueueFileReader.emptyHeader(length);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            if (preallocate) {
+                ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(64 * 1024, length));
+                for (long position = channel.position(); position < length; ) {
+                    zeros.clear().limit((int) Math.min(zeros.capacity(), length - position));
+                    position += channel.write(zeros, position);
+                }
+            } else {
+                channel.write(ByteBuffer.allocate(1), length - 1);
+            }
+            channel.force(true);
+        }
+        Files.move(createdPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FileSagaLogStore.syncDirectory(path.toAbsolutePath().getParent());
+    }
+
+    @Override
+    public long append(byte[] element) throws IOException {
+        return append(element, 0, element.length);
+    }
+
+    /**
+     * The queue-file only takes arrays, so elements in direct buffers are copied into a reused array.
+     */
+    @Override
+    public long append(ByteBuffer element) throws IOException {
+        int length = element.remaining();
+        if (element.hasArray()) {
+            long sequence = append(element.array(), element.arrayOffset() + element.position(), length);
+            element.position(element.limit());
+            return sequence;
+        }
+        if (copyBuffer.length < length) {
+            copyBuffer = new byte[Math.max(length, 2 * copyBuffer.length)];
+        }
+        element.get(copyBuffer, 0, length);
+        return append(copyBuffer, 0, length);
+    }
+
+    private long append(byte[] bytes, int offset, int count) throws IOException {
+        acquire();
+        queueFile.add(bytes, offset, count);
+        long length = reader.size();
+        if (length != fileLength) {
+            fileLength = length;
+            layoutVersion++;
+        }
+        return nextSequence++;
+    }
+
+    @Override
+    public Sync unsynced() {
+        return Sync.NONE;
+    }
+
+    @Override
+    public void remove(int n) throws IOException {
+        acquire();
+        queueFile.remove(n);
+        headSequence += n;
+        if (shrink && fileLength > initialSize && reader.usedBytes(reader.readHeader()) * 4 < fileLength) {
+            shrink();
+        }
+    }
+
+    /**
+     * Copy the elements to a new queue-file of twice their size, at least the initial size, that replaces the file. The
+     * cost is proportional to the size of the elements, which is at most a quarter of the file, so the cost of shrinking
+     * is paid for by the elements removed since the file was last resized.
+     */
+    private void shrink() throws IOException {
+        long length = Math.max(initialSize, 2 * reader.usedBytes(reader.readHeader()));
+        Path copyPath = shrinkingPathOf(path);
+        Files.deleteIfExists(copyPath);
+        createQueueFile(copyPath, length);
+        Cursor cursor = cursor();
+        cursor.seek(headSequence);
+        try (QueueFile copy = new QueueFile.Builder(copyPath.toFile()).zero(false).build()) {
+            for (long element = headSequence; element < nextSequence; element++) {
+                copy.add(cursor.next());
+            }
+        }
+        replaceWith(copyPath);
+    }
+
+    private void replaceWith(Path copyPath) throws IOException {
+        queueFile.close();
+        reader.close();
+        Files.move(copyPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FileSagaLogStore.syncDirectory(path.toAbsolutePath().getParent());
+        queueFile = openQueueFile(path);
+        reader = new FileSagaLogQueueFileReader(path);
+        fileLength = reader.size();
+        layoutVersion++;
+    }
+
+    /**
+     * The queue-file can only remove elements from the head, so the elements before the sequence are copied to a new
+     * queue-file that replaces it.
+     */
+    @Override
+    public void removeTail(long sequence) throws IOException {
+        acquire();
+        Path copyPath = shrinkingPathOf(path);
+        Files.deleteIfExists(copyPath);
+        Cursor cursor = cursor();
+        cursor.seek(headSequence);
+        try (QueueFile copy = openQueueFile(copyPath)) {
+            for (long element = headSequence; element < sequence; element++) {
+                copy.add(cursor.next());
+            }
+        }
+        replaceWith(copyPath);
+        nextSequence = sequence;
+    }
+
+    /**
+     * Write the header of an empty queue-file of the same length in place, as the queue-file does for every change,
+     * keeping the allocated file. Shrinks the file to the initial size instead if shrinking.
+     */
+    @Override
+    public void clear() throws IOException {
+        acquire();
+        long length = reader.readHeader().fileLength;
+        queueFile.close();
+        reader.close();
+        if (shrink && length > initialSize) {
+            createQueueFile(path, initialSize);
+        } else {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                ByteBuffer header = FileSagaLogQueueFileReader.emptyHeader(length);
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(false);
+            }
+        }
+        queueFile = openQueueFile(path);
+        reader = new FileSagaLogQueueFileReader(path);
+        headSequence = nextSequence;
+        fileLength = reader.size();
+        layoutVersion++;
+    }
+
+    @Override
+    public long headSequence() {
+        return headSequence;
+    }
+
+    @Override
+    public long nextSequence() {
+        return nextSequence;
+    }
+
+    @Override
+    public long fileSize() throws IOException {
+        acquire();
+        return reader.size();
+    }
+
+    @Override
+    public long usedSize() throws IOException {
+        acquire();
+        return reader.usedBytes(reader.readHeader());
+    }
+
+    @Override
+    public Cursor cursor() {
+        return new QueueFileCursor();
+    }
+
+    /**
+     * Every change is already synced, so releasing only closes the queue-file and the reader.
+     */
+    @Override
+    public void release() throws IOException {
+        if (released) {
+            return;
+        }
+        queueFile.close();
+        reader.close();
+        released = true;
+    }
+
+    @Override
+    public boolean released() {
+        return released;
+    }
+
+    private void acquire() throws IOException {
+        if (!released) {
+            return;
+        }
+        queueFile = openQueueFile(path);
+        reader = new FileSagaLogQueueFileReader(path);
+        fileLength = reader.size();
+        layoutVersion++;
+        released = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (released) {
+            return;
+        }
+        queueFile.close();
+        reader.close();
+    }
+
+    private class QueueFileCursor implements Cursor {
+        FileSagaLogQueueFileReader.Header header;
+        long sequence = -1;
+        long position;
+        long positionLayoutVersion;
+
+        @Override
+        public void seek(long targetSequence) throws IOException {
+            if (targetSequence < headSequence || targetSequence > nextSequence) {
+                throw new IllegalArgumentException(String.format("Sequence %d is outside of [%d, %d]", targetSequence, headSequence, nextSequence));
+            }
+            acquire();
+            header = reader.readHeader();
+            if (sequence < headSequence || sequence > targetSequence || positionLayoutVersion != layoutVersion) {
+                sequence = headSequence;
+                position = header.firstPosition;
+                positionLayoutVersion = layoutVersion;
+            }
+            while (sequence < targetSequence) {
+                position = reader.nextPosition(header, position, reader.readLength(header, position));
+                sequence++;
+            }
+        }
+
+        @Override
+        public byte[] next() throws IOException {
+            if (sequence >= nextSequence) {
+                throw new NoSuchElementException();
+            }
+            int length = reader.readLength(header, position);
+            byte[] element = reader.readElement(header, position, length);
+            position = reader.nextPosition(header, position, length);
+            sequence++;
+            return element;
+        }
+    }
+}
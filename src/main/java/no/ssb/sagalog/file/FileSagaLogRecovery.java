@@ -0,0 +1,168 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLog;
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Recovery of many logs at once, e.g. all logs of the cluster when a node restarts. Logs are opened, their index
+ * rebuilt, and their incomplete sagas read on a bounded number of threads, so startup time is no longer the sum of
+ * the time it takes to recover each log.
+ * <p>
+ * Incomplete sagas are handed to the listener one log at a time per thread, as a lazy stream, so no more than one
+ * chunk of entries per thread is decoded at any time. The listener is called concurrently from the recovery threads
+ * and must be thread-safe.
+ */
+public class FileSagaLogRecovery {
+
+    /**
+     * Receives the incomplete sagas of every recovered log, typically to resume their executions.
+     */
+    public interface Listener {
+
+        /**
+         * The incomplete sagas of a log, in the order they were written. The stream can only be read during the call.
+         */
+        void incompleteSagas(SagaLogId logId, Stream<SagaLogEntry> entries);
+
+        /**
+         * A log was recovered, or failed to be recovered.
+         *
+         * @param entries       number of incomplete-saga entries read from the log.
+         * @param durationNanos time spent opening the log and reading its incomplete sagas.
+         * @param done          number of logs done so far, including this one.
+         * @param total         number of logs being recovered.
+         * @param failure       why the log could not be recovered, or null if it was.
+         */
+        default void recovered(SagaLogId logId, long entries, long durationNanos, int done, int total, Throwable failure) {
+        }
+    }
+
+    /**
+     * Outcome of recovering a set of logs.
+     */
+    public static class Result {
+        private final int logs;
+        private final long entries;
+        private final long durationNanos;
+        private final Map<SagaLogId, Throwable> failures;
+
+        Result(int logs, long entries, long durationNanos, Map<SagaLogId, Throwable> failures) {
+            this.logs = logs;
+            this.entries = entries;
+            this.durationNanos = durationNanos;
+            this.failures = failures;
+        }
+
+        /**
+         * Number of logs recovery was attempted for, including failed ones.
+         */
+        public int logs() {
+            return logs;
+        }
+
+        /**
+         * Number of incomplete-saga entries read from all logs.
+         */
+        public long entries() {
+            return entries;
+        }
+
+        public long durationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * Why each log that could not be recovered failed, empty if all logs were recovered.
+         */
+        public Map<SagaLogId, Throwable> failures() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Recovered %d logs with %d entries of incomplete sagas in %d ms, %d failed",
+                    logs - failures.size(), entries, durationNanos / 1_000_000, failures.size());
+        }
+    }
+
+    private final Function<SagaLogId, SagaLog> connect;
+    private final int parallelism;
+
+    /**
+     * @param connect opens, or finds the already open, log of an id.
+     */
+    FileSagaLogRecovery(Function<SagaLogId, SagaLog> connect, int parallelism) {
+        this.connect = connect;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Recover all given logs, returning once all are done. A log that fails to recover does not stop the others, it
+     * is reported to the listener and in the result.
+     */
+    Result recover(Collection<SagaLogId> logIds, Listener listener) {
+        long start = System.nanoTime();
+        int total = logIds.size();
+        AtomicInteger done = new AtomicInteger();
+        AtomicLong entries = new AtomicLong();
+        Map<SagaLogId, Throwable> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, total)), runnable -> {
+            Thread thread = new Thread(runnable, "filesagalog-recovery-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>(total);
+            for (SagaLogId logId : logIds) {
+                futures.add(executor.submit(() -> {
+                    long logStart = System.nanoTime();
+                    long[] logEntries = {0};
+                    Throwable failure = null;
+                    try {
+                        SagaLog sagaLog = connect.apply(logId);
+                        try (Stream<SagaLogEntry> stream = sagaLog.readIncompleteSagas()) {
+                            listener.incompleteSagas(logId, stream.peek(entry -> logEntries[0]++));
+                        }
+                    } catch (RuntimeException | Error e) {
+                        failure = e;
+                        failures.put(logId, e);
+                    }
+                    entries.addAndGet(logEntries[0]);
+                    listener.recovered(logId, logEntries[0], System.nanoTime() - logStart, done.incrementAndGet(), total, failure);
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // a failing listener.recovered(), the log itself was already counted
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        } finally {
+            // recovery threads are never interrupted, as that would close the file channels of the logs
+            executor.shutdown();
+        }
+        return new Result(total, entries.get(), System.nanoTime() - start, Map.copyOf(failures));
+    }
+}
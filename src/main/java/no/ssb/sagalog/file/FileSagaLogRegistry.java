@@ -0,0 +1,160 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogId;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+/**
+ * In-memory registry of the logs in the folders of a pool, so that listing the logs of the cluster does not list the
+ * folders every time. The folders are listed once when the registry is created, and the registry is then updated by
+ * the pool as it creates and deletes logs, and from a {@link WatchService} as other nodes do.
+ * <p>
+ * Watching is not reliable on every file system, e.g. not on network file systems, and events may be dropped under
+ * load. A single dedicated thread therefore also lists the folders again at a fixed interval, replacing the registry.
+ */
+class FileSagaLogRegistry implements AutoCloseable {
+
+    private final List<Path> folders;
+    private final BiFunction<Path, Path, SagaLogId> logIdOf;
+    private final long relistIntervalNanos;
+    private final Map<Path, SagaLogId> logIdByPath = new ConcurrentHashMap<>();
+    private final WatchService watchService;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * @param logIdOf id of the log a file or directory in a folder belongs to, given the folder and the path, or null
+     *                if it is not part of a log.
+     */
+    FileSagaLogRegistry(List<Path> folders, BiFunction<Path, Path, SagaLogId> logIdOf, long relistIntervalMs) {
+        this.folders = List.copyOf(new LinkedHashSet<>(folders));
+        this.logIdOf = logIdOf;
+        this.relistIntervalNanos = TimeUnit.MILLISECONDS.toNanos(relistIntervalMs);
+        try {
+            // watch before listing, so that no change is missed in between
+            this.watchService = this.folders.get(0).getFileSystem().newWatchService();
+            for (Path folder : this.folders) {
+                folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+            relist();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.thread = new Thread(this::run, "filesagalog-registry");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    Set<SagaLogId> logIds() {
+        return Set.copyOf(logIdByPath.values());
+    }
+
+    /**
+     * A log was created by the pool at the given paths.
+     */
+    void added(Set<Path> paths) {
+        for (Path path : paths) {
+            Path normalized = path.toAbsolutePath().normalize();
+            SagaLogId logId = logIdOf.apply(normalized.getParent(), normalized);
+            if (logId != null) {
+                logIdByPath.put(normalized, logId);
+            }
+        }
+    }
+
+    /**
+     * A log was deleted by the pool from the given paths.
+     */
+    void removed(Set<Path> paths) {
+        for (Path path : paths) {
+            logIdByPath.remove(path.toAbsolutePath().normalize());
+        }
+    }
+
+    private void run() {
+        long nextRelist = System.nanoTime() + relistIntervalNanos;
+        while (!closed) {
+            try {
+                WatchKey key = watchService.poll(Math.max(0, nextRelist - System.nanoTime()), TimeUnit.NANOSECONDS);
+                boolean overflow = false;
+                if (key != null) {
+                    Path folder = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                            continue;
+                        }
+                        Path path = folder.resolve((Path) event.context()).toAbsolutePath().normalize();
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                            SagaLogId logId = logIdOf.apply(folder, path);
+                            if (logId != null && Files.exists(path)) {
+                                logIdByPath.put(path, logId);
+                            }
+                        } else {
+                            logIdByPath.remove(path);
+                        }
+                    }
+                    key.reset();
+                }
+                if (overflow || System.nanoTime() - nextRelist >= 0) {
+                    relist();
+                    nextRelist = System.nanoTime() + relistIntervalNanos;
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // closed
+                return;
+            } catch (IOException | RuntimeException e) {
+                // a folder could not be listed, keep the registry until the next interval
+                nextRelist = System.nanoTime() + relistIntervalNanos;
+            }
+        }
+    }
+
+    private void relist() throws IOException {
+        Map<Path, SagaLogId> listed = new HashMap<>();
+        for (Path folder : folders) {
+            try (Stream<Path> paths = Files.list(folder)) {
+                paths.forEach(path -> {
+                    Path normalized = path.toAbsolutePath().normalize();
+                    SagaLogId logId = logIdOf.apply(folder, normalized);
+                    if (logId != null) {
+                        listed.put(normalized, logId);
+                    }
+                });
+            }
+        }
+        logIdByPath.putAll(listed);
+        logIdByPath.keySet().retainAll(listed.keySet());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
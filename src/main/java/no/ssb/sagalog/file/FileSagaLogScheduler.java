@@ -0,0 +1,79 @@
+package no.ssb.sagalog.file;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the periodic background tasks of all logs, e.g. interval syncs, on a few daemon threads shared by all logs
+ * instead of a thread per log and task, so that a pool of many logs does not start thousands of threads. Tasks are
+ * never interrupted, as that would close the file channels of their log.
+ */
+class FileSagaLogScheduler {
+
+    private static final int THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final ScheduledThreadPoolExecutor SCHEDULER = createScheduler();
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        AtomicInteger threads = new AtomicInteger();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "filesagalog-scheduler-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Run the task every interval, either at a fixed rate, or with the interval between the end of one run and the
+     * start of the next. A task that throws is not run again.
+     */
+    static Task schedule(Runnable task, long intervalMs, boolean fixedRate) {
+        Task scheduled = new Task(task);
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        scheduled.future = fixedRate
+                ? SCHEDULER.scheduleAtFixedRate(scheduled::run, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS)
+                : SCHEDULER.scheduleWithFixedDelay(scheduled::run, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+        return scheduled;
+    }
+
+    static class Task implements AutoCloseable {
+        private final Runnable task;
+        private final ReentrantLock running = new ReentrantLock();
+        private boolean closed; // guarded by running
+        private volatile ScheduledFuture<?> future;
+
+        private Task(Runnable task) {
+            this.task = task;
+        }
+
+        private void run() {
+            running.lock();
+            try {
+                if (!closed) {
+                    task.run();
+                }
+            } finally {
+                running.unlock();
+            }
+        }
+
+        /**
+         * Cancel all later runs, and wait for a run in progress to complete.
+         */
+        @Override
+        public void close() {
+            future.cancel(false);
+            running.lock();
+            try {
+                closed = true;
+            } finally {
+                running.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,632 @@
+package no.ssb.sagalog.file;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Store appending elements to fixed-size memory-mapped segment files in a directory. Elements are never moved or copied
+ * once written. Removing elements from the head only advances a persisted head pointer and deletes the segment files
+ * that lie entirely before it.
+ * <p>
+ * A segment file starts with a magic number and a version, followed by elements as {@code <int length> <bytes>}. A
+ * length of zero marks the end of the log, which is where the next element is appended. An element that does not fit
+ * in the remaining space of the last segment starts a new segment, sized to fit the element if it is larger than the
+ * configured segment size, and the end of the full segment is marked with a length of {@link #END_OF_SEGMENT}, unless
+ * there is no room left for a length.
+ * <p>
+ * Pages of the segments may reach the disk in any order, so a crash can leave the last elements with a torn length,
+ * or torn bytes, or with a length of zero where elements were written, also in a segment before others that did reach
+ * the disk. Reading an element with a torn length fails, torn bytes are left to the checksum of the element. The log
+ * ends at the first length of zero, and what follows it is cleared when the store is opened.
+ * <p>
+ * Every append and head change is forced to disk immediately if the store syncs on append. Otherwise changes are
+ * only forced when a sync obtained from {@link #unsynced()} is run, or by the operating system.
+ * <p>
+ * A new segment is sparse, its blocks are allocated by the file system as the appends first touch its pages. If
+ * preallocating, the next segment is instead written with zeros in the background once the tail segment is half full,
+ * and moved in place when the tail reaches it, so appends never wait for blocks to be allocated or for the segment to
+ * be filled with zeros.
+ */
+class FileSagaLogSegmentedStore implements FileSagaLogStore {
+
+    static final int SEGMENT_MAGIC = 0x534c5347; // "SLSG"
+    static final int SEGMENT_VERSION = 1;
+    static final int SEGMENT_HEADER_LENGTH = 8;
+    static final int ELEMENT_HEADER_LENGTH = 4;
+    static final int END_OF_SEGMENT = -1;
+    static final String SEGMENT_SUFFIX = ".segment";
+    static final String HEAD_FILENAME = "head";
+    static final String PREALLOCATED_FILENAME = "preallocated";
+
+    /**
+     * Writes the preallocated segments of all stores, one at a time.
+     */
+    private static final ExecutorService PREALLOCATOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "filesagalog-preallocator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean syncOnAppend;
+    private final boolean preallocate;
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private FileChannel headChannel;
+    private long headSegment;
+    private int headOffset;
+    private long tailSegment;
+    private int tailOffset;
+    private long headSequence;
+    private long nextSequence;
+
+    /**
+     * Lowest numbered segment written to since the last sync, or -1 if none.
+     */
+    private long dirtySegment = -1;
+    private boolean headDirty;
+
+    /**
+     * Incremented when all segments are replaced by clear. Cursors holding a position must then start from the head.
+     */
+    private long layoutVersion;
+
+    /**
+     * Whether the last element has a length torn by a crash, which must be removed before appending.
+     */
+    private boolean tornTail;
+    // view of the tail segment that elements are copied into, kept to not allocate a view for every append
+    private ByteBuffer tailView;
+    private MappedByteBuffer tailViewSegment;
+    private boolean released;
+    // head channel last closed by release, after forcing it, so syncs still holding it have nothing left to force
+    private volatile FileChannel releasedHeadChannel;
+    private CompletableFuture<Void> preallocation; // of the next segment, taken when the tail reaches it
+
+    FileSagaLogSegmentedStore(Path directory, int segmentSize, boolean syncOnAppend) throws IOException {
+        this(directory, segmentSize, syncOnAppend, false);
+    }
+
+    FileSagaLogSegmentedStore(Path directory, int segmentSize, boolean syncOnAppend, boolean preallocate) throws IOException {
+        if (Files.exists(directory) && !Files.isDirectory(directory)) {
+            throw new IllegalStateException(String.format("Saga-log %s exists but is not a segmented log directory, it was probably written by another engine", directory));
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncOnAppend = syncOnAppend;
+        this.preallocate = preallocate;
+        if (Files.notExists(directory)) {
+            Files.createDirectories(directory);
+            FileSagaLogStore.syncDirectory(directory.toAbsolutePath().getParent());
+        }
+        // possibly torn by a crash
+        Files.deleteIfExists(directory.resolve(PREALLOCATED_FILENAME));
+        openFiles();
+        ByteBuffer head = ByteBuffer.allocate(12);
+        if (headChannel.read(head, 0) == 12) {
+            headSegment = head.getLong(0);
+            headOffset = head.getInt(8);
+        } else {
+            headSegment = segments.isEmpty() ? 0 : segments.firstKey();
+            headOffset = SEGMENT_HEADER_LENGTH;
+        }
+        // segments left behind by a crash between writing the head pointer and deleting them
+        deleteSegmentsBefore(headSegment);
+        if (segments.isEmpty()) {
+            createSegment(headSegment, segmentSize);
+            headOffset = SEGMENT_HEADER_LENGTH;
+        }
+        // find the tail
+        tailSegment = headSegment;
+        tailOffset = headOffset;
+        while (true) {
+            normalizeTail();
+            if (endsAt(tailSegment, tailOffset)) {
+                break;
+            }
+            if (segments.get(tailSegment).getInt(tailOffset) == 0) {
+                if (segments.higherKey(tailSegment) != null) {
+                    // elements lost by a crash before elements of later segments that reached the disk
+                    cutTail();
+                }
+                break;
+            }
+            nextSequence++;
+            if (!hasValidLength(tailSegment, tailOffset)) {
+                // a length torn by a crash, reading the element fails until it is removed by removeTail
+                tornTail = true;
+                break;
+            }
+            tailOffset += ELEMENT_HEADER_LENGTH + segments.get(tailSegment).getInt(tailOffset);
+        }
+    }
+
+    private void openFiles() throws IOException {
+        headChannel = FileChannel.open(directory.resolve(HEAD_FILENAME), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : paths.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).collect(Collectors.toList())) {
+                String filename = path.getFileName().toString();
+                segments.put(Long.parseLong(filename.substring(0, filename.length() - SEGMENT_SUFFIX.length())), map(path));
+            }
+        }
+    }
+
+    private boolean hasValidLength(long segmentNumber, int offset) {
+        MappedByteBuffer segment = segments.get(segmentNumber);
+        int length = segment.getInt(offset);
+        return length > 0 && length <= segment.capacity() - offset - ELEMENT_HEADER_LENGTH;
+    }
+
+    /**
+     * Make the tail position the end of the log, clearing what follows it in the tail segment and deleting all later
+     * segments, so that nothing past the tail is mistaken for elements when the log is opened again.
+     */
+    private void cutTail() throws IOException {
+        MappedByteBuffer segment = segments.get(tailSegment);
+        ByteBuffer data = segment.duplicate();
+        data.position(tailOffset);
+        byte[] zeros = new byte[Math.min(8192, data.remaining())];
+        while (data.hasRemaining()) {
+            data.put(zeros, 0, Math.min(zeros.length, data.remaining()));
+        }
+        segment.force();
+        for (Long number : new ArrayList<>(segments.tailMap(tailSegment, false).keySet())) {
+            Files.deleteIfExists(segmentPath(number));
+            segments.remove(number);
+        }
+    }
+
+    @Override
+    public void removeTail(long sequence) throws IOException {
+        if (sequence < headSequence || sequence > nextSequence) {
+            throw new IllegalArgumentException(String.format("Sequence %d is outside of [%d, %d]", sequence, headSequence, nextSequence));
+        }
+        if (sequence == nextSequence) {
+            return;
+        }
+        acquire();
+        SegmentCursor cursor = new SegmentCursor();
+        cursor.seek(sequence);
+        tailSegment = cursor.segment;
+        tailOffset = cursor.offset;
+        cutTail();
+        nextSequence = sequence;
+        tornTail = false;
+        layoutVersion++;
+    }
+
+    /**
+     * Move the tail to the start of the next segment while the tail segment ends at the tail. A full last segment ends
+     * the log, with the tail at its end.
+     */
+    private void normalizeTail() {
+        Long nextSegment;
+        while (endsAt(tailSegment, tailOffset) && (nextSegment = segments.higherKey(tailSegment)) != null) {
+            tailSegment = nextSegment;
+            tailOffset = SEGMENT_HEADER_LENGTH;
+        }
+    }
+
+    /**
+     * Whether the elements of the segment end at the offset, as there is no room for another element or the end is
+     * marked, so that the next element is at the start of the next segment.
+     */
+    private boolean endsAt(long segmentNumber, int offset) {
+        MappedByteBuffer segment = segments.get(segmentNumber);
+        return offset + ELEMENT_HEADER_LENGTH > segment.capacity() || segment.getInt(offset) == END_OF_SEGMENT;
+    }
+
+    private MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (buffer.getInt(0) != SEGMENT_MAGIC) {
+                throw new IOException("Not a saga-log segment: " + path);
+            }
+            if (buffer.getInt(4) != SEGMENT_VERSION) {
+                throw new IOException("Unsupported saga-log segment version " + buffer.getInt(4) + ": " + path);
+            }
+            return buffer;
+        }
+    }
+
+    private MappedByteBuffer createSegment(long segmentNumber, int size) throws IOException {
+        Path path = segmentPath(segmentNumber);
+        MappedByteBuffer buffer;
+        if (size == segmentSize && preallocation != null && preallocation.isDone()) {
+            boolean preallocated = !preallocation.isCompletedExceptionally();
+            preallocation = null;
+            if (preallocated) {
+                Files.move(directory.resolve(PREALLOCATED_FILENAME), path, StandardCopyOption.ATOMIC_MOVE);
+                FileSagaLogStore.syncDirectory(directory);
+                buffer = map(path);
+                segments.put(segmentNumber, buffer);
+                return buffer;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        buffer.putInt(0, SEGMENT_MAGIC);
+        buffer.putInt(4, SEGMENT_VERSION);
+        buffer.force();
+        // elements appended to the segment are only durable once it is found in the directory
+        FileSagaLogStore.syncDirectory(directory);
+        segments.put(segmentNumber, buffer);
+        return buffer;
+    }
+
+    /**
+     * Start writing the next segment in the background.
+     */
+    private void preallocate() {
+        Path path = directory.resolve(PREALLOCATED_FILENAME);
+        int size = segmentSize;
+        preallocation = CompletableFuture.runAsync(() -> {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer zeros = ByteBuffer.allocate(Math.min(64 * 1024, size));
+                for (long position = 0; position < size; ) {
+                    zeros.clear().limit((int) Math.min(zeros.capacity(), size - position));
+                    position += channel.write(zeros, position);
+                }
+                ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH);
+                header.putInt(0, SEGMENT_MAGIC);
+                header.putInt(4, SEGMENT_VERSION);
+                channel.write(header, 0);
+                channel.force(true);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, PREALLOCATOR);
+    }
+
+    private Path segmentPath(long segmentNumber) {
+        return directory.resolve(String.format("%020d%s", segmentNumber, SEGMENT_SUFFIX));
+    }
+
+    private void deleteSegmentsBefore(long segmentNumber) throws IOException {
+        Map<Long, MappedByteBuffer> obsolete = segments.headMap(segmentNumber);
+        for (Long number : new ArrayList<>(obsolete.keySet())) {
+            // the mapping itself is released when the buffer is garbage collected
+            Files.deleteIfExists(segmentPath(number));
+            obsolete.remove(number);
+        }
+    }
+
+    private void writeHead() throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(12);
+        head.putLong(0, headSegment);
+        head.putInt(8, headOffset);
+        headChannel.write(head, 0);
+        if (syncOnAppend) {
+            headChannel.force(false);
+        } else {
+            headDirty = true;
+        }
+    }
+
+    @Override
+    public long append(ByteBuffer element) throws IOException {
+        int length = element.remaining();
+        if (length == 0) {
+            throw new IllegalArgumentException("Empty elements cannot be stored in a segmented saga-log");
+        }
+        if (tornTail) {
+            throw new IllegalStateException("Cannot append after a torn element, it must be removed first: " + directory);
+        }
+        acquire();
+        int required = ELEMENT_HEADER_LENGTH + length;
+        MappedByteBuffer segment = segments.get(tailSegment);
+        if (tailOffset + required > segment.capacity()) {
+            if (tailOffset + ELEMENT_HEADER_LENGTH <= segment.capacity()) {
+                // a length of zero before later segments is where elements were lost by a crash
+                segment.putInt(tailOffset, END_OF_SEGMENT);
+                if (syncOnAppend) {
+                    segment.force();
+                } else if (dirtySegment == -1) {
+                    dirtySegment = tailSegment;
+                }
+            }
+            tailSegment++;
+            tailOffset = SEGMENT_HEADER_LENGTH;
+            segment = createSegment(tailSegment, Math.max(segmentSize, SEGMENT_HEADER_LENGTH + required));
+        }
+        if (tailView == null || tailViewSegment != segment) {
+            tailView = segment.duplicate();
+            tailViewSegment = segment;
+        }
+        tailView.clear().position(tailOffset + ELEMENT_HEADER_LENGTH);
+        tailView.put(element);
+        // length last, a zero length marks the end of the log should we crash before the data is written
+        segment.putInt(tailOffset, length);
+        if (syncOnAppend) {
+            segment.force();
+        } else if (dirtySegment == -1) {
+            dirtySegment = tailSegment;
+        }
+        tailOffset += required;
+        if (preallocate && preallocation == null && tailOffset > segment.capacity() / 2) {
+            preallocate();
+        }
+        return nextSequence++;
+    }
+
+    @Override
+    public Sync unsynced() {
+        if (dirtySegment == -1 && !headDirty) {
+            return Sync.NONE;
+        }
+        List<MappedByteBuffer> dirtySegments = dirtySegment == -1 ? List.of() : new ArrayList<>(segments.tailMap(dirtySegment).values());
+        FileChannel dirtyHead = headDirty ? headChannel : null;
+        dirtySegment = -1;
+        headDirty = false;
+        return () -> {
+            for (MappedByteBuffer segment : dirtySegments) {
+                segment.force();
+            }
+            if (dirtyHead != null) {
+                try {
+                    dirtyHead.force(false);
+                } catch (ClosedChannelException e) {
+                    if (dirtyHead != releasedHeadChannel) {
+                        throw e;
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public void remove(int n) throws IOException {
+        if (n < 0 || n > nextSequence - headSequence) {
+            throw new IllegalArgumentException(String.format("Cannot remove %d of %d elements", n, nextSequence - headSequence));
+        }
+        if (n == 0) {
+            return;
+        }
+        acquire();
+        Cursor cursor = cursor();
+        cursor.seek(headSequence + n);
+        SegmentCursor position = (SegmentCursor) cursor;
+        headSegment = position.segment;
+        headOffset = position.offset;
+        writeHead();
+        deleteSegmentsBefore(headSegment);
+        headSequence += n;
+    }
+
+    @Override
+    public void clear() throws IOException {
+        acquire();
+        long segmentNumber = tailSegment + 1;
+        createSegment(segmentNumber, segmentSize);
+        headSegment = segmentNumber;
+        headOffset = SEGMENT_HEADER_LENGTH;
+        writeHead();
+        deleteSegmentsBefore(segmentNumber);
+        tailSegment = segmentNumber;
+        tailOffset = SEGMENT_HEADER_LENGTH;
+        headSequence = nextSequence;
+        layoutVersion++;
+    }
+
+    @Override
+    public long headSequence() {
+        return headSequence;
+    }
+
+    @Override
+    public long nextSequence() {
+        return nextSequence;
+    }
+
+    @Override
+    public long fileSize() throws IOException {
+        acquire();
+        long size = 0;
+        for (MappedByteBuffer segment : segments.values()) {
+            size += segment.capacity();
+        }
+        return size;
+    }
+
+    /**
+     * Bytes from the head to the tail, including segment headers and any space left unused at the end of segments.
+     */
+    @Override
+    public long usedSize() throws IOException {
+        acquire();
+        long size = 0;
+        for (Map.Entry<Long, MappedByteBuffer> entry : segments.entrySet()) {
+            long start = entry.getKey() == headSegment ? headOffset : 0;
+            long end = entry.getKey() == tailSegment ? tailOffset : entry.getValue().capacity();
+            size += end - start;
+        }
+        return size;
+    }
+
+    @Override
+    public Cursor cursor() {
+        return new SegmentCursor();
+    }
+
+    /**
+     * Whether the next segment has been written in the background, and not yet taken.
+     */
+    boolean preallocated() {
+        return preallocation != null && preallocation.isDone() && !preallocation.isCompletedExceptionally();
+    }
+
+    /**
+     * Number of segment files currently in use.
+     */
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Unsynced changes are forced before the head channel is closed, and the mappings dropped, which are unmapped once
+     * garbage collected. Views of the segments handed out by cursors stay valid.
+     */
+    @Override
+    public void release() throws IOException {
+        if (released) {
+            return;
+        }
+        unsynced().run();
+        // forced even if not dirty, as a sync taken earlier may still be running and fail once the channel is closed
+        headChannel.force(false);
+        releasedHeadChannel = headChannel;
+        headChannel.close();
+        segments.clear();
+        tailView = null;
+        tailViewSegment = null;
+        released = true;
+    }
+
+    @Override
+    public boolean released() {
+        return released;
+    }
+
+    private void acquire() throws IOException {
+        if (!released) {
+            return;
+        }
+        openFiles();
+        layoutVersion++;
+        released = false;
+    }
+
+    /**
+     * Waits for the next segment to be written, if it is being written, so that it is not written into a directory
+     * being deleted or replaced.
+     */
+    @Override
+    public void close() throws IOException {
+        if (preallocation != null) {
+            try {
+                preallocation.join();
+            } catch (CompletionException e) {
+                // deleted when the store is opened again
+            }
+            preallocation = null;
+        }
+        if (released) {
+            return;
+        }
+        headChannel.close();
+        segments.clear();
+    }
+
+    private class SegmentCursor implements Cursor {
+        long sequence = -1;
+        long segment;
+        int offset;
+        long positionLayoutVersion;
+
+        @Override
+        public void seek(long targetSequence) throws IOException {
+            if (targetSequence < headSequence || targetSequence > nextSequence) {
+                throw new IllegalArgumentException(String.format("Sequence %d is outside of [%d, %d]", targetSequence, headSequence, nextSequence));
+            }
+            acquire();
+            if (sequence < headSequence || sequence > targetSequence || positionLayoutVersion != layoutVersion) {
+                sequence = headSequence;
+                segment = headSegment;
+                offset = headOffset;
+                positionLayoutVersion = layoutVersion;
+            }
+            while (sequence < targetSequence) {
+                normalize();
+                checkLength();
+                offset += ELEMENT_HEADER_LENGTH + segments.get(segment).getInt(offset);
+                sequence++;
+            }
+            if (sequence < nextSequence) {
+                normalize();
+            } else {
+                segment = tailSegment;
+                offset = tailOffset;
+            }
+        }
+
+        private void checkLength() {
+            if (!hasValidLength(segment, offset)) {
+                throw new IllegalStateException(String.format("Torn element %d in segment %d of %s", sequence, segment, directory));
+            }
+        }
+
+        private void normalize() {
+            while (endsAt(segment, offset)) {
+                segment = segments.higherKey(segment);
+                offset = SEGMENT_HEADER_LENGTH;
+            }
+        }
+
+        @Override
+        public byte[] next() {
+            if (sequence >= nextSequence) {
+                throw new NoSuchElementException();
+            }
+            normalize();
+            checkLength();
+            ByteBuffer data = segments.get(segment).duplicate();
+            int length = data.getInt(offset);
+            byte[] element = new byte[length];
+            data.position(offset + ELEMENT_HEADER_LENGTH);
+            data.get(element);
+            offset += ELEMENT_HEADER_LENGTH + length;
+            sequence++;
+            return element;
+        }
+
+        @Override
+        public ByteBuffer nextBuffer() {
+            if (sequence >= nextSequence) {
+                throw new NoSuchElementException();
+            }
+            normalize();
+            checkLength();
+            ByteBuffer data = segments.get(segment).asReadOnlyBuffer();
+            int length = data.getInt(offset);
+            data.limit(offset + ELEMENT_HEADER_LENGTH + length);
+            data.position(offset + ELEMENT_HEADER_LENGTH);
+            offset += ELEMENT_HEADER_LENGTH + length;
+            sequence++;
+            return data.slice();
+        }
+    }
+
+    static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> paths;
+        try (Stream<Path> list = Files.list(directory)) {
+            paths = list.collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+        Files.deleteIfExists(directory);
+    }
+}
@@ -0,0 +1,482 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogEntryBuilder;
+import no.ssb.sagalog.SagaLogEntryId;
+import no.ssb.sagalog.SagaLogEntryType;
+import no.ssb.sagalog.SagaLogId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A logical saga-log spread over several shards, each a log of its own, in files that can be in different folders.
+ * Executions are partitioned over the shards by the hash of their execution-id, so all entries of an execution are
+ * in the same shard and writes of different executions go to different files in parallel.
+ * <p>
+ * All shards take their entry ids from the same counter, so ids are unique and ordered by write across the logical
+ * log. Incomplete sagas are read by merging the shards in id order, and truncating by id truncates every shard up to
+ * that id, so the logical log behaves as a single log ordered by id.
+ * <p>
+ * A bulk write is appended atomically to a single shard, so all its entries must belong to the same execution, as do
+ * the entries of the parallel children of a saga step. A tail of the log merges the tails of the shards in id order.
+ * As shards are written concurrently, an entry may be appended to one shard after an entry with a higher id is
+ * appended to another, so the tail holds back an entry until every write that claimed a lower id is settled.
+ * <p>
+ * Shard i of a log named {@code name} is stored as the log {@code name.shard-i} in folder i modulo the number of
+ * folders. The number of shards and the folders can not be changed while the log holds entries, which is checked when
+ * the log is opened.
+ */
+class FileSagaLogSharded implements FileSagaLogApi {
+
+    static final String SHARD_INFIX = ".shard-";
+
+    private final FileSagaLogId sagaLogId;
+    private final AtomicLong ids = new AtomicLong();
+    private final FileSagaLog[] shards;
+
+    FileSagaLogSharded(SagaLogId _sagaLogId, List<Path> folders, FileSagaLogConfig config, FileSagaLogMetrics metrics) {
+        this(_sagaLogId, folders, config, metrics, null);
+    }
+
+    FileSagaLogSharded(SagaLogId _sagaLogId, List<Path> folders, FileSagaLogConfig config, FileSagaLogMetrics metrics, FileSagaLogHandles handles) {
+        this.sagaLogId = (FileSagaLogId) _sagaLogId;
+        checkLayout(sagaLogId, folders, config.shards);
+        this.shards = new FileSagaLog[config.shards];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new FileSagaLog(shardIdOf(sagaLogId, folders, i), config, metrics, ids, handles);
+            }
+        } catch (RuntimeException e) {
+            closeShards(e);
+            throw e;
+        }
+    }
+
+    static FileSagaLogId shardIdOf(FileSagaLogId sagaLogId, List<Path> folders, int shard) {
+        return new FileSagaLogId(folders.get(shard % folders.size()), sagaLogId.getClusterInstanceId(), sagaLogId.getLogName() + SHARD_INFIX + shard);
+    }
+
+    /**
+     * The shard number of the given log id if it is the id of a shard, or -1 if it is not.
+     */
+    static int shardOf(FileSagaLogId logId) {
+        String logName = logId.getLogName();
+        int infix = logName.lastIndexOf(SHARD_INFIX);
+        if (infix == -1) {
+            return -1;
+        }
+        String shard = logName.substring(infix + SHARD_INFIX.length());
+        if (shard.isEmpty() || shard.length() > 9 || !shard.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        return Integer.parseInt(shard);
+    }
+
+    /**
+     * Id of the logical log the given shard belongs to, in the given folder.
+     */
+    static FileSagaLogId logicalIdOf(FileSagaLogId shardId, Path folder) {
+        String logName = shardId.getLogName();
+        return new FileSagaLogId(folder, shardId.getClusterInstanceId(), logName.substring(0, logName.lastIndexOf(SHARD_INFIX)));
+    }
+
+    /**
+     * Paths of all files and directories of any shard of the log found in the folders.
+     */
+    static Set<Path> shardPathsOf(FileSagaLogId sagaLogId, List<Path> folders) {
+        Set<Path> paths = new LinkedHashSet<>();
+        String prefix = sagaLogId.getClusterInstanceId() + ".--." + sagaLogId.getLogName() + SHARD_INFIX;
+        for (Path folder : new LinkedHashSet<>(folders)) {
+            if (!Files.isDirectory(folder)) {
+                continue;
+            }
+            try (Stream<Path> list = Files.list(folder)) {
+                list.filter(path -> {
+                    String filename = path.getFileName().toString();
+                    return filename.startsWith(prefix) && filename.endsWith(".sagalog") && shardOf(new FileSagaLogId(path)) != -1;
+                }).forEach(path -> paths.add(path.toAbsolutePath().normalize()));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return paths;
+    }
+
+    private static void checkLayout(FileSagaLogId sagaLogId, List<Path> folders, int shardCount) {
+        if (Files.exists(sagaLogId.getPath())) {
+            throw new IllegalStateException(String.format("Saga-log was written without shards: %s", sagaLogId.getPath()));
+        }
+        for (Path path : shardPathsOf(sagaLogId, folders)) {
+            FileSagaLogId shardId = new FileSagaLogId(path);
+            int shard = shardOf(shardId);
+            if (shard >= shardCount || !shardId.equals(shardIdOf(sagaLogId, folders, shard))) {
+                throw new IllegalStateException(String.format("Saga-log was written with other shards or folders than %s=%d and %s=%s, found shard: %s",
+                        FileSagaLogConfig.SHARDS, shardCount, FileSagaLogConfig.FOLDERS, folders, path));
+            }
+        }
+    }
+
+    FileSagaLog shardOf(String executionId) {
+        return shards[Math.floorMod(executionId.hashCode(), shards.length)];
+    }
+
+    @Override
+    public SagaLogId id() {
+        return sagaLogId;
+    }
+
+    @Override
+    public CompletableFuture<SagaLogEntry> write(SagaLogEntryBuilder builder) {
+        if (builder.executionId() == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Saga-log entry has no execution-id"));
+        }
+        return shardOf(builder.executionId()).write(builder);
+    }
+
+    /**
+     * Write several entries of the same execution at once, to the shard of the execution, see
+     * {@link FileSagaLog#write(List)}.
+     */
+    @Override
+    public CompletableFuture<List<SagaLogEntry>> write(List<SagaLogEntryBuilder> builders) {
+        if (builders.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        String executionId = builders.get(0).executionId();
+        for (SagaLogEntryBuilder builder : builders) {
+            if (builder.executionId() == null) {
+                return CompletableFuture.failedFuture(new IllegalArgumentException("Saga-log entry has no execution-id"));
+            }
+            if (!builder.executionId().equals(executionId)) {
+                return CompletableFuture.failedFuture(new IllegalArgumentException(String.format(
+                        "Entries written at once to a sharded saga-log must belong to the same execution, got %s and %s", executionId, builder.executionId())));
+            }
+        }
+        return shardOf(executionId).write(builders);
+    }
+
+    @Override
+    public CompletableFuture<Void> truncate(SagaLogEntryId id) {
+        boolean found = false;
+        for (FileSagaLog shard : shards) {
+            found |= shard.contains(id);
+        }
+        if (!found) {
+            return CompletableFuture.completedFuture(null);
+        }
+        for (FileSagaLog shard : shards) {
+            shard.truncateThrough(((FileSagaLogEntryId) id).id);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> truncate() {
+        for (FileSagaLog shard : shards) {
+            shard.truncate().join();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Lazily merged stream of the incomplete sagas of all shards, in id order.
+     */
+    @Override
+    public Stream<SagaLogEntry> readIncompleteSagas() {
+        List<Iterator<SagaLogEntry>> iterators = new ArrayList<>(shards.length);
+        for (FileSagaLog shard : shards) {
+            iterators.add(shard.readIncompleteSagas().iterator());
+        }
+        return StreamSupport.stream(new MergeSpliterator(iterators), false);
+    }
+
+    /**
+     * Read the live entries of all shards merged in id order, like {@link FileSagaLog#readIncompleteSagas(FileSagaLogEntryVisitor)}.
+     * The fields of the entries of an element are copied while waiting for entries of other shards with lower ids, so
+     * they are never views of the files.
+     *
+     * @return the number of entries visited.
+     */
+    @Override
+    public long readIncompleteSagas(FileSagaLogEntryVisitor visitor) {
+        List<ShardVisits> shardVisits = new ArrayList<>(shards.length);
+        for (FileSagaLog shard : shards) {
+            shardVisits.add(new ShardVisits(shard.visitIncompleteSagas()));
+        }
+        long entries = 0;
+        while (true) {
+            ShardVisits next = null;
+            for (ShardVisits visits : shardVisits) {
+                VisitedEntry head = visits.peek();
+                if (head != null && (next == null || head.id < next.peek().id)) {
+                    next = visits;
+                }
+            }
+            if (next == null) {
+                return entries;
+            }
+            next.poll().visit(visitor);
+            entries++;
+        }
+    }
+
+    @Override
+    public Flow.Publisher<SagaLogEntry> tail(SagaLogEntryId from) {
+        return tail(from, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Follow all shards merged in id order, see {@link FileSagaLog#tail(SagaLogEntryId, Executor)}. Entries are only
+     * delivered once all writes that claimed lower ids are settled, so a slow write to one shard delays the entries
+     * of the others. Subscribers are completed when the log is closed.
+     */
+    @Override
+    public Flow.Publisher<SagaLogEntry> tail(SagaLogEntryId from, Executor executor) {
+        Objects.requireNonNull(executor);
+        return subscriber -> {
+            Objects.requireNonNull(subscriber);
+            List<Spliterator<SagaLogEntry>> shardEntries = new ArrayList<>(shards.length);
+            for (FileSagaLog shard : shards) {
+                shardEntries.add(shard.tailEntries(from));
+            }
+            FileSagaLogSubscription subscription = new FileSagaLogSubscription(new TailSpliterator(shardEntries), subscriber, executor, this::unsubscribe);
+            boolean closedLog = false;
+            for (FileSagaLog shard : shards) {
+                closedLog |= !shard.subscribe(subscription);
+            }
+            subscriber.onSubscribe(subscription);
+            if (closedLog) {
+                subscription.close();
+            }
+        };
+    }
+
+    private void unsubscribe(FileSagaLogSubscription subscription) {
+        for (FileSagaLog shard : shards) {
+            shard.unsubscribe(subscription);
+        }
+    }
+
+    /**
+     * Ids below the limit are appended to their shard, or failed, so no entry with a lower id can show up later.
+     */
+    private long settledIdLimit() {
+        // read before the shards, any id claimed after this is above it
+        long limit = ids.get();
+        for (FileSagaLog shard : shards) {
+            limit = Math.min(limit, shard.lowestUnsettledId());
+        }
+        return limit;
+    }
+
+    @Override
+    public Stream<SagaLogEntry> readEntries(String executionId) {
+        return shardOf(executionId).readEntries(executionId);
+    }
+
+    @Override
+    public String toString(SagaLogEntryId id) {
+        return shards[0].toString(id);
+    }
+
+    @Override
+    public SagaLogEntryId fromString(String idString) {
+        return shards[0].fromString(idString);
+    }
+
+    @Override
+    public byte[] toBytes(SagaLogEntryId id) {
+        return shards[0].toBytes(id);
+    }
+
+    @Override
+    public SagaLogEntryId fromBytes(byte[] idBytes) {
+        return shards[0].fromBytes(idBytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (FileSagaLog shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static long idOf(SagaLogEntry entry) {
+        return ((FileSagaLogEntryId) entry.getId()).id;
+    }
+
+    private void closeShards(RuntimeException cause) {
+        for (FileSagaLog shard : shards) {
+            if (shard != null) {
+                try {
+                    shard.close();
+                } catch (IOException | RuntimeException e) {
+                    cause.addSuppressed(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Entries of a shard visited a whole element at a time, and copied to be merged with the entries of other shards.
+     */
+    private static class ShardVisits {
+        final FileSagaLog.ElementVisits visits;
+        final ArrayDeque<VisitedEntry> entries = new ArrayDeque<>();
+        final FileSagaLogEntryVisitor copier = (id, entryType, executionId, nodeId, sagaName, jsonData) ->
+                entries.addLast(new VisitedEntry(id, entryType, copyOf(executionId), copyOf(nodeId), copyOf(sagaName), copyOf(jsonData)));
+        boolean done;
+
+        ShardVisits(FileSagaLog.ElementVisits visits) {
+            this.visits = visits;
+        }
+
+        VisitedEntry peek() {
+            while (entries.isEmpty() && !done) {
+                done = visits.visitNext(copier) < 0;
+            }
+            return entries.peekFirst();
+        }
+
+        VisitedEntry poll() {
+            return entries.pollFirst();
+        }
+
+        private static byte[] copyOf(ByteBuffer buffer) {
+            if (buffer == null) {
+                return null;
+            }
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return bytes;
+        }
+    }
+
+    private static class VisitedEntry {
+        final long id;
+        final SagaLogEntryType entryType;
+        final byte[] executionId;
+        final byte[] nodeId;
+        final byte[] sagaName;
+        final byte[] jsonData;
+
+        VisitedEntry(long id, SagaLogEntryType entryType, byte[] executionId, byte[] nodeId, byte[] sagaName, byte[] jsonData) {
+            this.id = id;
+            this.entryType = entryType;
+            this.executionId = executionId;
+            this.nodeId = nodeId;
+            this.sagaName = sagaName;
+            this.jsonData = jsonData;
+        }
+
+        void visit(FileSagaLogEntryVisitor visitor) {
+            visitor.visit(id, entryType, view(executionId), view(nodeId), view(sagaName), view(jsonData));
+        }
+
+        private static ByteBuffer view(byte[] bytes) {
+            return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Merges the tails of the shards in id order, holding back the entry with the lowest id until all lower ids are
+     * settled, see {@link #settledIdLimit()}. Reports no more entries meanwhile, and is advanced again when the
+     * subscription is signalled by a shard settling a write.
+     */
+    private class TailSpliterator extends Spliterators.AbstractSpliterator<SagaLogEntry> {
+        final List<Spliterator<SagaLogEntry>> shardEntries;
+        final SagaLogEntry[] heads;
+
+        TailSpliterator(List<Spliterator<SagaLogEntry>> shardEntries) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.shardEntries = shardEntries;
+            this.heads = new SagaLogEntry[shardEntries.size()];
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super SagaLogEntry> action) {
+            // taken before reading the shards, so every entry with an id below it is read if not yet delivered
+            long limit = settledIdLimit();
+            int next = -1;
+            for (int i = 0; i < heads.length; i++) {
+                int shard = i;
+                if (heads[shard] == null) {
+                    shardEntries.get(shard).tryAdvance(entry -> heads[shard] = entry);
+                }
+                if (heads[shard] != null && (next == -1 || idOf(heads[shard]) < idOf(heads[next]))) {
+                    next = shard;
+                }
+            }
+            if (next == -1 || idOf(heads[next]) >= limit) {
+                return false;
+            }
+            SagaLogEntry entry = heads[next];
+            heads[next] = null;
+            action.accept(entry);
+            return true;
+        }
+    }
+
+    private static class MergeSpliterator extends Spliterators.AbstractSpliterator<SagaLogEntry> {
+        final List<Iterator<SagaLogEntry>> iterators;
+        final SagaLogEntry[] heads;
+
+        MergeSpliterator(List<Iterator<SagaLogEntry>> iterators) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.iterators = iterators;
+            this.heads = new SagaLogEntry[iterators.size()];
+            for (int i = 0; i < heads.length; i++) {
+                heads[i] = iterators.get(i).hasNext() ? iterators.get(i).next() : null;
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super SagaLogEntry> action) {
+            int next = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] != null && (next == -1 || idOf(heads[i]) < idOf(heads[next]))) {
+                    next = i;
+                }
+            }
+            if (next == -1) {
+                return false;
+            }
+            SagaLogEntry entry = heads[next];
+            heads[next] = iterators.get(next).hasNext() ? iterators.get(next).next() : null;
+            action.accept(entry);
+            return true;
+        }
+    }
+}
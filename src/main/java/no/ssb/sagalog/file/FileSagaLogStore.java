@@ -0,0 +1,138 @@
+package no.ssb.sagalog.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Storage engine of a saga-log, holding a sequence of elements, i.e. opaque byte arrays, appended at the tail and removed
+ * from the head. Every element is numbered by a sequence number counted from when the store was opened.
+ * <p>
+ * Not thread-safe, callers must hold the lock guarding the store for all operations, including use of cursors.
+ */
+interface FileSagaLogStore extends Closeable {
+
+    /**
+     * Append an element at the tail. Unless the store syncs every append, the element is only durable once a sync
+     * obtained by {@link #unsynced()} after this append has been run.
+     *
+     * @return the sequence number of the element.
+     */
+    default long append(byte[] element) throws IOException {
+        return append(ByteBuffer.wrap(element));
+    }
+
+    /**
+     * Append the remaining bytes of the buffer as an element, like {@link #append(byte[])}, consuming them. The buffer
+     * is not retained, so it may be reused for the next element.
+     */
+    long append(ByteBuffer element) throws IOException;
+
+    /**
+     * Capture all changes made so far that are not yet durable. The returned sync does the actual I/O and may be run
+     * without holding the lock, concurrently with further changes.
+     */
+    Sync unsynced();
+
+    /**
+     * Remove the given number of elements from the head.
+     */
+    void remove(int n) throws IOException;
+
+    /**
+     * Remove the elements from the given sequence number to the tail, e.g. elements torn by a crash. Only used when the
+     * store is opened, no cursor may be in use.
+     */
+    void removeTail(long sequence) throws IOException;
+
+    /**
+     * Remove all elements.
+     */
+    void clear() throws IOException;
+
+    /**
+     * Sequence number of the first element.
+     */
+    long headSequence();
+
+    /**
+     * Sequence number the next appended element will get.
+     */
+    long nextSequence();
+
+    /**
+     * Number of bytes taken on disk.
+     */
+    long fileSize() throws IOException;
+
+    /**
+     * Number of bytes on disk in use by live elements and headers.
+     */
+    long usedSize() throws IOException;
+
+    /**
+     * A new cursor for reading elements.
+     */
+    Cursor cursor();
+
+    /**
+     * Close the files of the store, e.g. while the log is idle, after making all changes durable. The store is otherwise
+     * unchanged, its files are opened again by the next operation needing them. Syncs obtained before are still valid.
+     */
+    void release() throws IOException;
+
+    /**
+     * Whether the files of the store are closed by {@link #release()} and not yet opened again.
+     */
+    boolean released();
+
+    /**
+     * Sync the directory, making files created in it or moved into it durable, which syncing the files themselves does
+     * not. Skipped on Windows, where directories can not be opened.
+     */
+    static void syncDirectory(Path directory) throws IOException {
+        if (System.getProperty("os.name").startsWith("Windows")) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory.toAbsolutePath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    interface Sync {
+
+        Sync NONE = () -> {
+        };
+
+        void run() throws IOException;
+    }
+
+    /**
+     * Reads elements by sequence number. A cursor may be kept and reused across lock acquisitions to avoid searching
+     * for a position from the head again, but must be positioned with {@link #seek(long)} after every acquisition.
+     */
+    interface Cursor {
+
+        /**
+         * Position the cursor at the element with the given sequence number, which must be between the head and next
+         * sequence numbers.
+         */
+        void seek(long sequence) throws IOException;
+
+        /**
+         * Read the element at the cursor and advance to the next element.
+         */
+        byte[] next() throws IOException;
+
+        /**
+         * Read the element at the cursor as a read-only buffer and advance to the next element. Stores that map their
+         * files return a view of the file, which stays valid after the element is removed.
+         */
+        default ByteBuffer nextBuffer() throws IOException {
+            return ByteBuffer.wrap(next()).asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Subscription to the entries of a log, see {@link FileSagaLog#tail(no.ssb.sagalog.SagaLogEntryId)}. Entries are read
+ * from the log only as they are requested, and delivered on the executor of the subscription, one task at a time.
+ * The log signals the subscription whenever entries are appended, and a task is scheduled if none is running, which
+ * delivers entries until the subscriber has no demand left or all entries have been delivered.
+ */
+class FileSagaLogSubscription implements Flow.Subscription {
+
+    private final Spliterator<SagaLogEntry> entries; // advances past the last entry of the log until more are appended
+    private final Flow.Subscriber<? super SagaLogEntry> subscriber;
+    private final Consumer<SagaLogEntry> onNext;
+    private final Executor executor;
+    private final Consumer<FileSagaLogSubscription> onCancel;
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger signals = new AtomicInteger(); // a task is running or scheduled while non-zero
+    private volatile boolean cancelled;
+    private volatile boolean closed;
+    private volatile IllegalArgumentException invalidRequest;
+
+    FileSagaLogSubscription(Spliterator<SagaLogEntry> entries, Flow.Subscriber<? super SagaLogEntry> subscriber,
+                            Executor executor, Consumer<FileSagaLogSubscription> onCancel) {
+        this.entries = entries;
+        this.subscriber = subscriber;
+        this.onNext = subscriber::onNext;
+        this.executor = executor;
+        this.onCancel = onCancel;
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            invalidRequest = new IllegalArgumentException("Number of requested entries must be positive: " + n);
+        } else {
+            demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+        }
+        signal();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        onCancel.accept(this);
+    }
+
+    /**
+     * The log was closed, the subscriber is completed without delivering the entries not yet delivered.
+     */
+    void close() {
+        closed = true;
+        signal();
+    }
+
+    /**
+     * Entries may have been appended, or there is new demand.
+     */
+    void signal() {
+        if (signals.getAndIncrement() != 0) {
+            return;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            cancel();
+            subscriber.onError(e);
+        }
+    }
+
+    private void drain() {
+        int missed = 1;
+        do {
+            if (!deliver()) {
+                // terminated, signals are never reset so no task is scheduled again
+                return;
+            }
+            missed = signals.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Deliver entries while there is demand.
+     *
+     * @return false once the subscription is terminated.
+     */
+    private boolean deliver() {
+        if (cancelled) {
+            return false;
+        }
+        if (invalidRequest != null) {
+            cancel();
+            subscriber.onError(invalidRequest);
+            return false;
+        }
+        if (closed) {
+            cancel();
+            subscriber.onComplete();
+            return false;
+        }
+        long requested = demand.get();
+        long delivered = 0;
+        try {
+            while (delivered < requested && !cancelled && entries.tryAdvance(onNext)) {
+                delivered++;
+            }
+        } catch (RuntimeException e) {
+            cancel();
+            if (closed) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onError(e);
+            }
+            return false;
+        }
+        if (delivered > 0 && requested != Long.MAX_VALUE) {
+            demand.addAndGet(-delivered);
+        }
+        return true;
+    }
+}
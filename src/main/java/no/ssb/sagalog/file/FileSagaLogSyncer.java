@@ -0,0 +1,21 @@
+package no.ssb.sagalog.file;
+
+/**
+ * Background syncer of the interval durability mode. Syncs all entries written to the log since the previous sync at
+ * a fixed rate on the shared {@link FileSagaLogScheduler}, bounding the time a completed write may go unsynced. Syncs
+ * stop at the first failed sync, after which the log refuses all writes.
+ */
+class FileSagaLogSyncer implements AutoCloseable {
+
+    private final FileSagaLogScheduler.Task task;
+
+    FileSagaLogSyncer(FileSagaLog sagaLog, long intervalMs) {
+        // a failed sync throws, which cancels the task
+        this.task = FileSagaLogScheduler.schedule(sagaLog::sync, intervalMs, true);
+    }
+
+    @Override
+    public void close() {
+        task.close();
+    }
+}
@@ -0,0 +1,236 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogEntryBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group-commit writer, appending writes from many producer threads without them ever taking the lock of the log.
+ * <p>
+ * A producer claims the next id of the log with an atomic increment, then builds and encodes its entry in its own
+ * thread, in parallel with other producers, and hands it over through a lock-free queue. A single sequencer thread
+ * publishes the encoded entries strictly in the order of their claimed ids, gathering all entries that are ready in
+ * order into batches. Each batch is appended to the log as one element with at most one disk sync, and the future of
+ * every write in the batch is completed only after the batch is written according to the durability mode of the log.
+ * Futures are completed on the sequencer thread, so callers doing heavy work on completion should use the async
+ * variants of the CompletableFuture composition methods.
+ * <p>
+ * A bulk write claims consecutive ids for all its entries at once and is sequenced as a single write, so it is never
+ * split across batches, and may make a batch exceed the maximum batch size.
+ * <p>
+ * Readers and truncation only contend with the sequencer for the lock of the log, never with producers.
+ * <p>
+ * Producers encode their entries into buffers taken from a pool, which the sequencer returns to the pool once the
+ * batch is appended, so that the entries of a write are not copied into arrays of their own. Only buffers of up to
+ * {@link #MAX_POOLED_CAPACITY} bytes are returned, and only as many as fit in a full batch.
+ * <p>
+ * When ids are shared with other logs, the ids of this log have gaps, so writes are instead sequenced by tickets of
+ * their own. A ticket and an id are claimed together, under a lock held only for the two increments, to keep ids
+ * increasing within the log.
+ */
+class FileSagaLogWriter implements AutoCloseable {
+
+    static final int MAX_POOLED_CAPACITY = 16 * 1024;
+
+    private final FileSagaLog sagaLog;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final Queue<PendingWrite> queue = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final AtomicLong tickets; // null if ids are the tickets
+    private final ReentrantLock ticketLock = new ReentrantLock();
+    private final BlockingQueue<ByteBuffer> buffers; // encoded entries of committed writes, to be reused
+    private volatile boolean closed;
+
+    FileSagaLogWriter(FileSagaLog sagaLog, int maxBatchSize, long maxLingerMs, boolean sharedIds) {
+        this.sagaLog = sagaLog;
+        this.tickets = sharedIds ? new AtomicLong() : null;
+        this.maxBatchSize = maxBatchSize;
+        this.buffers = new ArrayBlockingQueue<>(maxBatchSize);
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMs);
+        this.thread = new Thread(this::run, "filesagalog-writer-" + sagaLog.id().getLogName());
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Start sequencing, expecting the first write to claim the given id, unless ids are shared with other logs.
+     */
+    void start(long firstId) {
+        nextTicket = tickets == null ? firstId : 0;
+        thread.start();
+    }
+
+    CompletableFuture<SagaLogEntry> submit(SagaLogEntryBuilder builder) {
+        return submit(List.of(builder)).thenApply(entries -> entries.get(0));
+    }
+
+    CompletableFuture<List<SagaLogEntry>> submit(List<SagaLogEntryBuilder> builders) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Saga-log writer is closed: " + sagaLog.id()));
+        }
+        // every claimed ticket must be handed to the sequencer, which waits for the tickets in order
+        PendingWrite pendingWrite = claim(builders.size());
+        try {
+            List<SagaLogEntry> entries = new ArrayList<>(builders.size());
+            for (SagaLogEntryBuilder builder : builders) {
+                entries.add(sagaLog.build(builder, pendingWrite.id + entries.size()));
+            }
+            pendingWrite.entries = entries;
+            pendingWrite.encodedEntries = sagaLog.codec().encodeEntries(entries, buffers.poll());
+        } catch (Throwable t) {
+            pendingWrite.failure = t;
+        }
+        queue.add(pendingWrite);
+        LockSupport.unpark(thread);
+        if (closed) {
+            // the sequencer handles everything queued before it stops, anything left after that lost a race with close
+            join();
+            if (queue.remove(pendingWrite)) {
+                sagaLog.settled(pendingWrite.id);
+                pendingWrite.future.completeExceptionally(new IllegalStateException("Saga-log writer is closed: " + sagaLog.id()));
+            }
+        }
+        return pendingWrite.future;
+    }
+
+    private PendingWrite claim(int count) {
+        if (tickets == null) {
+            long id = sagaLog.claimIds(count);
+            return new PendingWrite(id, id + count, id, count);
+        }
+        ticketLock.lock();
+        try {
+            long ticket = tickets.getAndIncrement();
+            return new PendingWrite(ticket, ticket + 1, sagaLog.claimIds(count), count);
+        } finally {
+            ticketLock.unlock();
+        }
+    }
+
+    // used only by the sequencer thread
+    private long nextTicket;
+    private final List<SagaLogEntry> batchEntries = new ArrayList<>();
+    private final List<ByteBuffer> batchEncodedEntries = new ArrayList<>();
+    private final Map<Long, PendingWrite> outOfOrder = new HashMap<>();
+    private int batchEntryCount;
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        while (true) {
+            batch.clear();
+            batchEntryCount = 0;
+            collect(batch);
+            if (!batch.isEmpty() && maxLingerNanos > 0) {
+                long deadline = System.nanoTime() + maxLingerNanos;
+                long remaining;
+                while (batchEntryCount < maxBatchSize && (remaining = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(this, remaining);
+                    collect(batch);
+                }
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+            } else if (closed && queue.isEmpty() && outOfOrder.isEmpty()) {
+                return;
+            } else {
+                // woken by producers once they queue a write, and by close
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * Add all writes that are next in order, until the batch has the maximum number of entries. Failed writes are
+     * completed right away.
+     */
+    private void collect(List<PendingWrite> batch) {
+        PendingWrite pendingWrite;
+        while ((pendingWrite = queue.poll()) != null) {
+            outOfOrder.put(pendingWrite.ticket, pendingWrite);
+        }
+        while (batchEntryCount < maxBatchSize && (pendingWrite = outOfOrder.remove(nextTicket)) != null) {
+            nextTicket = pendingWrite.nextTicket;
+            if (pendingWrite.failure != null) {
+                sagaLog.settled(pendingWrite.id);
+                pendingWrite.future.completeExceptionally(pendingWrite.failure);
+            } else {
+                batch.add(pendingWrite);
+                batchEntryCount += pendingWrite.count;
+            }
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) {
+        batchEntries.clear();
+        batchEncodedEntries.clear();
+        for (PendingWrite pendingWrite : batch) {
+            batchEntries.addAll(pendingWrite.entries);
+            batchEncodedEntries.add(pendingWrite.encodedEntries);
+        }
+        PendingWrite last = batch.get(batch.size() - 1);
+        try {
+            sagaLog.append(batchEntries, batchEncodedEntries, last.id + last.count);
+        } catch (Throwable t) {
+            for (PendingWrite pendingWrite : batch) {
+                sagaLog.settled(pendingWrite.id);
+                pendingWrite.future.completeExceptionally(t);
+            }
+            return;
+        }
+        for (PendingWrite pendingWrite : batch) {
+            sagaLog.settled(pendingWrite.id);
+            if (pendingWrite.encodedEntries.capacity() <= MAX_POOLED_CAPACITY) {
+                buffers.offer(pendingWrite.encodedEntries);
+            }
+            pendingWrite.encodedEntries = null;
+            pendingWrite.future.complete(pendingWrite.entries);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        join();
+    }
+
+    private void join() {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class PendingWrite {
+        final long ticket;
+        final long nextTicket;
+        final long id; // first of count consecutive ids
+        final int count;
+        final CompletableFuture<List<SagaLogEntry>> future = new CompletableFuture<>();
+        List<SagaLogEntry> entries;
+        ByteBuffer encodedEntries; // by the producer, in a buffer of the pool
+        Throwable failure;
+
+        PendingWrite(long ticket, long nextTicket, long id, int count) {
+            this.ticket = ticket;
+            this.nextTicket = nextTicket;
+            this.id = id;
+            this.count = count;
+        }
+    }
+}
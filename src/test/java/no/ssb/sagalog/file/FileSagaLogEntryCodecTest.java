@@ -0,0 +1,198 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogEntryBuilder;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class FileSagaLogEntryCodecTest {
+
+    final FileSagaLogEntryCodec codec = new FileSagaLogEntryCodec();
+
+    List<SagaLogEntry> entries() {
+        return List.of(
+                new SagaLogEntryBuilder().id(new FileSagaLogEntryId(0)).startSaga("ex-1234", "Some-test-saga", "{}").build(),
+                new SagaLogEntryBuilder().id(new FileSagaLogEntryId(1)).startAction("ex-1234", "abc-Start-Action").build(),
+                new SagaLogEntryBuilder().id(new FileSagaLogEntryId(2)).endAction("ex-1234", "abc-End-Action", "{\"a\":\"æøå \\u00e5\"}").build(),
+                new SagaLogEntryBuilder().id(new FileSagaLogEntryId(Long.MAX_VALUE)).abort("ex-1234", "abc-Abort").build(),
+                new SagaLogEntryBuilder().id(new FileSagaLogEntryId(-1)).compDone("ex-1234", "abc-Comp-Done").build(),
+                new SagaLogEntryBuilder().id(new FileSagaLogEntryId(300)).endSaga("ex-1234").build()
+        );
+    }
+
+    @Test
+    public void thatBinaryFrameRoundtripWorks() {
+        List<SagaLogEntry> entries = entries();
+        assertEquals(codec.decode(codec.encode(entries)), entries);
+        for (SagaLogEntry entry : entries) {
+            assertEquals(codec.decode(codec.encode(List.of(entry))), List.of(entry));
+        }
+    }
+
+    @Test
+    public void thatFieldsTheTextFormatCannotRepresentAreKept() {
+        List<SagaLogEntry> entries = List.of(
+                new SagaLogEntryBuilder().id(new FileSagaLogEntryId(7)).startSaga("ex 1", "Saga {with} braces", "{\"k\": 1}").build(),
+                new SagaLogEntryBuilder().id(new FileSagaLogEntryId(8)).startSaga("ex-1", "Saga", null).build(),
+                new SagaLogEntryBuilder().id(new FileSagaLogEntryId(9)).endAction("ex-1", "node with spaces", "").build()
+        );
+        assertEquals(codec.decode(codec.encode(entries)), entries);
+    }
+
+    @Test
+    public void thatCompressedAndUncompressedJsonDataAreReadSideBySide() {
+        StringBuilder items = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 100; i++) {
+            items.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"status\":\"DONE\"}");
+        }
+        String compressible = items.append("]}").toString();
+        Random random = new Random(1);
+        StringBuilder noise = new StringBuilder("\"");
+        for (int i = 0; i < 70; i++) {
+            noise.append((char) (0x21 + random.nextInt(90)));
+        }
+        String incompressible = noise.append("\"").toString();
+        List<SagaLogEntry> entries = List.of(
+                new SagaLogEntryBuilder().id(new FileSagaLogEntryId(0)).startSaga("ex-1", "Saga", compressible).build(),
+                new SagaLogEntryBuilder().id(new FileSagaLogEntryId(1)).endAction("ex-1", "action", "{}").build(),
+                new SagaLogEntryBuilder().id(new FileSagaLogEntryId(2)).endAction("ex-1", "action", incompressible).build()
+        );
+        FileSagaLogEntryCodec compressingCodec = new FileSagaLogEntryCodec(64);
+        byte[] compressed = compressingCodec.encode(entries);
+        assertTrue(compressed.length < codec.encode(entries).length - compressible.length() / 2);
+        assertEquals(compressingCodec.decode(compressed), entries);
+        assertEquals(codec.decode(compressed), entries);
+        assertEquals(codec.decode(compressed, 0), entries.get(0));
+        assertEquals(compressingCodec.encodeEntries(entries.subList(2, 3), null), codec.encodeEntries(entries.subList(2, 3), null));
+
+        List<String> jsonData = new ArrayList<>();
+        codec.visitEntries(ByteBuffer.wrap(compressed).asReadOnlyBuffer(), 0, (id, entryType, executionId, nodeId, sagaName, json) ->
+                jsonData.add(StandardCharsets.UTF_8.decode(json).toString()));
+        assertEquals(jsonData, List.of(compressible, "{}", incompressible));
+    }
+
+    @Test
+    public void thatStringsAreEncodedLikeStringGetBytes() {
+        for (String value : List.of("", "ascii", "æøå", "\u20ac \u0800 \uffff", "\ud83d\ude00 emoji", "unpaired \ud83d high", "unpaired \ude00 low", "\ud83d")) {
+            ByteBuffer buffer = ByteBuffer.allocate(3 * value.length());
+            FileSagaLogEntryCodec.putUtf8(buffer, value);
+            byte[] expected = value.getBytes(StandardCharsets.UTF_8);
+            assertEquals(FileSagaLogEntryCodec.utf8Length(value), expected.length, value);
+            assertEquals(Arrays.copyOf(buffer.array(), buffer.position()), expected, value);
+        }
+    }
+
+    @Test
+    public void thatEncodingIntoABufferReusesIt() {
+        List<SagaLogEntry> entries = entries();
+        ByteBuffer buffer = codec.encode(entries, null);
+        assertTrue(buffer.isDirect());
+        byte[] element = new byte[buffer.remaining()];
+        buffer.get(element);
+        assertEquals(element, codec.encode(entries));
+        assertEquals(codec.decode(element), entries);
+
+        assertSame(codec.encode(entries.subList(0, 2), buffer), buffer);
+        assertEquals(buffer.remaining(), codec.encode(entries.subList(0, 2)).length);
+        ByteBuffer encodedEntries = codec.encodeEntries(entries.subList(0, 2), null);
+        assertSame(codec.encodeEntries(entries.subList(0, 1), encodedEntries), encodedEntries);
+        List<ByteBuffer> encodedWrites = List.of(encodedEntries, codec.encodeEntries(entries.subList(1, 2), null));
+        assertSame(codec.frame(encodedWrites, 2, buffer), buffer);
+        byte[] framed = new byte[buffer.remaining()];
+        buffer.get(framed);
+        assertEquals(framed, codec.encode(entries.subList(0, 2)));
+
+        String largeJsonData = "{\"data\":\"" + "x".repeat(buffer.capacity()) + "\"}";
+        SagaLogEntry large = new SagaLogEntryBuilder().id(new FileSagaLogEntryId(7)).endAction("ex-1234", "large", largeJsonData).build();
+        ByteBuffer grown = codec.encode(List.of(large), buffer);
+        assertTrue(grown.capacity() > buffer.capacity());
+        byte[] largeElement = new byte[grown.remaining()];
+        grown.get(largeElement);
+        assertEquals(codec.decode(largeElement), List.of(large));
+        assertSame(FileSagaLogEntryCodec.reusable(grown, buffer), grown);
+
+        // a buffer for an element beyond the limit is only used for that element
+        String hugeJsonData = "{\"data\":\"" + "x".repeat(FileSagaLogEntryCodec.MAX_REUSED_CAPACITY) + "\"}";
+        SagaLogEntry huge = new SagaLogEntryBuilder().id(new FileSagaLogEntryId(8)).endAction("ex-1234", "huge", hugeJsonData).build();
+        ByteBuffer hugeBuffer = codec.encode(List.of(huge), grown);
+        assertFalse(hugeBuffer.isDirect());
+        assertSame(FileSagaLogEntryCodec.reusable(hugeBuffer, grown), grown);
+        byte[] hugeElement = new byte[hugeBuffer.remaining()];
+        hugeBuffer.get(hugeElement);
+        assertEquals(codec.decode(hugeElement), List.of(huge));
+    }
+
+    @Test
+    public void thatCorruptFramesFailVerification() {
+        byte[] element = codec.encode(entries());
+        assertTrue(codec.verify(element));
+        for (int i : new int[]{2, 6, element.length / 2, element.length - 1}) {
+            byte[] corrupt = element.clone();
+            corrupt[i] ^= 0x10;
+            assertFalse(codec.verify(corrupt));
+        }
+        assertFalse(codec.verify(Arrays.copyOf(element, element.length - 3)));
+        assertFalse(codec.verify(new byte[]{0, 2, 5, 1}));
+        assertTrue(codec.verify(codec.encodeText(entries().get(0))));
+    }
+
+    @Test
+    public void thatBinaryFrameWithoutChecksumIsReadable() {
+        List<SagaLogEntry> entries = entries();
+        byte[] element = codec.encode(entries);
+        byte[] unchecksummed = new byte[element.length - 4];
+        unchecksummed[0] = FileSagaLogEntryCodec.FRAME_MAGIC;
+        unchecksummed[1] = FileSagaLogEntryCodec.BINARY_FRAME_VERSION;
+        System.arraycopy(element, FileSagaLogEntryCodec.CHECKSUMMED_FRAME_HEADER_LENGTH, unchecksummed, 2, unchecksummed.length - 2);
+        assertTrue(codec.verify(unchecksummed));
+        assertEquals(codec.decode(unchecksummed), entries);
+        assertEquals(codec.decode(unchecksummed, 2), entries.get(2));
+    }
+
+    @Test
+    public void thatLegacyTextEntryIsReadable() {
+        for (SagaLogEntry entry : entries()) {
+            assertEquals(codec.decode(codec.encodeText(entry)), List.of(entry));
+        }
+    }
+
+    @Test
+    public void thatTextFrameIsReadable() {
+        List<SagaLogEntry> entries = entries();
+        byte[][] textEntries = new byte[entries.size()][];
+        int length = 2 + 4;
+        for (int i = 0; i < entries.size(); i++) {
+            textEntries[i] = codec.encodeText(entries.get(i));
+            length += 4 + textEntries[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(FileSagaLogEntryCodec.FRAME_MAGIC).put(FileSagaLogEntryCodec.TEXT_FRAME_VERSION).putInt(entries.size());
+        for (byte[] textEntry : textEntries) {
+            buffer.putInt(textEntry.length).put(textEntry);
+        }
+        assertEquals(codec.decode(buffer.array()), entries);
+    }
+
+    @Test
+    public void thatVarintRoundtripWorks() {
+        long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        for (long value : values) {
+            ByteBuffer buffer = ByteBuffer.allocate(FileSagaLogEntryCodec.varintSize(value));
+            FileSagaLogEntryCodec.putVarint(buffer, value);
+            assertEquals(buffer.remaining(), 0);
+            buffer.flip();
+            assertEquals(FileSagaLogEntryCodec.getVarint(buffer), value);
+        }
+    }
+}
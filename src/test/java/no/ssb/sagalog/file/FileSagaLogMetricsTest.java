@@ -0,0 +1,164 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogId;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class FileSagaLogMetricsTest {
+
+    static class RecordingMetrics implements FileSagaLogMetrics {
+        final Map<String, AtomicLong> counts = new ConcurrentHashMap<>();
+        final Map<String, AtomicLong> totals = new ConcurrentHashMap<>();
+
+        void record(String name, long value) {
+            counts.computeIfAbsent(name, k -> new AtomicLong()).incrementAndGet();
+            totals.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(value);
+        }
+
+        long count(String name) {
+            return counts.getOrDefault(name, new AtomicLong()).get();
+        }
+
+        long total(String name) {
+            return totals.getOrDefault(name, new AtomicLong()).get();
+        }
+
+        @Override
+        public void opened(FileSagaLog sagaLog, long recoveryNanos, long entries) {
+            record("opened", entries);
+        }
+
+        @Override
+        public void closed(FileSagaLog sagaLog) {
+            record("closed", 1);
+        }
+
+        @Override
+        public void repaired(SagaLogId logId, long removedElements) {
+            record("repaired", removedElements);
+        }
+
+        @Override
+        public void write(SagaLogId logId, int entries, int bytes, long latencyNanos) {
+            record("write.entries", entries);
+            record("write.bytes", bytes);
+        }
+
+        @Override
+        public void sync(SagaLogId logId, long latencyNanos) {
+            record("sync", latencyNanos);
+        }
+
+        @Override
+        public void truncate(SagaLogId logId, long latencyNanos) {
+            record("truncate", latencyNanos);
+        }
+
+        @Override
+        public void checkpoint(SagaLogId logId, long entries, int bytes, long durationNanos) {
+            record("checkpoint", entries);
+        }
+
+        @Override
+        public void lockWait(SagaLogId logId, long nanos) {
+            record("lockWait", nanos);
+        }
+
+        @Override
+        public void poolConnect(SagaLogId logId) {
+            record("poolConnect", 1);
+        }
+
+        @Override
+        public void poolDelete(SagaLogId logId) {
+            record("poolDelete", 1);
+        }
+
+        @Override
+        public void handleAccess(SagaLogId logId, boolean hit) {
+            record(hit ? "handleAccess.hit" : "handleAccess.miss", 1);
+        }
+
+        @Override
+        public void handleEvicted(SagaLogId logId) {
+            record("handleEvicted", 1);
+        }
+    }
+
+    @Test
+    public void thatLogOperationsAreMeasured() throws IOException {
+        FileSagaLogId logId = new FileSagaLogId(Paths.get("target"), "01", "metricslog");
+        Files.deleteIfExists(logId.getPath());
+        Files.deleteIfExists(FileSagaLogMeta.pathOf(logId.getPath()));
+        RecordingMetrics metrics = new RecordingMetrics();
+
+        SagaLogEntry last;
+        try (FileSagaLog sagaLog = new FileSagaLog(logId, FileSagaLogConfig.defaults(), metrics)) {
+            sagaLog.write(sagaLog.builder().startSaga("ex-1", "Saga", "{}")).join();
+            last = sagaLog.write(sagaLog.builder().endSaga("ex-1")).join();
+            sagaLog.write(sagaLog.builder().startSaga("ex-2", "Saga", "{}")).join();
+            assertTrue(sagaLog.usedSize() > 0);
+            assertTrue(sagaLog.usedSize() <= sagaLog.fileSize());
+            long usedSize = sagaLog.usedSize();
+            sagaLog.truncate(last.getId()).join();
+            assertTrue(sagaLog.usedSize() < usedSize);
+        }
+        assertEquals(metrics.total("opened"), 0);
+        assertEquals(metrics.count("write.entries"), 3);
+        assertEquals(metrics.total("write.entries"), 3);
+        assertTrue(metrics.total("write.bytes") > 0);
+        assertEquals(metrics.count("truncate"), 1);
+        assertEquals(metrics.count("lockWait"), 4);
+        assertEquals(metrics.count("closed"), 1);
+
+        new FileSagaLog(logId, FileSagaLogConfig.defaults(), metrics).close();
+        assertEquals(metrics.count("opened"), 2);
+        assertEquals(metrics.total("opened"), 1);
+    }
+
+    @Test
+    public void thatPoolOperationsAreMeasured() {
+        RecordingMetrics metrics = new RecordingMetrics();
+        FileSagaLogPool pool = new FileSagaLogPool(Paths.get("target"), "metrics01", FileSagaLogConfig.defaults(), metrics);
+        try {
+            SagaLogId logId = pool.registerInstanceLocalIdFor("pool-metrics");
+            pool.connect(logId);
+            pool.remove(logId);
+            pool.delete(logId);
+            assertEquals(metrics.count("poolConnect"), 1);
+            assertEquals(metrics.count("poolDelete"), 1);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void thatNoMetricsAreUsedUnlessAProviderIsNamed() {
+        assertEquals(FileSagaLogInitializer.loadMetrics(""), FileSagaLogMetrics.NOOP);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void thatMissingMetricsProviderIsRejected() {
+        FileSagaLogInitializer.loadMetrics(RecordingMetrics.class.getName());
+    }
+
+    @Test
+    public void thatUnsyncedEntriesAreZeroWithSyncDurability() throws IOException {
+        FileSagaLogId logId = new FileSagaLogId(Paths.get("target"), "01", "metricslog");
+        try (FileSagaLog sagaLog = new FileSagaLog(logId)) {
+            List.of("a", "b").forEach(executionId -> sagaLog.write(sagaLog.builder().endSaga(executionId)).join());
+            assertEquals(sagaLog.unsyncedEntries(), 0);
+        }
+    }
+}
@@ -1,20 +1,35 @@
 package no.ssb.sagalog.file;
 
+import no.ssb.sagalog.SagaLog;
+import no.ssb.sagalog.SagaLogEntry;
 import no.ssb.sagalog.SagaLogId;
+import no.ssb.sagalog.SagaLogInitializer;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
 public class FileSagaLogPoolTest {
 
@@ -63,4 +78,210 @@ public class FileSagaLogPoolTest {
     void thatConnectExternalProducesANonNullSagaLog() {
         assertNotNull(pool.connectExternal(pool.registerInstanceLocalIdFor("anyId")));
     }
+
+    @Test
+    void thatRecoverReadsIncompleteSagasOfAllLogs() throws IOException {
+        Map<SagaLogId, List<SagaLogEntry>> expected = new ConcurrentHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            SagaLogId logId = pool.registerInstanceLocalIdFor("recover-" + i);
+            SagaLog sagaLog = pool.connect(logId);
+            List<SagaLogEntry> entries = new ArrayList<>();
+            for (int j = 0; j <= i; j++) {
+                entries.add(sagaLog.write(sagaLog.builder().startSaga("ex-" + j, "Saga", "{}")).join());
+            }
+            expected.put(logId, entries);
+        }
+        SagaLogId corruptLogId = pool.idFor("test01", "corrupt");
+        Files.write(((FileSagaLogId) corruptLogId).getPath(), new byte[]{1, 2, 3, 4});
+        pool.shutdown();
+
+        pool = new FileSagaLogInitializer().initialize(Map.of("filesagalog.folder", "target/sagalog-pool-test", "cluster.instance-id", "test01",
+                FileSagaLogConfig.RECOVERY_PARALLELISM, "3"));
+        Map<SagaLogId, List<SagaLogEntry>> recovered = new ConcurrentHashMap<>();
+        AtomicInteger progress = new AtomicInteger();
+        FileSagaLogRecovery.Result result = pool.recover(new FileSagaLogRecovery.Listener() {
+            @Override
+            public void incompleteSagas(SagaLogId logId, Stream<SagaLogEntry> entries) {
+                recovered.put(logId, entries.collect(Collectors.toList()));
+            }
+
+            @Override
+            public void recovered(SagaLogId logId, long entries, long durationNanos, int done, int total, Throwable failure) {
+                assertEquals(total, 11);
+                assertTrue(done >= 1 && done <= total);
+                progress.incrementAndGet();
+            }
+        });
+
+        assertEquals(recovered, expected);
+        assertEquals(progress.get(), 11);
+        assertEquals(result.logs(), 11);
+        assertEquals(result.entries(), 55);
+        assertEquals(result.failures().keySet(), Set.of(corruptLogId));
+        for (SagaLogId logId : expected.keySet()) {
+            assertSame(pool.connect(logId), pool.connect(logId));
+            assertEquals(pool.connect(logId).readIncompleteSagas().collect(Collectors.toList()), expected.get(logId));
+        }
+    }
+
+    @Test
+    void thatAnApplicationCanResumeIncompleteSagasOfAllLogsAtStartup() {
+        SagaLog sagaLog = pool.connect(pool.registerInstanceLocalIdFor("resume"));
+        SagaLogEntry start = sagaLog.write(sagaLog.builder().startSaga("ex-1", "Saga", "{}")).join();
+        SagaLogEntry action = sagaLog.write(sagaLog.builder().startAction("ex-1", "action1")).join();
+        pool.shutdown();
+
+        // found through the service loader and configured like any saga-log implementation, then recovered
+        SagaLogInitializer initializer = ServiceLoader.load(SagaLogInitializer.class).stream()
+                .map(ServiceLoader.Provider::get)
+                .filter(FileSagaLogInitializer.class::isInstance)
+                .findFirst()
+                .orElseThrow();
+        pool = (FileSagaLogPool) initializer.initialize(Map.of("filesagalog.folder", "target/sagalog-pool-test", "cluster.instance-id", "test01"));
+        Map<String, List<SagaLogEntry>> executions = new ConcurrentHashMap<>();
+        FileSagaLogRecovery.Result result = pool.recover((logId, entries) -> entries.forEach(entry ->
+                executions.computeIfAbsent(entry.getExecutionId(), executionId -> new ArrayList<>()).add(entry)));
+
+        assertEquals(result.logs(), 1);
+        assertEquals(result.entries(), 2);
+        assertEquals(result.failures(), Map.of());
+        assertTrue(result.durationNanos() > 0);
+        assertEquals(executions, Map.of("ex-1", List.of(start, action)));
+    }
+
+    @Test
+    void thatCachedLogIdsFollowThePoolAndOtherNodes() throws IOException, InterruptedException {
+        Path folder = Paths.get("target/sagalog-pool-cache-test");
+        deleteFolder(folder);
+        FileSagaLogPool cachingPool = new FileSagaLogInitializer().initialize(Map.of("filesagalog.folder", folder.toString(), "cluster.instance-id", "test01",
+                FileSagaLogConfig.LOG_IDS_CACHE_ENABLED, "true",
+                FileSagaLogConfig.LOG_IDS_RELIST_INTERVAL_MS, "60000"));
+        try {
+            assertEquals(cachingPool.clusterWideLogIds(), Set.of());
+            SagaLogId l1 = cachingPool.registerInstanceLocalIdFor("l1");
+            cachingPool.connect(l1);
+            assertEquals(cachingPool.clusterWideLogIds(), Set.of(l1));
+
+            // a log created and deleted by another node
+            SagaLogId x1 = cachingPool.idFor("otherInstance", "x1");
+            new FileSagaLog(x1, FileSagaLogConfig.defaults(), FileSagaLogMetrics.NOOP).close();
+            awaitLogIds(cachingPool, Set.of(l1, x1));
+            Files.delete(((FileSagaLogId) x1).getPath());
+            awaitLogIds(cachingPool, Set.of(l1));
+
+            cachingPool.remove(l1);
+            cachingPool.delete(l1);
+            assertEquals(cachingPool.clusterWideLogIds(), Set.of());
+        } finally {
+            cachingPool.shutdown();
+        }
+    }
+
+    @Test
+    void thatFilesOfLeastRecentlyUsedAndIdleLogsAreClosedAndReopened() throws IOException, InterruptedException {
+        Path folder = Paths.get("target/sagalog-pool-handles-test");
+        for (String engine : List.of("queuefile", "segmented")) {
+            deleteFolder(folder);
+            Files.createDirectories(folder);
+            FileSagaLogMetricsTest.RecordingMetrics metrics = new FileSagaLogMetricsTest.RecordingMetrics();
+            FileSagaLogPool handlesPool = new FileSagaLogPool(folder, "test01", FileSagaLogConfig.from(Map.of(
+                    FileSagaLogConfig.ENGINE, engine,
+                    FileSagaLogConfig.HANDLES_MAX_OPEN, "2")), metrics);
+            try {
+                Map<SagaLog, List<SagaLogEntry>> expected = new LinkedHashMap<>();
+                for (int i = 0; i < 4; i++) {
+                    SagaLog sagaLog = handlesPool.connect(handlesPool.registerInstanceLocalIdFor("handles-" + i));
+                    // opened by the first operation on it
+                    assertFalse(Files.exists(((FileSagaLogId) sagaLog.id()).getPath()));
+                    expected.put(sagaLog, new ArrayList<>(List.of(sagaLog.write(sagaLog.builder().startSaga("ex-" + i, "Saga", "{}")).join())));
+                }
+                awaitCount(metrics, "handleEvicted", 2);
+                assertEquals(metrics.count("handleAccess.miss"), 4);
+                assertEquals(openFiles(folder, "handles-0"), 0);
+                assertEquals(openFiles(folder, "handles-1"), 0);
+                assertTrue(openFiles(folder, "handles-3") > 0);
+
+                for (Map.Entry<SagaLog, List<SagaLogEntry>> entry : expected.entrySet()) {
+                    SagaLog sagaLog = entry.getKey();
+                    entry.getValue().add(sagaLog.write(sagaLog.builder().startAction("ex-1", "action")).join());
+                    assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entry.getValue());
+                }
+                assertTrue(metrics.count("handleAccess.miss") >= 6);
+                assertTrue(metrics.count("handleAccess.hit") >= 4);
+            } finally {
+                handlesPool.shutdown();
+            }
+
+            // idle logs are evicted without any maximum
+            metrics = new FileSagaLogMetricsTest.RecordingMetrics();
+            handlesPool = new FileSagaLogPool(folder, "test01", FileSagaLogConfig.from(Map.of(
+                    FileSagaLogConfig.ENGINE, engine,
+                    FileSagaLogConfig.HANDLES_IDLE_TIMEOUT_MS, "20")), metrics);
+            try {
+                SagaLog sagaLog = handlesPool.connect(handlesPool.registerInstanceLocalIdFor("handles-0"));
+                assertEquals(openFiles(folder, "handles-0"), 0);
+                SagaLogEntry entry = sagaLog.write(sagaLog.builder().endSaga("ex-0")).join();
+                assertEquals(metrics.count("handleAccess.miss"), 1);
+                awaitCount(metrics, "handleEvicted", 1);
+                assertEquals(openFiles(folder, "handles-0"), 0);
+                sagaLog.truncate(entry.getId()).join();
+                assertEquals(metrics.count("handleAccess.miss"), 2);
+                assertEquals(sagaLog.readIncompleteSagas().count(), 0);
+            } finally {
+                handlesPool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Number of file descriptors of this process open on files of the folder with the given name in their path, or 0
+     * where the descriptors can not be listed.
+     */
+    static long openFiles(Path folder, String name) throws IOException {
+        Path descriptors = Paths.get("/proc/self/fd");
+        if (!Files.isDirectory(descriptors)) {
+            return 0;
+        }
+        Path absoluteFolder = folder.toAbsolutePath();
+        long count = 0;
+        try (Stream<Path> paths = Files.list(descriptors)) {
+            for (Path descriptor : (Iterable<Path>) paths::iterator) {
+                try {
+                    Path target = Files.readSymbolicLink(descriptor);
+                    if (target.startsWith(absoluteFolder) && target.toString().contains(name)) {
+                        count++;
+                    }
+                } catch (IOException e) {
+                    // closed while listing
+                }
+            }
+        }
+        return count;
+    }
+
+    static void awaitCount(FileSagaLogMetricsTest.RecordingMetrics metrics, String name, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (metrics.count(name) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(metrics.count(name), expected);
+    }
+
+    static void deleteFolder(Path folder) throws IOException {
+        if (Files.exists(folder)) {
+            try (Stream<Path> paths = Files.walk(folder)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    static void awaitLogIds(FileSagaLogPool pool, Set<SagaLogId> expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!pool.clusterWideLogIds().equals(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(pool.clusterWideLogIds(), expected);
+    }
 }
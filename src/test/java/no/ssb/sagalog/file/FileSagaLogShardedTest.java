@@ -0,0 +1,287 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLog;
+import no.ssb.sagalog.SagaLogEntry;
+import no.ssb.sagalog.SagaLogEntryBuilder;
+import no.ssb.sagalog.SagaLogId;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class FileSagaLogShardedTest {
+
+    static final Path FOLDER = Paths.get("target/sagalog-sharded-test");
+    static final List<Path> SHARD_FOLDERS = List.of(FOLDER.resolve("disk1"), FOLDER.resolve("disk2"));
+
+    FileSagaLogPool pool;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        if (Files.exists(FOLDER)) {
+            try (Stream<Path> paths = Files.walk(FOLDER)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+        pool = createPool("4");
+    }
+
+    @AfterMethod
+    public void teardown() {
+        pool.shutdown();
+    }
+
+    FileSagaLogPool createPool(String shards) {
+        return new FileSagaLogInitializer().initialize(Map.of(
+                "filesagalog.folder", FOLDER.toString(),
+                "cluster.instance-id", "01",
+                FileSagaLogConfig.SHARDS, shards,
+                FileSagaLogConfig.FOLDERS, SHARD_FOLDERS.get(0) + ", " + SHARD_FOLDERS.get(1)
+        ));
+    }
+
+    List<SagaLogEntry> writeSagas(SagaLog sagaLog, int executions) {
+        List<SagaLogEntry> entries = new ArrayList<>();
+        for (int i = 0; i < executions; i++) {
+            entries.add(sagaLog.write(sagaLog.builder().startSaga("ex-" + i, "Saga", "{}")).join());
+        }
+        for (int i = 0; i < executions; i++) {
+            entries.add(sagaLog.write(sagaLog.builder().startAction("ex-" + i, "action")).join());
+        }
+        return entries;
+    }
+
+    @Test
+    public void thatExecutionsAreSpreadOverShardsInAllFolders() throws IOException {
+        SagaLogId logId = pool.registerInstanceLocalIdFor("spread");
+        SagaLog sagaLog = pool.connect(logId);
+        List<SagaLogEntry> entries = writeSagas(sagaLog, 20);
+
+        for (Path folder : SHARD_FOLDERS) {
+            try (Stream<Path> paths = Files.list(folder)) {
+                assertEquals(paths.filter(path -> path.toString().endsWith(".sagalog")).count(), 2);
+            }
+        }
+        assertFalse(Files.exists(((FileSagaLogId) logId).getPath()));
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries);
+        assertEquals(sagaLog.readEntries("ex-7").collect(Collectors.toList()), List.of(entries.get(7), entries.get(27)));
+        assertEquals(pool.clusterWideLogIds(), Set.of(logId));
+    }
+
+    @Test
+    public void thatTruncateCutsAllShardsByIdAndSurvivesReopen() {
+        SagaLogId logId = pool.registerInstanceLocalIdFor("truncate");
+        SagaLog sagaLog = pool.connect(logId);
+        List<SagaLogEntry> entries = writeSagas(sagaLog, 20);
+
+        sagaLog.truncate(entries.get(24).getId()).join();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries.subList(25, 40));
+
+        // an id that is not in the log does not truncate
+        sagaLog.truncate(new FileSagaLogEntryId(Long.MAX_VALUE)).join();
+        assertEquals(sagaLog.readIncompleteSagas().count(), 15);
+
+        pool.remove(logId);
+        sagaLog = pool.connect(logId);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries.subList(25, 40));
+        SagaLogEntry next = sagaLog.write(sagaLog.builder().endSaga("ex-1")).join();
+        assertTrue(((FileSagaLogEntryId) next.getId()).id > ((FileSagaLogEntryId) entries.get(39).getId()).id);
+
+        sagaLog.truncate().join();
+        assertEquals(sagaLog.readIncompleteSagas().count(), 0);
+    }
+
+    @Test
+    public void thatTruncateByIdFindsTheLiveEntriesPastStaleOnes() {
+        SagaLog sagaLog = pool.connect(pool.registerInstanceLocalIdFor("truncate-stale"));
+        List<SagaLogEntry> entries = writeSagas(sagaLog, 200);
+
+        // nothing is written in between, so the positions of all truncated entries are left stale in every shard
+        for (int i = 9; i < 400; i += 10) {
+            sagaLog.truncate(entries.get(i).getId()).join();
+            assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries.subList(i + 1, 400));
+        }
+        List<SagaLogEntry> laterEntries = writeSagas(sagaLog, 2);
+        sagaLog.truncate(laterEntries.get(1).getId()).join();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), laterEntries.subList(2, 4));
+    }
+
+    @Test
+    public void thatBulkWriteGoesToTheShardOfItsExecution() {
+        FileSagaLogApi sagaLog = pool.connect(pool.registerInstanceLocalIdFor("bulk"));
+        List<SagaLogEntry> entries = writeSagas(sagaLog, 10);
+        List<SagaLogEntryBuilder> builders = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            builders.add(sagaLog.builder().startAction("ex-3", "child" + i));
+        }
+        List<SagaLogEntry> children = sagaLog.write(builders).join();
+
+        assertEquals(children.size(), 5);
+        for (int i = 1; i < children.size(); i++) {
+            assertEquals(((FileSagaLogEntryId) children.get(i).getId()).id, ((FileSagaLogEntryId) children.get(i - 1).getId()).id + 1);
+        }
+        List<SagaLogEntry> expectedEntries = new ArrayList<>(entries);
+        expectedEntries.addAll(children);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+        assertEquals(sagaLog.readEntries("ex-3").count(), 7);
+        assertEquals(sagaLog.write(List.of()).join(), List.of());
+
+        List<SagaLogEntryBuilder> mixedBuilders = List.of(sagaLog.builder().startAction("ex-1", "child"), sagaLog.builder().startAction("ex-2", "child"));
+        try {
+            sagaLog.write(mixedBuilders).join();
+            fail("Expected a bulk write of several executions to be refused");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertEquals(sagaLog.readIncompleteSagas().count(), expectedEntries.size());
+    }
+
+    @Test
+    public void thatEntriesOfShardsAreVisitedInIdOrder() {
+        FileSagaLogApi sagaLog = pool.connect(pool.registerInstanceLocalIdFor("visit"));
+        List<SagaLogEntry> entries = writeSagas(sagaLog, 20);
+        sagaLog.truncate(entries.get(4).getId()).join();
+
+        List<Long> ids = new ArrayList<>();
+        List<String> executionIds = new ArrayList<>();
+        long count = sagaLog.readIncompleteSagas((id, entryType, executionId, nodeId, sagaName, jsonData) -> {
+            ids.add(id);
+            executionIds.add(StandardCharsets.UTF_8.decode(executionId).toString());
+        });
+        List<SagaLogEntry> expectedEntries = entries.subList(5, 40);
+        assertEquals(count, expectedEntries.size());
+        assertEquals(ids, expectedEntries.stream().map(entry -> ((FileSagaLogEntryId) entry.getId()).id).collect(Collectors.toList()));
+        assertEquals(executionIds, expectedEntries.stream().map(SagaLogEntry::getExecutionId).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void thatTailMergesShardsInIdOrder() throws Exception {
+        FileSagaLogApi sagaLog = pool.connect(pool.registerInstanceLocalIdFor("tail"));
+        List<SagaLogEntry> entries = writeSagas(sagaLog, 20);
+        FileSagaLogTest.TailSubscriber subscriber = new FileSagaLogTest.TailSubscriber();
+        sagaLog.tail(entries.get(9).getId()).subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        List<SagaLogEntry> expectedEntries = new ArrayList<>(entries.subList(10, 40));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<List<SagaLogEntry>>> writes = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String executionId = "concurrent-" + i;
+            writes.add(executor.submit(() -> {
+                List<SagaLogEntry> written = new ArrayList<>();
+                for (int j = 0; j < 50; j++) {
+                    written.add(sagaLog.write(sagaLog.builder().startAction(executionId, "action" + j)).join());
+                }
+                return written;
+            }));
+        }
+        for (Future<List<SagaLogEntry>> write : writes) {
+            expectedEntries.addAll(write.get(30, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        expectedEntries.sort(Comparator.comparingLong(entry -> ((FileSagaLogEntryId) entry.getId()).id));
+
+        List<SagaLogEntry> delivered = new ArrayList<>();
+        while (delivered.size() < expectedEntries.size()) {
+            delivered.add(subscriber.next());
+        }
+        assertEquals(delivered, expectedEntries);
+    }
+
+    @Test
+    public void thatTailHoldsBackEntriesUntilLowerIdsAreSettled() throws Exception {
+        FileSagaLogSharded sagaLog = (FileSagaLogSharded) pool.connect(pool.registerInstanceLocalIdFor("tail-settled"));
+        String otherExecutionId = "ex-2";
+        for (int i = 3; sagaLog.shardOf(otherExecutionId) == sagaLog.shardOf("ex-1"); i++) {
+            otherExecutionId = "ex-" + i;
+        }
+        FileSagaLogTest.TailSubscriber subscriber = new FileSagaLogTest.TailSubscriber();
+        sagaLog.tail(null).subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        // a write to the shard of ex-1 that has claimed its id but is not yet appended
+        FileSagaLog slowShard = sagaLog.shardOf("ex-1");
+        long claimedId = slowShard.claimIds(1);
+        SagaLogEntry entry = sagaLog.write(sagaLog.builder().startSaga(otherExecutionId, "Saga", "{}")).join();
+        assertNull(subscriber.entries.poll(100, TimeUnit.MILLISECONDS));
+
+        slowShard.settled(claimedId);
+        assertEquals(subscriber.next(), entry);
+        sagaLog.close();
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void thatGroupCommitOfShardsKeepsIdOrder() throws IOException {
+        FileSagaLogConfig config = FileSagaLogConfig.from(Map.of(
+                FileSagaLogConfig.SHARDS, "3",
+                FileSagaLogConfig.GROUP_COMMIT_ENABLED, "true"
+        ));
+        FileSagaLogId logId = new FileSagaLogId(FOLDER, "01", "groupcommit");
+        List<SagaLogEntry> entries;
+        try (FileSagaLogSharded sagaLog = new FileSagaLogSharded(logId, SHARD_FOLDERS, config, FileSagaLogMetrics.NOOP)) {
+            entries = writeSagas(sagaLog, 20);
+            assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries);
+        }
+        try (FileSagaLogSharded sagaLog = new FileSagaLogSharded(logId, SHARD_FOLDERS, config, FileSagaLogMetrics.NOOP)) {
+            List<SagaLogEntry> expectedEntries = new ArrayList<>(entries);
+            expectedEntries.addAll(writeSagas(sagaLog, 5));
+            assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+        }
+    }
+
+    @Test
+    public void thatDeleteRemovesAllShards() throws IOException {
+        SagaLogId logId = pool.registerInstanceLocalIdFor("delete");
+        writeSagas(pool.connect(logId), 10);
+        pool.remove(logId);
+        assertTrue(pool.delete(logId));
+
+        assertEquals(pool.clusterWideLogIds(), Set.of());
+        for (Path folder : SHARD_FOLDERS) {
+            try (Stream<Path> paths = Files.list(folder)) {
+                assertEquals(paths.count(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void thatReopeningWithAnotherShardCountFails() {
+        SagaLogId logId = pool.registerInstanceLocalIdFor("reshard");
+        writeSagas(pool.connect(logId), 10);
+        pool.remove(logId);
+        pool.shutdown();
+
+        pool = createPool("2");
+        try {
+            pool.connect(logId);
+            fail("Expected a log written with 4 shards to be refused with 2");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
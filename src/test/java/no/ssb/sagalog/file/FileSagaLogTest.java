@@ -1,16 +1,28 @@
 package no.ssb.sagalog.file;
 
+import com.squareup.tape2.QueueFile;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import no.ssb.sagalog.SagaLog;
 import no.ssb.sagalog.SagaLogEntry;
 import no.ssb.sagalog.SagaLogEntryBuilder;
+import no.ssb.sagalog.SagaLogId;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -18,9 +30,19 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
 public class FileSagaLogTest {
 
@@ -31,15 +53,47 @@ public class FileSagaLogTest {
         sagaLog = createNewSagaLog();
     }
 
+    @AfterMethod
+    public void closeSagaLog() throws IOException {
+        sagaLog.close();
+    }
+
+    /**
+     * Configuration of the engine under test, overridden to run all tests against another engine.
+     */
+    Map<String, String> engineConfiguration() {
+        return Map.of();
+    }
+
     FileSagaLog createNewSagaLog() {
+        return createNewSagaLog(FileSagaLogConfig.from(engineConfiguration()));
+    }
+
+    FileSagaLog createNewSagaLog(FileSagaLogConfig config) {
         FileSagaLogId logId = new FileSagaLogId(Paths.get("target"), "01", "mylog");
         Path path = logId.getPath();
         try {
+            FileSagaLogSegmentedStore.deleteDirectory(path);
+            Files.deleteIfExists(FileSagaLogMeta.pathOf(path));
+            FileSagaLogCheckpoint.delete(path);
             Files.deleteIfExists(path);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return new FileSagaLog(logId);
+        return new FileSagaLog(logId, config);
+    }
+
+    FileSagaLog reopenSagaLog() throws IOException {
+        sagaLog.close();
+        return new FileSagaLog(sagaLog.id(), FileSagaLogConfig.from(engineConfiguration()));
+    }
+
+    FileSagaLogConfig groupCommitConfig() {
+        Map<String, String> configuration = new HashMap<>(engineConfiguration());
+        configuration.put(FileSagaLogConfig.GROUP_COMMIT_ENABLED, "true");
+        configuration.put(FileSagaLogConfig.GROUP_COMMIT_MAX_BATCH_SIZE, "16");
+        configuration.put(FileSagaLogConfig.GROUP_COMMIT_MAX_LINGER_MS, "5");
+        return FileSagaLogConfig.from(configuration);
     }
 
     @Test
@@ -49,6 +103,31 @@ public class FileSagaLogTest {
         assertEquals(sagaLog.readEntries(expectedEntries.getFirst().getExecutionId()).collect(Collectors.toList()), expectedEntries);
     }
 
+    @Test
+    public void thatReadEntriesOfInterleavedExecutionsWorksAfterTruncateAndReopen() throws IOException {
+        String firstExecutionId = UUID.randomUUID().toString();
+        String secondExecutionId = UUID.randomUUID().toString();
+        List<SagaLogEntry> firstEntries = new ArrayList<>();
+        List<SagaLogEntry> secondEntries = new ArrayList<>();
+        SagaLogEntry truncateEntry = sagaLog.write(sagaLog.builder().startSaga(UUID.randomUUID().toString(), "Other-Saga", "{}")).join();
+        firstEntries.add(sagaLog.write(sagaLog.builder().startSaga(firstExecutionId, "Vanilla-Saga", "{}")).join());
+        secondEntries.add(sagaLog.write(sagaLog.builder().startSaga(secondExecutionId, "Vanilla-Saga", "{}")).join());
+        firstEntries.add(sagaLog.write(sagaLog.builder().startAction(firstExecutionId, "action1")).join());
+        secondEntries.add(sagaLog.write(sagaLog.builder().startAction(secondExecutionId, "action1")).join());
+        firstEntries.add(sagaLog.write(sagaLog.builder().endAction(firstExecutionId, "action1", "{}")).join());
+        sagaLog.truncate(truncateEntry.getId()).join();
+
+        assertEquals(sagaLog.readEntries(firstExecutionId).collect(Collectors.toList()), firstEntries);
+        assertEquals(sagaLog.readEntries(secondExecutionId).collect(Collectors.toList()), secondEntries);
+        assertEquals(sagaLog.readEntries(truncateEntry.getExecutionId()).count(), 0);
+
+        sagaLog = reopenSagaLog();
+
+        assertEquals(sagaLog.readEntries(firstExecutionId).collect(Collectors.toList()), firstEntries);
+        assertEquals(sagaLog.readEntries(secondExecutionId).collect(Collectors.toList()), secondEntries);
+        assertEquals(sagaLog.readEntries(UUID.randomUUID().toString()).count(), 0);
+    }
+
     @Test
     public void thatTruncateWithReadIncompleteWorks() {
         Deque<SagaLogEntry> initialEntries = writeSuccessfulVanillaSagaExecutionEntries(sagaLog, UUID.randomUUID().toString());
@@ -60,6 +139,22 @@ public class FileSagaLogTest {
         assertEquals(actualEntries, expectedEntries);
     }
 
+    @Test
+    public void thatTruncateAfterReopenWorks() throws IOException {
+        Deque<SagaLogEntry> firstEntries = writeSuccessfulVanillaSagaExecutionEntries(sagaLog, UUID.randomUUID().toString());
+        Deque<SagaLogEntry> secondEntries = writeSuccessfulVanillaSagaExecutionEntries(sagaLog, UUID.randomUUID().toString());
+        sagaLog = reopenSagaLog();
+
+        sagaLog.truncate(new FileSagaLogEntryId(Long.MAX_VALUE)).join();
+        assertEquals(sagaLog.readIncompleteSagas().count(), firstEntries.size() + secondEntries.size());
+
+        sagaLog.truncate(firstEntries.getLast().getId()).join();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), List.copyOf(secondEntries));
+
+        sagaLog.truncate(firstEntries.getFirst().getId()).join();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), List.copyOf(secondEntries));
+    }
+
     @Test
     public void thatNoTruncateWithReadIncompleteWorks() {
         Deque<SagaLogEntry> firstEntries = writeSuccessfulVanillaSagaExecutionEntries(sagaLog, UUID.randomUUID().toString());
@@ -72,6 +167,124 @@ public class FileSagaLogTest {
         assertEquals(actualEntries, expectedEntries);
     }
 
+    @Test
+    public void thatReadIncompleteSagasIsAStableSnapshotWhileLogIsModified() {
+        List<SagaLogEntry> snapshotEntries = writeActionEntries(200);
+        Iterator<SagaLogEntry> iterator = sagaLog.readIncompleteSagas().iterator();
+        List<SagaLogEntry> actualEntries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            actualEntries.add(iterator.next());
+        }
+
+        // expands the file, moving any wrapped elements, and truncates elements the stream has not yet read
+        List<SagaLogEntry> laterEntries = writeActionEntries(500);
+        sagaLog.truncate(snapshotEntries.get(100).getId()).join();
+        iterator.forEachRemaining(actualEntries::add);
+
+        assertEquals(actualEntries.subList(0, 50), snapshotEntries.subList(0, 50));
+        assertTrue(actualEntries.containsAll(snapshotEntries.subList(101, 200)));
+        assertTrue(snapshotEntries.containsAll(actualEntries));
+        List<SagaLogEntry> expectedEntries = new ArrayList<>(snapshotEntries.subList(101, 200));
+        expectedEntries.addAll(laterEntries);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+        assertEquals(readIncompleteSagasWithoutDecoding(sagaLog), expectedEntries);
+    }
+
+    @Test
+    public void thatEntriesReadWithoutDecodingMatchDecodedEntries() throws IOException {
+        List<SagaLogEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            entries.addAll(writeSuccessfulVanillaSagaExecutionEntries(sagaLog, UUID.randomUUID().toString()));
+        }
+        sagaLog.truncate(entries.get(9).getId()).join();
+        List<SagaLogEntry> expectedEntries = entries.subList(10, entries.size());
+
+        assertEquals(readIncompleteSagasWithoutDecoding(sagaLog), expectedEntries);
+        sagaLog = reopenSagaLog();
+        assertEquals(readIncompleteSagasWithoutDecoding(sagaLog), expectedEntries);
+    }
+
+    @Test
+    public void thatCorruptElementsAtTheTailAreRemovedOnOpen() throws IOException {
+        List<SagaLogEntry> entries = writeActionEntries(10);
+        sagaLog.close();
+        FileSagaLogEntryCodec codec = new FileSagaLogEntryCodec();
+        byte[] corrupt = codec.encode(List.of(sagaLog.builder().id(new FileSagaLogEntryId(100)).endAction("ex-1", "action", "{}").build()));
+        corrupt[corrupt.length - 2] ^= 1;
+        byte[] intact = codec.encode(List.of(sagaLog.builder().id(new FileSagaLogEntryId(101)).endAction("ex-1", "action", "{}").build()));
+        FileSagaLogConfig config = FileSagaLogConfig.from(engineConfiguration());
+        try (FileSagaLogStore store = FileSagaLog.openStore(((FileSagaLogId) sagaLog.id()).getPath(), config)) {
+            store.append(corrupt);
+            store.append(intact);
+            store.unsynced().run();
+        }
+
+        FileSagaLogMetricsTest.RecordingMetrics metrics = new FileSagaLogMetricsTest.RecordingMetrics();
+        sagaLog = new FileSagaLog(sagaLog.id(), config, metrics);
+        assertEquals(metrics.total("repaired"), 2);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries);
+        List<SagaLogEntry> expectedEntries = new ArrayList<>(entries);
+        expectedEntries.addAll(writeActionEntries(5));
+
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+    }
+
+    @Test
+    public void thatCompressedEntriesAreReadWithCompressionDisabled() throws IOException {
+        sagaLog.close();
+        Map<String, String> configuration = new HashMap<>(engineConfiguration());
+        configuration.put(FileSagaLogConfig.COMPRESSION_ENABLED, "true");
+        configuration.put(FileSagaLogConfig.COMPRESSION_THRESHOLD, "16");
+        sagaLog = createNewSagaLog(FileSagaLogConfig.from(configuration));
+        String executionId = UUID.randomUUID().toString();
+        List<SagaLogEntry> entries = List.of(
+                sagaLog.write(sagaLog.builder().startSaga(executionId, "Saga", "{\"input\":\"" + "x".repeat(1000) + "\"}")).join(),
+                sagaLog.write(sagaLog.builder().endAction(executionId, "action", "{}")).join()
+        );
+
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries);
+        assertEquals(sagaLog.readEntries(executionId).collect(Collectors.toList()), entries);
+        assertEquals(readIncompleteSagasWithoutDecoding(sagaLog), entries);
+    }
+
+    static List<SagaLogEntry> readIncompleteSagasWithoutDecoding(FileSagaLog sagaLog) {
+        List<SagaLogEntry> entries = new ArrayList<>();
+        long count = sagaLog.readIncompleteSagas((id, entryType, executionId, nodeId, sagaName, jsonData) -> entries.add(sagaLog.builder()
+                .id(new FileSagaLogEntryId(id))
+                .entryType(entryType)
+                .executionId(StandardCharsets.UTF_8.decode(executionId).toString())
+                .nodeId(StandardCharsets.UTF_8.decode(nodeId).toString())
+                .sagaName(sagaName == null ? null : StandardCharsets.UTF_8.decode(sagaName).toString())
+                .jsonData(jsonData == null ? null : StandardCharsets.UTF_8.decode(jsonData).toString())
+                .build()));
+        assertEquals(count, entries.size());
+        return entries;
+    }
+
+    @Test
+    public void thatReadIncompleteSagasWorksWhenFileWrapsAround() throws IOException {
+        List<SagaLogEntry> firstEntries = writeActionEntries(40);
+        sagaLog.truncate(firstEntries.get(34).getId()).join();
+        // reuses the space freed at the start of the file
+        List<SagaLogEntry> secondEntries = writeActionEntries(40);
+        List<SagaLogEntry> expectedEntries = new ArrayList<>(firstEntries.subList(35, 40));
+        expectedEntries.addAll(secondEntries);
+
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+    }
+
+    List<SagaLogEntry> writeActionEntries(int n) {
+        List<SagaLogEntry> entries = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            entries.add(sagaLog.write(sagaLog.builder().endAction(UUID.randomUUID().toString(), "action" + i, "{\"i\":" + i + "}")).join());
+        }
+        return entries;
+    }
+
     @Test
     public void thatSnapshotOfSagaLogEntriesByNodeIdWorks() {
         Deque<SagaLogEntry> firstEntries = writeSuccessfulVanillaSagaExecutionEntries(sagaLog, UUID.randomUUID().toString());
@@ -95,6 +308,562 @@ public class FileSagaLogTest {
         assertEquals(secondFlattenedSnapshot, Set.copyOf(secondEntries));
     }
 
+    @Test
+    public void thatGroupCommitOfConcurrentWritesWorks() throws Exception {
+        sagaLog.close();
+        sagaLog = createNewSagaLog(groupCommitConfig());
+
+        int threads = 8;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Deque<SagaLogEntry>>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executorService.submit(() -> writeSuccessfulVanillaSagaExecutionEntriesAsync(sagaLog, UUID.randomUUID().toString())));
+            }
+            Set<SagaLogEntry> expectedEntries = new LinkedHashSet<>();
+            for (Future<Deque<SagaLogEntry>> future : futures) {
+                Deque<SagaLogEntry> executionEntries = future.get(10, TimeUnit.SECONDS);
+                assertEquals(sagaLog.readEntries(executionEntries.getFirst().getExecutionId()).collect(Collectors.toList()), executionEntries);
+                expectedEntries.addAll(executionEntries);
+            }
+            assertEquals(Set.copyOf(sagaLog.readIncompleteSagas().collect(Collectors.toList())), expectedEntries);
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void thatConcurrentProducersAreAppendedInIdOrder() throws Exception {
+        sagaLog.close();
+        sagaLog = createNewSagaLog(groupCommitConfig());
+
+        int threads = 32;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Deque<SagaLogEntry>>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executorService.submit(() -> writeSuccessfulVanillaSagaExecutionEntriesAsync(sagaLog, UUID.randomUUID().toString())));
+            }
+            for (Future<Deque<SagaLogEntry>> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        List<SagaLogEntry> entries = sagaLog.readIncompleteSagas().collect(Collectors.toList());
+        assertEquals(entries.size(), threads * 6);
+        for (int i = 1; i < entries.size(); i++) {
+            assertEquals(idOf(entries.get(i)), idOf(entries.get(i - 1)) + 1);
+        }
+    }
+
+    @Test
+    public void thatAFailedProducerDoesNotStallOtherProducers() throws IOException {
+        sagaLog.close();
+        sagaLog = createNewSagaLog(groupCommitConfig());
+
+        SagaLogEntry first = sagaLog.write(sagaLog.builder().startSaga("ex-1", "Saga", "{}")).join();
+        CompletableFuture<SagaLogEntry> incomplete = sagaLog.write(sagaLog.builder());
+        SagaLogEntry second = sagaLog.write(sagaLog.builder().endSaga("ex-1")).join();
+
+        assertTrue(incomplete.isCompletedExceptionally());
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), List.of(first, second));
+    }
+
+    @Test
+    public void thatTruncateInTheMiddleOfABatchWorks() throws IOException {
+        sagaLog.close();
+        sagaLog = createNewSagaLog(groupCommitConfig());
+
+        Deque<SagaLogEntry> firstEntries = writeSuccessfulVanillaSagaExecutionEntriesAsync(sagaLog, UUID.randomUUID().toString());
+        Deque<SagaLogEntry> secondEntries = writeSuccessfulVanillaSagaExecutionEntriesAsync(sagaLog, UUID.randomUUID().toString());
+        sagaLog.truncate(firstEntries.getLast().getId()).join();
+
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), List.copyOf(secondEntries));
+
+        sagaLog.truncate(secondEntries.getFirst().getId()).join();
+        List<SagaLogEntry> expectedEntries = new ArrayList<>(secondEntries);
+        expectedEntries.remove(0);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+    }
+
+    @Test
+    public void thatTruncateInTheMiddleOfABatchSurvivesReopen() throws IOException {
+        sagaLog.close();
+        sagaLog = createNewSagaLog(groupCommitConfig());
+
+        Deque<SagaLogEntry> firstEntries = writeSuccessfulVanillaSagaExecutionEntriesAsync(sagaLog, UUID.randomUUID().toString());
+        Deque<SagaLogEntry> secondEntries = writeSuccessfulVanillaSagaExecutionEntriesAsync(sagaLog, UUID.randomUUID().toString());
+        sagaLog.truncate(secondEntries.getFirst().getId()).join();
+        List<SagaLogEntry> expectedEntries = new ArrayList<>(secondEntries);
+        expectedEntries.remove(0);
+
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+        assertEquals(sagaLog.readEntries(firstEntries.getFirst().getExecutionId()).count(), 0);
+    }
+
+    @Test
+    public void thatIdsContinueAfterReopen() throws IOException {
+        List<SagaLogEntry> firstEntries = writeActionEntries(10);
+        sagaLog = reopenSagaLog();
+        List<SagaLogEntry> secondEntries = writeActionEntries(10);
+        assertTrue(idOf(secondEntries.get(0)) > idOf(firstEntries.get(9)));
+
+        sagaLog.truncate().join();
+        sagaLog = reopenSagaLog();
+        List<SagaLogEntry> thirdEntries = writeActionEntries(10);
+        assertTrue(idOf(thirdEntries.get(0)) > idOf(secondEntries.get(9)));
+
+        // truncating by an id of the earlier entries must not cut the log
+        sagaLog.truncate(firstEntries.get(5).getId()).join();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), thirdEntries);
+    }
+
+    @Test
+    public void thatBulkWriteIsAppendedAsOneElementWithConsecutiveIds() throws IOException {
+        for (FileSagaLogConfig config : List.of(FileSagaLogConfig.from(engineConfiguration()), groupCommitConfig())) {
+            sagaLog.close();
+            createNewSagaLog(config).close();
+            FileSagaLogMetricsTest.RecordingMetrics metrics = new FileSagaLogMetricsTest.RecordingMetrics();
+            sagaLog = new FileSagaLog(sagaLog.id(), config, metrics);
+
+            SagaLogEntry start = sagaLog.write(sagaLog.builder().startSaga("ex-1", "Saga", "{}")).join();
+            // more entries than the maximum group-commit batch size, which must not split the bulk write
+            List<SagaLogEntryBuilder> builders = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                builders.add(sagaLog.builder().startAction("ex-1", "action" + i));
+            }
+            List<SagaLogEntry> children = sagaLog.write(builders).join();
+
+            assertEquals(children.size(), 20);
+            for (int i = 0; i < children.size(); i++) {
+                assertEquals(idOf(children.get(i)), idOf(start) + 1 + i);
+                assertEquals(children.get(i).getNodeId(), "action" + i);
+            }
+            assertEquals(metrics.count("write.entries"), 2);
+            assertEquals(metrics.total("write.entries"), 21);
+            assertEquals(sagaLog.write(List.of()).join(), List.of());
+
+            List<SagaLogEntry> expectedEntries = new ArrayList<>();
+            expectedEntries.add(start);
+            expectedEntries.addAll(children);
+            sagaLog = reopenSagaLog();
+            assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+        }
+    }
+
+    @Test
+    public void thatVirtualThreadWritersAreNotPinnedWhileTheLockHolderParks() throws Exception {
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new SkipException("Virtual threads are not supported by this JDK");
+        }
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean parked = new AtomicBoolean();
+        FileSagaLogMetrics parkingMetrics = new FileSagaLogMetrics() {
+            @Override
+            public void write(SagaLogId logId, int entries, int bytes, long latencyNanos) {
+                // reported holding the lock of the log, so the first writer parks with the lock held
+                if (parked.compareAndSet(false, true)) {
+                    holding.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        Map<String, String> configuration = new HashMap<>(engineConfiguration());
+        configuration.put(FileSagaLogConfig.GROUP_COMMIT_ENABLED, "false");
+        sagaLog.close();
+        sagaLog = new FileSagaLog(sagaLog.id(), FileSagaLogConfig.from(configuration), parkingMetrics);
+
+        // more contending writers than carrier threads, which would all be blocked if waiting for the lock pinned them
+        int writers = 4 * Runtime.getRuntime().availableProcessors();
+        Path recordingPath = Paths.get("target", "virtual-thread-writers.jfr");
+        List<RecordedEvent> pinned;
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+            recording.start();
+            List<Future<SagaLogEntry>> writes = new ArrayList<>();
+            try {
+                writes.add(executor.submit(() -> sagaLog.write(sagaLog.builder().startSaga("ex-holder", "Saga", "{}")).join()));
+                assertTrue(holding.await(30, TimeUnit.SECONDS));
+                CountDownLatch contending = new CountDownLatch(writers);
+                for (int i = 0; i < writers; i++) {
+                    String executionId = "ex-" + i;
+                    writes.add(executor.submit(() -> {
+                        contending.countDown();
+                        return sagaLog.write(sagaLog.builder().startSaga(executionId, "Saga", "{}")).join();
+                    }));
+                }
+                assertTrue(contending.await(10, TimeUnit.SECONDS), "writers blocked on the lock starve the carrier threads");
+                Thread.sleep(100);
+                assertTrue(executor.submit(() -> true).get(10, TimeUnit.SECONDS), "carrier threads are all blocked");
+            } finally {
+                release.countDown();
+            }
+            for (Future<SagaLogEntry> write : writes) {
+                write.get(30, TimeUnit.SECONDS);
+            }
+            executor.shutdown();
+            recording.stop();
+            recording.dump(recordingPath);
+            pinned = RecordingFile.readAllEvents(recordingPath);
+        } finally {
+            Files.deleteIfExists(recordingPath);
+        }
+
+        assertEquals(pinned, List.of());
+        assertEquals(sagaLog.readIncompleteSagas().count(), writers + 1);
+    }
+
+    @Test
+    public void thatTailDeliversEntriesAfterTheGivenIdAsRequested() throws InterruptedException {
+        SagaLogEntry first = sagaLog.write(sagaLog.builder().startSaga("ex-1", "Saga", "{}")).join();
+        SagaLogEntry second = sagaLog.write(sagaLog.builder().startAction("ex-1", "action1")).join();
+        SagaLogEntry third = sagaLog.write(sagaLog.builder().endAction("ex-1", "action1", "{}")).join();
+        TailSubscriber subscriber = new TailSubscriber();
+        sagaLog.tail(first.getId()).subscribe(subscriber);
+
+        subscriber.subscription.request(1);
+        assertEquals(subscriber.next(), second);
+        assertNull(subscriber.entries.poll(100, TimeUnit.MILLISECONDS));
+        subscriber.subscription.request(2);
+        assertEquals(subscriber.next(), third);
+        SagaLogEntry fourth = sagaLog.write(sagaLog.builder().startAction("ex-1", "action2")).join();
+        assertEquals(subscriber.next(), fourth);
+        SagaLogEntry fifth = sagaLog.write(sagaLog.builder().endAction("ex-1", "action2", "{}")).join();
+        assertNull(subscriber.entries.poll(100, TimeUnit.MILLISECONDS));
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(subscriber.next(), fifth);
+    }
+
+    @Test
+    public void thatTailSkipsTruncatedEntriesAndCompletesWhenTheLogIsClosed() throws InterruptedException, IOException {
+        SagaLogEntry first = sagaLog.write(sagaLog.builder().startSaga("ex-1", "Saga", "{}")).join();
+        TailSubscriber subscriber = new TailSubscriber();
+        sagaLog.tail(null).subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(subscriber.next(), first);
+
+        sagaLog.truncate().join();
+        SagaLogEntry second = sagaLog.write(sagaLog.builder().startSaga("ex-2", "Saga", "{}")).join();
+        assertEquals(subscriber.next(), second);
+        List<SagaLogEntry> bulk = sagaLog.write(List.of(sagaLog.builder().startAction("ex-2", "action1"),
+                sagaLog.builder().startAction("ex-2", "action2"))).join();
+        assertEquals(subscriber.next(), bulk.get(0));
+        assertEquals(subscriber.next(), bulk.get(1));
+
+        // a later subscriber from a truncated entry starts at the head of the log
+        sagaLog.truncate(bulk.get(0).getId()).join();
+        TailSubscriber late = new TailSubscriber();
+        sagaLog.tail(second.getId()).subscribe(late);
+        late.subscription.request(Long.MAX_VALUE);
+        assertEquals(late.next(), bulk.get(1));
+
+        sagaLog.close();
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertTrue(late.completed.await(10, TimeUnit.SECONDS));
+        assertNull(subscriber.error);
+        sagaLog = new FileSagaLog(sagaLog.id(), FileSagaLogConfig.from(engineConfiguration()));
+    }
+
+    static class TailSubscriber implements Flow.Subscriber<SagaLogEntry> {
+        final LinkedBlockingQueue<SagaLogEntry> entries = new LinkedBlockingQueue<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(SagaLogEntry entry) {
+            entries.add(entry);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        SagaLogEntry next() throws InterruptedException {
+            SagaLogEntry entry = entries.poll(10, TimeUnit.SECONDS);
+            assertTrue(entry != null, "no entry delivered");
+            return entry;
+        }
+    }
+
+    private static long idOf(SagaLogEntry entry) {
+        return ((FileSagaLogEntryId) entry.getId()).id;
+    }
+
+    /**
+     * Write a long-running saga followed by the given number of completed sagas, each interleaved with an action of an
+     * incomplete saga, returning the entries that are not of completed sagas.
+     */
+    private List<SagaLogEntry> writeMostlyCompletedSagas(int completedSagas) {
+        List<SagaLogEntry> incompleteEntries = new ArrayList<>();
+        incompleteEntries.add(sagaLog.write(sagaLog.builder().startSaga("long-running", "Long-Saga", "{}")).join());
+        for (int i = 0; i < completedSagas; i++) {
+            writeSuccessfulVanillaSagaExecutionEntries(sagaLog, UUID.randomUUID().toString());
+            incompleteEntries.addAll(writeActionEntries(1));
+        }
+        return incompleteEntries;
+    }
+
+    @Test
+    public void thatCompactionDropsCompletedSagas() throws IOException {
+        List<SagaLogEntry> incompleteEntries = writeMostlyCompletedSagas(50);
+        assertEquals(sagaLog.completedEntries(), 300);
+        long usedSize = sagaLog.usedSize();
+
+        assertEquals(sagaLog.compact(), 300);
+        assertEquals(sagaLog.completedEntries(), 0);
+        assertTrue(sagaLog.usedSize() < usedSize);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), incompleteEntries);
+        assertEquals(sagaLog.readEntries("long-running").collect(Collectors.toList()), incompleteEntries.subList(0, 1));
+
+        List<SagaLogEntry> laterEntries = writeActionEntries(5);
+        sagaLog.truncate(incompleteEntries.get(10).getId()).join();
+        List<SagaLogEntry> expectedEntries = new ArrayList<>(incompleteEntries.subList(11, incompleteEntries.size()));
+        expectedEntries.addAll(laterEntries);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+        assertTrue(idOf(writeActionEntries(1).get(0)) > idOf(laterEntries.get(4)));
+    }
+
+    @Test
+    public void thatTruncatedEntriesAreReclaimedWithoutFurtherWrites() {
+        List<SagaLogEntry> incompleteEntries = writeMostlyCompletedSagas(50);
+        assertEquals(sagaLog.completedEntries(), 300);
+        sagaLog.truncate(incompleteEntries.get(incompleteEntries.size() - 1).getId()).join();
+        assertEquals(sagaLog.completedEntries(), 0);
+        assertEquals(sagaLog.readIncompleteSagas().count(), 0);
+    }
+
+    @Test
+    public void thatCompactionKeepsEntriesTruncatedFromTheHeadElementOut() throws IOException {
+        sagaLog.close();
+        sagaLog = createNewSagaLog(groupCommitConfig());
+        List<SagaLogEntry> incompleteEntries = writeMostlyCompletedSagas(20);
+        Deque<SagaLogEntry> batchEntries = writeSuccessfulVanillaSagaExecutionEntriesAsync(sagaLog, UUID.randomUUID().toString());
+        sagaLog.truncate(incompleteEntries.get(incompleteEntries.size() - 1).getId()).join();
+        sagaLog.truncate(batchEntries.getFirst().getId()).join();
+
+        sagaLog.compact();
+        assertEquals(sagaLog.readIncompleteSagas().count(), 0);
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().count(), 0);
+    }
+
+    @Test
+    public void thatReadIncompleteSagasContinuesAcrossCompaction() throws IOException {
+        List<SagaLogEntry> incompleteEntries = writeMostlyCompletedSagas(100);
+        Iterator<SagaLogEntry> iterator = sagaLog.readIncompleteSagas().iterator();
+        List<SagaLogEntry> actualEntries = new ArrayList<>();
+        while (actualEntries.size() < 50) {
+            SagaLogEntry entry = iterator.next();
+            if (incompleteEntries.contains(entry)) {
+                actualEntries.add(entry);
+            }
+        }
+
+        sagaLog.compact();
+        writeActionEntries(10);
+        iterator.forEachRemaining(entry -> {
+            if (incompleteEntries.contains(entry)) {
+                actualEntries.add(entry);
+            }
+        });
+        assertEquals(actualEntries, incompleteEntries);
+    }
+
+    @Test
+    public void thatTruncateWhileCompactingIsCarriedOver() throws Exception {
+        List<SagaLogEntry> incompleteEntries = writeMostlyCompletedSagas(500);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> compaction = executorService.submit(() -> sagaLog.compact());
+            for (int i = 1; i < 400; i++) {
+                sagaLog.truncate(incompleteEntries.get(i).getId()).join();
+            }
+            compaction.get(30, TimeUnit.SECONDS);
+        } finally {
+            executorService.shutdown();
+        }
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), incompleteEntries.subList(400, incompleteEntries.size()));
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), incompleteEntries.subList(400, incompleteEntries.size()));
+    }
+
+    @Test
+    public void thatShrinkingOnTruncateWhileCompactingIsCarriedOver() throws Exception {
+        Map<String, String> configuration = new HashMap<>(engineConfiguration());
+        configuration.put(FileSagaLogConfig.PREALLOCATE_INITIAL_SIZE, "4096");
+        configuration.put(FileSagaLogConfig.SHRINK_ON_TRUNCATE_ENABLED, "true");
+        sagaLog.close();
+        sagaLog = createNewSagaLog(FileSagaLogConfig.from(configuration));
+        List<SagaLogEntry> incompleteEntries = writeMostlyCompletedSagas(500);
+        Path compactingPath = FileSagaLogCompactor.compactingPathOf(((FileSagaLogId) sagaLog.id()).getPath());
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> compaction = executorService.submit(() -> sagaLog.compact());
+            while (Files.notExists(compactingPath) && !compaction.isDone()) {
+                Thread.onSpinWait();
+            }
+            // leaves most of the file unused, so a queue-file is shrunk while the compacted copy is written
+            sagaLog.truncate(incompleteEntries.get(450).getId()).join();
+            compaction.get(30, TimeUnit.SECONDS);
+        } finally {
+            executorService.shutdown();
+        }
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), incompleteEntries.subList(451, incompleteEntries.size()));
+        sagaLog.close();
+        sagaLog = new FileSagaLog(sagaLog.id(), FileSagaLogConfig.from(configuration));
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), incompleteEntries.subList(451, incompleteEntries.size()));
+    }
+
+    @Test
+    public void thatBackgroundCompactionRuns() throws Exception {
+        Map<String, String> configuration = new HashMap<>(engineConfiguration());
+        configuration.put(FileSagaLogConfig.COMPACTION_ENABLED, "true");
+        configuration.put(FileSagaLogConfig.COMPACTION_INTERVAL_MS, "10");
+        configuration.put(FileSagaLogConfig.COMPACTION_MIN_COMPLETED_ENTRIES, "60");
+        sagaLog.close();
+        sagaLog = createNewSagaLog(FileSagaLogConfig.from(configuration));
+        List<SagaLogEntry> incompleteEntries = writeMostlyCompletedSagas(10);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sagaLog.completedEntries() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(sagaLog.completedEntries(), 0);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), incompleteEntries);
+    }
+
+    @Test
+    public void thatOpeningAfterACheckpointOnlyReadsTheElementsAfterIt() throws IOException {
+        List<SagaLogEntryBuilder> builders = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            builders.add(sagaLog.builder().startAction("ex-bulk", "action" + i));
+        }
+        List<SagaLogEntry> bulkEntries = sagaLog.write(builders).join();
+        writeMostlyCompletedSagas(5);
+        sagaLog.truncate(bulkEntries.get(1).getId()).join();
+        long completedEntries = sagaLog.completedEntries();
+        List<SagaLogEntry> checkpointedEntries = sagaLog.readIncompleteSagas().collect(Collectors.toList());
+
+        assertEquals(sagaLog.checkpoint(), checkpointedEntries.size());
+        assertEquals(sagaLog.uncheckpointedEntries(), 0);
+        List<SagaLogEntry> expectedEntries = new ArrayList<>(checkpointedEntries);
+        expectedEntries.addAll(writeActionEntries(3));
+
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.uncheckpointedEntries(), 3);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+        assertEquals(sagaLog.readEntries("ex-bulk").collect(Collectors.toList()), bulkEntries.subList(2, 4));
+        assertEquals(sagaLog.completedEntries(), completedEntries);
+
+        // the head element of the checkpoint is no longer in the log
+        sagaLog.truncate(bulkEntries.get(3).getId()).join();
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.uncheckpointedEntries(), 3);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries.subList(2, expectedEntries.size()));
+        assertEquals(sagaLog.readEntries("ex-bulk").count(), 0);
+        assertEquals(sagaLog.compact(), completedEntries);
+    }
+
+    @Test
+    public void thatACheckpointNotMatchingTheLogIsIgnored() throws IOException {
+        Path checkpointPath = FileSagaLogCheckpoint.pathOf(((FileSagaLogId) sagaLog.id()).getPath());
+        writeMostlyCompletedSagas(2);
+        sagaLog.checkpoint();
+        byte[] staleCheckpoint = Files.readAllBytes(checkpointPath);
+
+        sagaLog.truncate().join();
+        assertTrue(Files.notExists(checkpointPath));
+        List<SagaLogEntry> expectedEntries = writeActionEntries(5);
+        Files.write(checkpointPath, staleCheckpoint);
+
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.uncheckpointedEntries(), 5);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+
+        writeSuccessfulVanillaSagaExecutionEntries(sagaLog, UUID.randomUUID().toString());
+        sagaLog.checkpoint();
+        assertEquals(sagaLog.compact(), 6);
+        assertTrue(Files.notExists(checkpointPath));
+        assertEquals(sagaLog.uncheckpointedEntries(), 5);
+    }
+
+    @Test
+    public void thatBackgroundCheckpointRuns() throws Exception {
+        Map<String, String> configuration = new HashMap<>(engineConfiguration());
+        configuration.put(FileSagaLogConfig.CHECKPOINT_ENABLED, "true");
+        configuration.put(FileSagaLogConfig.CHECKPOINT_INTERVAL_MS, "10");
+        configuration.put(FileSagaLogConfig.CHECKPOINT_MIN_ENTRIES, "20");
+        sagaLog.close();
+        sagaLog = createNewSagaLog(FileSagaLogConfig.from(configuration));
+        List<SagaLogEntry> entries = writeActionEntries(20);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sagaLog.uncheckpointedEntries() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(sagaLog.uncheckpointedEntries(), 0);
+        sagaLog.close();
+        sagaLog = new FileSagaLog(sagaLog.id(), FileSagaLogConfig.from(configuration));
+        assertEquals(sagaLog.uncheckpointedEntries(), 0);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void thatDeferredDurabilityIsRejectedByTheQueueFileEngine() {
+        FileSagaLogConfig.from(Map.of(FileSagaLogConfig.DURABILITY, "interval"));
+    }
+
+    @Test
+    public void thatWritesAfterCloseFail() throws IOException {
+        sagaLog.close();
+        sagaLog = createNewSagaLog(groupCommitConfig());
+        sagaLog.close();
+
+        CompletableFuture<SagaLogEntry> future = sagaLog.write(sagaLog.builder().startSaga("ex-1234", "Some-test-saga", "{}"));
+        assertTrue(future.isCompletedExceptionally());
+    }
+
+    private Deque<SagaLogEntry> writeSuccessfulVanillaSagaExecutionEntriesAsync(SagaLog sagaLog, String executionId) {
+        List<CompletableFuture<SagaLogEntry>> entryFutures = new ArrayList<>();
+        entryFutures.add(sagaLog.write(sagaLog.builder().startSaga(executionId, "Vanilla-Saga", "{}")));
+        entryFutures.add(sagaLog.write(sagaLog.builder().startAction(executionId, "action1")));
+        entryFutures.add(sagaLog.write(sagaLog.builder().startAction(executionId, "action2")));
+        entryFutures.add(sagaLog.write(sagaLog.builder().endAction(executionId, "action1", "{}")));
+        entryFutures.add(sagaLog.write(sagaLog.builder().endAction(executionId, "action2", "{}")));
+        entryFutures.add(sagaLog.write(sagaLog.builder().endSaga(executionId)));
+
+        Deque<SagaLogEntry> entries = new LinkedList<>();
+        for (CompletableFuture<SagaLogEntry> entryFuture : entryFutures) {
+            entries.add(entryFuture.join());
+        }
+        return entries;
+    }
+
     private Deque<SagaLogEntry> writeSuccessfulVanillaSagaExecutionEntries(SagaLog sagaLog, String executionId) {
         Deque<SagaLogEntryBuilder> entryBuilders = new LinkedList<>();
         entryBuilders.add(sagaLog.builder().startSaga(executionId, "Vanilla-Saga", "{}"));
@@ -112,6 +881,64 @@ public class FileSagaLogTest {
         return entries;
     }
 
+    @Test
+    public void thatQueueFilesArePreallocatedAndShrunkOnTruncate() throws IOException {
+        Map<String, String> configuration = new HashMap<>(engineConfiguration());
+        configuration.put(FileSagaLogConfig.PREALLOCATE_INITIAL_SIZE, "65536");
+        sagaLog.close();
+        sagaLog = createNewSagaLog(FileSagaLogConfig.from(configuration));
+        assertEquals(sagaLog.fileSize(), 65536);
+        writeActionEntries(10);
+        sagaLog.truncate().join();
+        // clearing keeps the allocated file
+        assertEquals(sagaLog.fileSize(), 65536);
+        assertEquals(sagaLog.readIncompleteSagas().count(), 0);
+
+        configuration.put(FileSagaLogConfig.PREALLOCATE_INITIAL_SIZE, "4096");
+        configuration.put(FileSagaLogConfig.SHRINK_ON_TRUNCATE_ENABLED, "true");
+        sagaLog.close();
+        sagaLog = createNewSagaLog(FileSagaLogConfig.from(configuration));
+        List<SagaLogEntry> entries = writeActionEntries(200);
+        long grownSize = sagaLog.fileSize();
+        assertTrue(grownSize >= 4 * 4096);
+        sagaLog.truncate(entries.get(194).getId()).join();
+        assertTrue(sagaLog.fileSize() < grownSize);
+        assertTrue(sagaLog.usedSize() <= sagaLog.fileSize());
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries.subList(195, 200));
+
+        sagaLog.close();
+        sagaLog = new FileSagaLog(sagaLog.id(), FileSagaLogConfig.from(configuration));
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries.subList(195, 200));
+        sagaLog.truncate().join();
+        assertEquals(sagaLog.fileSize(), 4096);
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().count(), 0);
+    }
+
+    @Test
+    public void thatLogWrittenInLegacyTextFormatIsReadable() throws IOException {
+        sagaLog.close();
+        FileSagaLogEntryCodec codec = new FileSagaLogEntryCodec();
+        String executionId = UUID.randomUUID().toString();
+        List<SagaLogEntry> expectedEntries = List.of(
+                sagaLog.builder().id(new FileSagaLogEntryId(0)).startSaga(executionId, "Vanilla-Saga", "{}").build(),
+                sagaLog.builder().id(new FileSagaLogEntryId(1)).startAction(executionId, "action1").build(),
+                sagaLog.builder().id(new FileSagaLogEntryId(2)).endAction(executionId, "action1", "{}").build(),
+                sagaLog.builder().id(new FileSagaLogEntryId(3)).endSaga(executionId).build()
+        );
+        try (QueueFile queueFile = new QueueFile.Builder(((FileSagaLogId) sagaLog.id()).getPath().toFile()).build()) {
+            for (SagaLogEntry entry : expectedEntries) {
+                queueFile.add(codec.encodeText(entry));
+            }
+        }
+        sagaLog = new FileSagaLog(sagaLog.id());
+
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+        assertEquals(readIncompleteSagasWithoutDecoding(sagaLog), expectedEntries);
+        // without a meta file the ids continue after the highest id in the log
+        assertEquals(idOf(sagaLog.write(sagaLog.builder().endSaga(executionId)).join()), 4);
+    }
+
     @Test
     public void thatSerializationAndDeserializationWorks() {
         checkSerializationAndDeserialization(sagaLog, sagaLog.builder().startSaga("ex-1234", "Some-test-saga", "{}"));
@@ -124,11 +951,12 @@ public class FileSagaLogTest {
     }
 
     private void checkSerializationAndDeserialization(FileSagaLog sagaLog, SagaLogEntryBuilder builder) {
+        FileSagaLogEntryCodec codec = new FileSagaLogEntryCodec();
         SagaLogEntry input = sagaLog.write(builder).join();
-        byte[] serializedInput = sagaLog.serialize(input);
-        SagaLogEntry output = sagaLog.deserialize(serializedInput);
+        byte[] serializedInput = codec.encode(List.of(input));
+        SagaLogEntry output = codec.decode(serializedInput).get(0);
         assertEquals(output, input);
-        byte[] serializedOutput = sagaLog.serialize(output);
+        byte[] serializedOutput = codec.encode(List.of(output));
         assertEquals(serializedOutput, serializedInput);
     }
 
@@ -0,0 +1,320 @@
+package no.ssb.sagalog.file;
+
+import no.ssb.sagalog.SagaLogEntry;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Runs all saga-log tests against the segmented engine, with segments small enough for the tests to span several.
+ */
+public class SegmentedFileSagaLogTest extends FileSagaLogTest {
+
+    @Override
+    Map<String, String> engineConfiguration() {
+        return Map.of(
+                FileSagaLogConfig.ENGINE, "segmented",
+                FileSagaLogConfig.SEGMENT_SIZE, "4096"
+        );
+    }
+
+    @Override
+    @Test
+    public void thatLogWrittenInLegacyTextFormatIsReadable() {
+        throw new SkipException("Legacy text format is only found in queue-files");
+    }
+
+    @Override
+    @Test
+    public void thatQueueFilesArePreallocatedAndShrunkOnTruncate() {
+        throw new SkipException("Segments are preallocated in the background, and deleted once truncated");
+    }
+
+    @Test
+    public void thatTheNextSegmentIsPreallocatedInTheBackground() throws IOException, InterruptedException {
+        Path directory = Paths.get("target", "preallocated-segments");
+        FileSagaLogSegmentedStore.deleteDirectory(directory);
+        byte[][] elements = new byte[5][1000];
+        for (int i = 0; i < elements.length; i++) {
+            Arrays.fill(elements[i], (byte) (i + 1));
+        }
+        try (FileSagaLogSegmentedStore store = new FileSagaLogSegmentedStore(directory, 4096, true, true)) {
+            for (int i = 0; i < 3; i++) {
+                store.append(elements[i]);
+            }
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!store.preallocated() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(store.preallocated());
+            store.append(elements[3]);
+            assertEquals(store.segmentCount(), 1);
+            store.append(elements[4]);
+            assertEquals(store.segmentCount(), 2);
+            assertFalse(Files.exists(directory.resolve(FileSagaLogSegmentedStore.PREALLOCATED_FILENAME)));
+        }
+        try (FileSagaLogSegmentedStore store = new FileSagaLogSegmentedStore(directory, 4096, true, true)) {
+            assertEquals(store.nextSequence(), 5);
+            FileSagaLogStore.Cursor cursor = store.cursor();
+            cursor.seek(0);
+            for (byte[] element : elements) {
+                assertEquals(cursor.next(), element);
+            }
+        }
+    }
+
+    @Test
+    public void thatASyncOfTheHeadOnlyIgnoresAChannelClosedByRelease() throws IOException {
+        Path directory = Paths.get("target", "released-head-segments");
+        FileSagaLogSegmentedStore.deleteDirectory(directory);
+        try (FileSagaLogSegmentedStore store = new FileSagaLogSegmentedStore(directory, 4096, false)) {
+            for (int i = 0; i < 4; i++) {
+                store.append(new byte[100]);
+            }
+            store.remove(1);
+            FileSagaLogStore.Sync sync = store.unsynced();
+            store.release();
+            // forced by release
+            sync.run();
+
+            store.remove(1);
+            sync = store.unsynced();
+            Thread.currentThread().interrupt();
+            try {
+                sync.run();
+                fail("An interrupted sync of the head must fail");
+            } catch (ClosedByInterruptException e) {
+                // the head is not synced
+            } finally {
+                Thread.interrupted();
+            }
+        }
+    }
+
+    @Test
+    public void thatSegmentsBeforeTheHeadAreDeletedOnTruncate() throws IOException {
+        Path directory = ((FileSagaLogId) sagaLog.id()).getPath();
+        List<SagaLogEntry> entries = writeActionEntries(300);
+        assertTrue(segmentCount(directory) > 3);
+
+        sagaLog.truncate(entries.get(289).getId()).join();
+        assertEquals(segmentCount(directory), 1);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries.subList(290, 300));
+
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries.subList(290, 300));
+        List<SagaLogEntry> expectedEntries = new ArrayList<>(entries.subList(290, 300));
+        expectedEntries.addAll(writeActionEntries(100));
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+
+        sagaLog.truncate().join();
+        assertEquals(segmentCount(directory), 1);
+        assertEquals(sagaLog.readIncompleteSagas().count(), 0);
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().count(), 0);
+    }
+
+    @Test
+    public void thatEntriesLargerThanASegmentWork() throws IOException {
+        String largeData = "{\"data\":\"" + "x".repeat(10000) + "\"}";
+        SagaLogEntry first = sagaLog.write(sagaLog.builder().startSaga("ex-1", "Large-Saga", largeData)).join();
+        SagaLogEntry second = sagaLog.write(sagaLog.builder().endSaga("ex-1")).join();
+
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readEntries("ex-1").collect(Collectors.toList()), List.of(first, second));
+    }
+
+    @Test
+    public void thatIntervalDurabilitySyncsInTheBackground() throws Exception {
+        sagaLog.close();
+        sagaLog = createNewSagaLog(durabilityConfig("interval", "10", "10000"));
+        List<SagaLogEntry> entries = writeActionEntries(20);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sagaLog.unsyncedEntries() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(sagaLog.unsyncedEntries(), 0);
+
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries);
+    }
+
+    @Test
+    public void thatBackgroundTasksOfManyLogsShareThreads() throws Exception {
+        long threadsBefore = logThreads();
+        Map<String, String> configuration = new HashMap<>(engineConfiguration());
+        configuration.put(FileSagaLogConfig.DURABILITY, "interval");
+        configuration.put(FileSagaLogConfig.DURABILITY_INTERVAL_MS, "10");
+        configuration.put(FileSagaLogConfig.COMPACTION_ENABLED, "true");
+        configuration.put(FileSagaLogConfig.COMPACTION_INTERVAL_MS, "10");
+        configuration.put(FileSagaLogConfig.CHECKPOINT_ENABLED, "true");
+        configuration.put(FileSagaLogConfig.CHECKPOINT_INTERVAL_MS, "10");
+        FileSagaLogConfig config = FileSagaLogConfig.from(configuration);
+        List<FileSagaLog> sagaLogs = new ArrayList<>();
+        try {
+            for (int i = 0; i < 20; i++) {
+                FileSagaLogId logId = new FileSagaLogId(Paths.get("target"), "01", "interval-" + i);
+                FileSagaLogSegmentedStore.deleteDirectory(logId.getPath());
+                Files.deleteIfExists(FileSagaLogMeta.pathOf(logId.getPath()));
+                FileSagaLogCheckpoint.delete(logId.getPath());
+                FileSagaLog intervalLog = new FileSagaLog(logId, config);
+                sagaLogs.add(intervalLog);
+                intervalLog.write(intervalLog.builder().startSaga("ex-" + i, "Saga", "{}")).join();
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sagaLogs.stream().anyMatch(log -> log.unsyncedEntries() > 0) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            for (FileSagaLog intervalLog : sagaLogs) {
+                assertEquals(intervalLog.unsyncedEntries(), 0);
+            }
+            // at most the threads of the shared scheduler, if not started by earlier tests
+            assertTrue(logThreads() - threadsBefore <= 4, "threads started: " + (logThreads() - threadsBefore));
+        } finally {
+            for (FileSagaLog intervalLog : sagaLogs) {
+                intervalLog.close();
+            }
+        }
+    }
+
+    @Test
+    public void thatIntervalDurabilityBoundsUnsyncedEntries() throws IOException {
+        sagaLog.close();
+        sagaLog = createNewSagaLog(durabilityConfig("interval", "3600000", "10"));
+        for (int i = 0; i < 25; i++) {
+            writeActionEntries(1);
+            assertTrue(sagaLog.unsyncedEntries() <= 10);
+        }
+    }
+
+    @Test
+    public void thatOsBufferedDurabilityLeavesSyncingToTheOperatingSystem() throws IOException {
+        sagaLog.close();
+        sagaLog = createNewSagaLog(durabilityConfig("os", "100", "10"));
+        List<SagaLogEntry> entries = writeActionEntries(25);
+        assertEquals(sagaLog.unsyncedEntries(), 25);
+
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries);
+    }
+
+    private FileSagaLogConfig durabilityConfig(String durability, String intervalMs, String maxUnsyncedEntries) {
+        Map<String, String> configuration = new HashMap<>(engineConfiguration());
+        configuration.put(FileSagaLogConfig.DURABILITY, durability);
+        configuration.put(FileSagaLogConfig.DURABILITY_INTERVAL_MS, intervalMs);
+        configuration.put(FileSagaLogConfig.DURABILITY_MAX_UNSYNCED_ENTRIES, maxUnsyncedEntries);
+        return FileSagaLogConfig.from(configuration);
+    }
+
+    @Test
+    public void thatATornLengthAtTheTailIsRemovedOnOpen() throws IOException {
+        Path directory = ((FileSagaLogId) sagaLog.id()).getPath();
+        List<SagaLogEntry> entries = writeActionEntries(100);
+        sagaLog.close();
+        Path lastSegment;
+        try (Stream<Path> paths = Files.list(directory)) {
+            lastSegment = paths.filter(p -> p.getFileName().toString().endsWith(FileSagaLogSegmentedStore.SEGMENT_SUFFIX)).max(Path::compareTo).orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(lastSegment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            int offset = FileSagaLogSegmentedStore.SEGMENT_HEADER_LENGTH;
+            while (segment.getInt(offset) != 0) {
+                offset += FileSagaLogSegmentedStore.ELEMENT_HEADER_LENGTH + segment.getInt(offset);
+            }
+            segment.putInt(offset, Integer.MAX_VALUE);
+            segment.force();
+        }
+
+        FileSagaLogMetricsTest.RecordingMetrics metrics = new FileSagaLogMetricsTest.RecordingMetrics();
+        sagaLog = new FileSagaLog(sagaLog.id(), FileSagaLogConfig.from(engineConfiguration()), metrics);
+        assertEquals(metrics.total("repaired"), 1);
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries);
+        List<SagaLogEntry> expectedEntries = new ArrayList<>(entries);
+        expectedEntries.addAll(writeActionEntries(100));
+
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+    }
+
+    @Test
+    public void thatElementsLostInASegmentBeforeLaterSegmentsEndTheLogOnOpen() throws IOException {
+        Path directory = ((FileSagaLogId) sagaLog.id()).getPath();
+        List<SagaLogEntry> entries = writeActionEntries(300);
+        sagaLog.close();
+        assertTrue(segmentCount(directory) >= 3);
+        Path firstSegment;
+        try (Stream<Path> paths = Files.list(directory)) {
+            firstSegment = paths.filter(p -> p.getFileName().toString().endsWith(FileSagaLogSegmentedStore.SEGMENT_SUFFIX)).min(Path::compareTo).orElseThrow();
+        }
+        // a page in the middle of the first segment never reached the disk, while later segments did
+        int lostElement;
+        try (FileChannel channel = FileChannel.open(firstSegment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            List<Integer> offsets = new ArrayList<>();
+            int offset = FileSagaLogSegmentedStore.SEGMENT_HEADER_LENGTH;
+            while (offset + FileSagaLogSegmentedStore.ELEMENT_HEADER_LENGTH <= segment.capacity() && segment.getInt(offset) > 0) {
+                offsets.add(offset);
+                offset += FileSagaLogSegmentedStore.ELEMENT_HEADER_LENGTH + segment.getInt(offset);
+            }
+            lostElement = offsets.size() / 2;
+            int lostOffset = offsets.get(lostElement);
+            int lostLength = FileSagaLogSegmentedStore.ELEMENT_HEADER_LENGTH + segment.getInt(lostOffset);
+            segment.position(lostOffset);
+            segment.put(new byte[lostLength]);
+            segment.force();
+        }
+
+        sagaLog = new FileSagaLog(sagaLog.id(), FileSagaLogConfig.from(engineConfiguration()));
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), entries.subList(0, lostElement));
+        assertEquals(segmentCount(directory), 1);
+        List<SagaLogEntry> expectedEntries = new ArrayList<>(entries.subList(0, lostElement));
+        expectedEntries.addAll(writeActionEntries(100));
+
+        sagaLog = reopenSagaLog();
+        assertEquals(sagaLog.readIncompleteSagas().collect(Collectors.toList()), expectedEntries);
+    }
+
+    @Test
+    public void thatOpeningAQueueFileLogWithTheSegmentedEngineFails() throws IOException {
+        FileSagaLogId logId = new FileSagaLogId(Paths.get("target"), "01", "queuefilelog");
+        Files.deleteIfExists(logId.getPath());
+        new FileSagaLog(logId).close();
+        try {
+            new FileSagaLog(logId, FileSagaLogConfig.from(engineConfiguration()));
+            fail("Expected the segmented engine to refuse a queue-file");
+        } catch (IllegalStateException expected) {
+        } finally {
+            Files.deleteIfExists(logId.getPath());
+        }
+    }
+
+    private static long logThreads() {
+        return Thread.getAllStackTraces().keySet().stream().filter(thread -> thread.getName().startsWith("filesagalog-")).count();
+    }
+
+    private static long segmentCount(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(p -> p.getFileName().toString().endsWith(FileSagaLogSegmentedStore.SEGMENT_SUFFIX)).count();
+        }
+    }
+}